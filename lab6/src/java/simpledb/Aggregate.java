@@ -5,13 +5,15 @@ import java.util.*;
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * single column.  The tuples of the child are merged into the aggregator a
+ * batch at a time.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
 
     private OpIterator child, iter;
+    private transient TupleBatch out;
     private final int aggField, gbField;
     private final Aggregator.Op op;
     private final Aggregator aggregator;
@@ -37,6 +39,26 @@ public class Aggregate extends Operator {
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
 	    // done
+        this(child, afield, gfield, aop, false);
+    }
+
+    /**
+     * Constructor for an aggregate that may combine partial results.
+     *
+     * @param partials
+     *            true if the values of afield are not input values but the
+     *            results of aop over parts of the input, computed by other
+     *            Aggregates (see Exchange).  Partial minimums, maximums and
+     *            sums are combined with the same operator, partial counts
+     *            are added up; averages can't be combined.  The output is
+     *            named after aop either way.
+     */
+    public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, boolean partials) {
+        if (partials && aop != Aggregator.Op.MIN && aop != Aggregator.Op.MAX
+                && aop != Aggregator.Op.SUM && aop != Aggregator.Op.COUNT) {
+            throw new IllegalArgumentException("can't combine partial results of " + aop);
+        }
+        Aggregator.Op combine = partials && aop == Aggregator.Op.COUNT ? Aggregator.Op.SUM : aop;
         this.child = child;
         aggField = afield;
         gbField = gfield;
@@ -49,9 +71,9 @@ public class Aggregate extends Operator {
         }
         aggFieldType = child.getTupleDesc().getFieldType(aggField);
         if (aggFieldType == Type.INT_TYPE) {
-            aggregator = new IntegerAggregator(gbField, gbFieldType, aggField, op);
+            aggregator = new IntegerAggregator(gbField, gbFieldType, aggField, combine);
         } else {
-            aggregator = new StringAggregator(gbField, gbFieldType, aggField, op);
+            aggregator = new StringAggregator(gbField, gbFieldType, aggField, combine);
         }
         iter = null;
     }
@@ -110,8 +132,10 @@ public class Aggregate extends Operator {
 	    // done
         super.open();
         child.open();
-        while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
+        BatchOpIterator input = BatchOpIterator.of(child);
+        TupleBatch batch;
+        while ((batch = input.nextBatch()) != null) {
+            aggregator.mergeBatchIntoGroups(batch);
         }
         child.close();
         iter = aggregator.iterator();
@@ -119,22 +143,29 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next batch of result tuples. If there is a group by field,
+     * then the first field is the field by which we are grouping, and the
+     * second field is the result of computing the aggregate. If there is no
+     * group by field, then the result tuple should contain one field
+     * representing the result of the aggregate. Should return null if there
+     * are no more tuples.
      */
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
         // done
-        if (iter.hasNext()) {
-            return iter.next();
+        if (out == null) {
+            // the types of the aggregator, a count of strings is an int
+            out = new TupleBatch(iter.getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+        }
+        out.clear();
+        while (!out.isFull() && iter.hasNext()) {
+            out.addTuple(iter.next());
         }
-        return null;
+        return out.size() == 0 ? null : out;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
 	    // done
+        super.rewind();
         iter.rewind();
     }
 
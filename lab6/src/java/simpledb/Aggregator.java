@@ -76,6 +76,20 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into the aggregate, as
+     * mergeTupleIntoGroup does one tuple.
+     *
+     * @param batch the rows containing an aggregate field and a group-by field
+     */
+    public default void mergeBatchIntoGroups(TupleBatch batch) {
+        // mergeTupleIntoGroup keeps fields, never the tuple
+        Tuple t = new Tuple(batch.getTupleDesc());
+        for (int i = 0; i < batch.size(); i++) {
+            mergeTupleIntoGroup(batch.readTuple(i, t));
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -0,0 +1,430 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * Each instance of BLinkPage stores data for one page of a BLinkTreeFile and
+ * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Besides its entries, every page stores its LSN (see Page.getLsn), its
+ * level (0 for leaves), a link to its right sibling on the same level and a
+ * high key, the largest key the page may hold (none on the right-most page
+ * of a level). A leaf holds tuples
+ * sorted by the key field. An internal page with n keys holds n+1 child
+ * pointers: child i holds the keys <= key i, child i+1 the keys >= key i.
+ * <p>
+ * Page 0 of a file is the meta page; its right link field holds the page
+ * number of the root instead. A page of all zeros is an empty leaf.
+ *
+ * @see BLinkTreeFile
+ * @see BufferPool
+ */
+public class BLinkPage implements Page {
+
+	private final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+	// LSN, level, right link, number of entries and the high key flag
+	private final static int HEADER_SIZE = LSN_SIZE + 3 * INDEX_SIZE + 1;
+
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+	private volatile long lsn = 0;
+
+	private final BLinkPageId pid;
+	private final TupleDesc td;
+	private final int keyField;
+	private final Type keyType;
+
+	private int level;
+	private int rightLink;
+	private Field highKey;
+	// the tuples of a leaf
+	private final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+	// the keys and child page numbers of an internal page
+	private final ArrayList<Field> keys = new ArrayList<Field>();
+	private final ArrayList<Integer> children = new ArrayList<Integer>();
+
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	/**
+	 * Create a BLinkPage from a set of bytes of data read from disk. The key
+	 * field and the tuple layout are looked up in the catalog, so the table
+	 * must have been added to it.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 */
+	public BLinkPage(BLinkPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		BLinkTreeFile file = (BLinkTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId());
+		this.td = file.getTupleDesc();
+		this.keyField = file.keyField();
+		this.keyType = td.getFieldType(keyField);
+
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			lsn = dis.readLong();
+			level = dis.readInt();
+			rightLink = dis.readInt();
+			int numEntries = dis.readInt();
+			boolean hasHighKey = dis.readByte() != 0;
+			Field f = keyType.parse(dis);
+			highKey = hasHighKey ? f : null;
+
+			if (isLeaf()) {
+				for (int i = 0; i < numEntries; ++i) {
+					Tuple t = new Tuple(td);
+					for (int j = 0; j < td.numFields(); ++j) {
+						t.setField(j, td.getFieldType(j).parse(dis));
+					}
+					tuples.add(t);
+				}
+				renumber(0);
+			} else {
+				children.add(dis.readInt());
+				for (int i = 0; i < numEntries; ++i) {
+					keys.add(keyType.parse(dis));
+					children.add(dis.readInt());
+				}
+			}
+		} catch (java.text.ParseException e) {
+			throw new IOException("can't parse page " + id + ": " + e.getMessage());
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public BLinkPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * BLinkPage, which is an empty leaf.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()]; // all 0
+	}
+
+	public BLinkPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData;
+			}
+			return new BLinkPage(pid, oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 *
+	 * @see #BLinkPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeLong(lsn);
+			dos.writeInt(level);
+			dos.writeInt(rightLink);
+			dos.writeInt(getNumEntries());
+			dos.writeByte(highKey != null ? 1 : 0);
+			if (highKey != null) {
+				highKey.serialize(dos);
+			} else {
+				dos.write(new byte[keyType.getLen()]);
+			}
+
+			if (isLeaf()) {
+				for (Tuple t : tuples) {
+					for (int j = 0; j < td.numFields(); ++j) {
+						t.getField(j).serialize(dos);
+					}
+				}
+			} else {
+				dos.writeInt(children.get(0));
+				for (int i = 0; i < keys.size(); ++i) {
+					keys.get(i).serialize(dos);
+					dos.writeInt(children.get(i + 1));
+				}
+			}
+
+			dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
+	/**
+	 * @return the level of this page, 0 for a leaf
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	public boolean isLeaf() {
+		return level == 0;
+	}
+
+	/**
+	 * Turn this empty page into a page of the given level
+	 */
+	void setLevel(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * @return the id of the right sibling, or null if this is the right-most page of its level
+	 */
+	public BLinkPageId getRightLink() {
+		return rightLink == 0 ? null : new BLinkPageId(pid.getTableId(), rightLink);
+	}
+
+	/**
+	 * @return the largest key this page may hold, or null if there is no limit
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * @return true if key f belongs on this page or one to its left, false if
+	 * a search for f has to move right. A null key covers every page.
+	 */
+	public boolean covers(Field f) {
+		return f == null || highKey == null || f.compare(Predicate.Op.LESS_THAN_OR_EQ, highKey);
+	}
+
+	/**
+	 * @return the number of tuples of a leaf or keys of an internal page
+	 */
+	public int getNumEntries() {
+		return isLeaf() ? tuples.size() : keys.size();
+	}
+
+	/**
+	 * @return the maximum number of tuples of a leaf or keys of an internal page
+	 */
+	public int getMaxEntries() {
+		int space = BufferPool.getPageSize() - HEADER_SIZE - keyType.getLen();
+		if (isLeaf()) {
+			return space / td.getSize();
+		}
+		return (space - INDEX_SIZE) / (keyType.getLen() + INDEX_SIZE);
+	}
+
+	public boolean isFull() {
+		return getNumEntries() >= getMaxEntries();
+	}
+
+	/**
+	 * @return the root page number stored in the meta page
+	 */
+	int getRootPageNo() {
+		return rightLink;
+	}
+
+	void setRootPageNo(int pgNo) {
+		rightLink = pgNo;
+	}
+
+	// ---- leaves ----
+
+	public Tuple getTuple(int i) {
+		return tuples.get(i);
+	}
+
+	/**
+	 * @return a copy of the tuples of this leaf, in key order
+	 */
+	public ArrayList<Tuple> getTuples() {
+		return new ArrayList<Tuple>(tuples);
+	}
+
+	/**
+	 * Add a tuple to this leaf, after the tuples with equal keys
+	 * @throws DbException if the page is full or the tuple doesn't match
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (isFull()) {
+			throw new DbException("page is full");
+		}
+		if (!t.getTupleDesc().equals(td)) {
+			throw new DbException("type mismatch, in addTuple");
+		}
+		Field key = t.getField(keyField);
+		int i = tuples.size();
+		while (i > 0 && tuples.get(i - 1).getField(keyField).compare(Predicate.Op.GREATER_THAN, key)) {
+			--i;
+		}
+		tuples.add(i, t);
+		renumber(i);
+	}
+
+	/**
+	 * Remove the i-th tuple of this leaf
+	 */
+	public void deleteTuple(int i) {
+		tuples.remove(i).setRecordId(null);
+		renumber(i);
+	}
+
+	/**
+	 * @return the index of a tuple with the same field values as t, or -1
+	 */
+	public int indexOf(Tuple t) {
+		for (int i = 0; i < tuples.size(); ++i) {
+			Tuple u = tuples.get(i);
+			boolean same = true;
+			for (int j = 0; j < td.numFields() && same; ++j) {
+				same = u.getField(j).equals(t.getField(j));
+			}
+			if (same) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// record ids follow the position of the tuples in the leaf
+	private void renumber(int from) {
+		for (int i = from; i < tuples.size(); ++i) {
+			tuples.get(i).setRecordId(new RecordId(pid, i));
+		}
+	}
+
+	// ---- internal pages ----
+
+	public Field getKey(int i) {
+		return keys.get(i);
+	}
+
+	public BLinkPageId getChild(int i) {
+		return new BLinkPageId(pid.getTableId(), children.get(i));
+	}
+
+	/**
+	 * @return the child to descend to for the left-most occurrence of key f,
+	 * or the left-most child if f is null
+	 */
+	public BLinkPageId findChild(Field f) {
+		int i = 0;
+		if (f != null) {
+			while (i < keys.size() && f.compare(Predicate.Op.GREATER_THAN, keys.get(i))) {
+				++i;
+			}
+		}
+		return getChild(i);
+	}
+
+	/**
+	 * @return the index of the child pointer to page pgNo, or -1
+	 */
+	public int indexOfChild(int pgNo) {
+		return children.indexOf(pgNo);
+	}
+
+	/**
+	 * Make this empty page the root above left and right, which are separated by key f
+	 */
+	void initRoot(int level, BLinkPageId left, Field f, BLinkPageId right) {
+		this.level = level;
+		children.add(left.getPageNumber());
+		keys.add(f);
+		children.add(right.getPageNumber());
+	}
+
+	/**
+	 * Add the entry for a new page right whose left neighbour is the i-th child
+	 * @throws DbException if the page is full
+	 */
+	void insertEntry(int i, Field f, BLinkPageId right) throws DbException {
+		if (isFull()) {
+			throw new DbException("page is full");
+		}
+		keys.add(i, f);
+		children.add(i + 1, right.getPageNumber());
+	}
+
+	// ---- splits ----
+
+	/**
+	 * Move the upper half of the entries of this page to the empty page right,
+	 * and link right in between this page and its right sibling.
+	 *
+	 * @return the separator, the new high key of this page
+	 */
+	Field splitInto(BLinkPage right) {
+		right.level = level;
+		right.highKey = highKey;
+		right.rightLink = rightLink;
+		rightLink = right.pid.getPageNumber();
+
+		if (isLeaf()) {
+			int m = tuples.size() / 2;
+			right.tuples.addAll(tuples.subList(m, tuples.size()));
+			tuples.subList(m, tuples.size()).clear();
+			right.renumber(0);
+			highKey = tuples.get(m - 1).getField(keyField);
+		} else {
+			// the middle key moves up, child m stays on the left
+			int m = keys.size() / 2;
+			highKey = keys.get(m);
+			right.keys.addAll(keys.subList(m + 1, keys.size()));
+			right.children.addAll(children.subList(m + 1, children.size()));
+			keys.subList(m, keys.size()).clear();
+			children.subList(m + 1, children.size()).clear();
+		}
+		return highKey;
+	}
+}
@@ -0,0 +1,77 @@
+package simpledb;
+
+/** Unique identifier for BLinkPage objects. */
+public class BLinkPageId implements PageId {
+
+	private final int tableId;
+	private final int pgNo;
+
+	/**
+	 * Constructor. Create a page id structure for a specific page of a
+	 * specific B-link tree.
+	 *
+	 * @param tableId The table that is being referenced
+	 * @param pgNo The page number in that table. Page 0 is the meta page.
+	 */
+	public BLinkPageId(int tableId, int pgNo) {
+		this.tableId = tableId;
+		this.pgNo = pgNo;
+	}
+
+	/** @return the table associated with this PageId */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * @return the page number in the table getTableId() associated with
+	 *   this PageId
+	 */
+	public int getPageNumber() {
+		return pgNo;
+	}
+
+	/**
+	 * @return a hash code for this page, represented by the concatenation of
+	 *   the table number and the page number
+	 * @see BufferPool
+	 */
+	public int hashCode() {
+		return 31 * tableId + pgNo;
+	}
+
+	/**
+	 * Compares one PageId to another.
+	 *
+	 * @param o The object to compare against (must be a PageId)
+	 * @return true if the objects are equal (e.g., page numbers and table
+	 *   ids are the same)
+	 */
+	public boolean equals(Object o) {
+		if (!(o instanceof BLinkPageId)) {
+			return false;
+		}
+		BLinkPageId other = (BLinkPageId) o;
+		return other.tableId == tableId && other.pgNo == pgNo;
+	}
+
+	public String toString() {
+		return "(" + tableId + ", " + pgNo + ")";
+	}
+
+	/**
+	 *  Return a representation of this object as an array of
+	 *  integers, for writing to disk.  Size of returned array must contain
+	 *  number of integers that corresponds to number of args to one of the
+	 *  constructors.
+	 */
+	public int[] serialize() {
+		int data[] = new int[2];
+
+		data[0] = tableId;
+		data[1] = pgNo;
+
+		return data;
+	}
+
+}
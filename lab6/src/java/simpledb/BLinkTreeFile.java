@@ -0,0 +1,675 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BLinkTreeFile is a B+ tree index in the style of Lehman and Yao's B-link
+ * trees: every page links to its right sibling and stores a high key, the
+ * largest key it may hold. A search that reaches a page whose high key is
+ * below the search key knows that the page was split after its parent was
+ * read, and simply moves right along the link. So readers never need more
+ * than the latch of the one page they are looking at, and never wait for a
+ * split to finish, not even at the root.
+ * <p>
+ * Locking: leaves are locked like the pages of any other file, until the
+ * transaction ends. Internal pages and the meta page are not locked at all,
+ * only latched (see {@link BufferPool#fetchPage(PageId)}) while a page is
+ * read or changed. A transaction that splits a leaf only links the new leaf
+ * to its left neighbour; the entry in the parent is added when the
+ * transaction commits, after both leaves are on disk (see
+ * {@link #completeSplits(TransactionId, boolean)}). So the internal
+ * pages only ever point to committed leaves, an abort just discards the
+ * leaves as for any other file, and internal pages are written to disk
+ * right away, in an order that keeps the tree on disk searchable at all
+ * times. Changes to the internal pages are serialized by a per-file mutex
+ * that readers never take.
+ * <p>
+ * A transaction that reads a snapshot can't use the internal pages, which
+ * always show the latest structure; it walks its snapshot of the leaves
+ * from the left-most one. Pages are not merged when they become empty.
+ *
+ * @see BLinkPage
+ * @see BTreeFile
+ */
+public class BLinkTreeFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	private volatile boolean initialized = false;
+	// serializes changes to the internal pages and the meta page
+	private final Object smoLock = new Object();
+	// leaves split by each running transaction whose parent entries are still missing
+	private final ConcurrentHashMap<TransactionId, ArrayList<Split>> splits =
+			new ConcurrentHashMap<TransactionId, ArrayList<Split>>();
+	// the files in which each running transaction has splits pending, so that
+	// they are completed whether or not the leaves are still in the buffer pool
+	private static final ConcurrentHashMap<TransactionId, Set<BLinkTreeFile>> pending =
+			new ConcurrentHashMap<TransactionId, Set<BLinkTreeFile>>();
+
+	/**
+	 * inner class, a page right split off the page left, with separator
+	 * the new high key of left.
+	 */
+	private static class Split {
+		final BLinkPageId left;
+		final Field separator;
+		final BLinkPageId right;
+
+		Split(BLinkPageId left, Field separator, BLinkPageId right) {
+			this.left = left;
+			this.separator = separator;
+			this.right = right;
+		}
+	}
+
+	/**
+	 * Constructs a B-link tree backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this tree
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BLinkTreeFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this BLinkTreeFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this BLinkTreeFile, the hash of
+	 * the absolute file name of the file underlying it.
+	 *
+	 * @return an ID uniquely identifying this BLinkTreeFile.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 *
+	 * @return TupleDesc of this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that this tree is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Returns the number of pages in this BLinkTreeFile, including the meta page.
+	 */
+	public int numPages() {
+		// we only ever write full pages
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * Read a page from the file on disk.
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		try {
+			RandomAccessFile rf = new RandomAccessFile(f, "r");
+			try {
+				rf.seek((long) pid.getPageNumber() * BufferPool.getPageSize());
+				rf.readFully(data);
+			} finally {
+				rf.close();
+			}
+			return new BLinkPage((BLinkPageId) pid, data);
+		} catch (EOFException e) {
+			throw new IllegalArgumentException("Read past end of table");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a page to disk.
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		try {
+			rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			rf.write(page.getPageData());
+		} finally {
+			rf.close();
+		}
+	}
+
+	/**
+	 * @return the id of the left-most leaf, which is never split off another page
+	 */
+	public BLinkPageId getFirstLeafId() {
+		return new BLinkPageId(tableid, 1);
+	}
+
+	/**
+	 * @return the id of the meta page, which holds the page number of the root
+	 */
+	public BLinkPageId getMetaPageId() {
+		return new BLinkPageId(tableid, 0);
+	}
+
+	/**
+	 * Create the meta page and an empty root leaf if the file is empty.
+	 */
+	private void init() throws IOException {
+		if (initialized) {
+			return;
+		}
+		synchronized (this) {
+			if (f.length() == 0) {
+				BLinkPage meta = new BLinkPage(getMetaPageId(), BLinkPage.createEmptyPageData());
+				meta.setRootPageNo(1);
+				writePage(meta);
+				writePage(new BLinkPage(new BLinkPageId(tableid, 1), BLinkPage.createEmptyPageData()));
+			}
+			initialized = true;
+		}
+	}
+
+	/**
+	 * Append an empty page to the file. Must not be called while holding a page latch.
+	 *
+	 * @return the id of the new page
+	 */
+	private BLinkPageId allocatePage() throws IOException {
+		init();
+		synchronized (this) {
+			BLinkPageId pid = new BLinkPageId(tableid, numPages());
+			writePage(new BLinkPage(pid, BLinkPage.createEmptyPageData()));
+			return pid;
+		}
+	}
+
+	/**
+	 * Get a page without locking it; it must be latched while it is read or
+	 * changed, see {@link BufferPool#fetchPage(PageId)}.
+	 */
+	private BLinkPage latchable(BLinkPageId pid) throws DbException {
+		try {
+			init();
+		} catch (IOException e) {
+			throw new DbException("can't create B-link tree: " + e.getMessage());
+		}
+		return (BLinkPage) Database.getBufferPool().fetchPage(pid);
+	}
+
+	/**
+	 * Search the tree for key f down to the given level, latching one page at
+	 * a time and moving right wherever a page was split after its parent was
+	 * read.
+	 *
+	 * @param f - the key to search for, or null for the left-most page
+	 * @param level - the level to stop at, 0 for the leaves
+	 * @return the id of the left-most page of the level that may hold key f
+	 */
+	BLinkPageId descend(Field f, int level) throws DbException {
+		BLinkPage meta = latchable(getMetaPageId());
+		BLinkPageId pid;
+		synchronized (meta) {
+			pid = new BLinkPageId(tableid, meta.getRootPageNo());
+		}
+		while (true) {
+			BLinkPage page = latchable(pid);
+			synchronized (page) {
+				if (page.getLevel() < level) {
+					throw new DbException("descend: tree has no level " + level);
+				}
+				if (!page.covers(f)) {
+					pid = page.getRightLink();
+				} else if (page.getLevel() == level) {
+					return pid;
+				} else {
+					pid = page.findChild(f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lock the leaf pid with permission perm, and then the leaves to its right
+	 * until one covers key f. The leaves passed on the way are unlocked again,
+	 * unless tid had locked them before.
+	 *
+	 * @return the locked leaf that may hold key f
+	 */
+	BLinkPage lockLeaf(TransactionId tid, BLinkPageId pid, Field f, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		while (true) {
+			boolean held = bp.holdsLock(tid, pid);
+			BLinkPage leaf = (BLinkPage) bp.getPage(tid, pid, perm);
+			BLinkPageId next;
+			synchronized (leaf) {
+				if (leaf.covers(f)) {
+					return leaf;
+				}
+				next = leaf.getRightLink();
+			}
+			if (!held) {
+				bp.releasePage(tid, pid);
+			}
+			pid = next;
+		}
+	}
+
+	/**
+	 * Insert a tuple into this BLinkTreeFile, keeping the tuples in sorted order.
+	 * Locks the leaf the tuple goes to and splits it if it is full. The new
+	 * leaf is only linked to the old one until tid commits.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		BLinkPage leaf = lockLeaf(tid, descend(key, 0), key, Permissions.READ_WRITE);
+		BufferPool bp = Database.getBufferPool();
+		ArrayList<Page> dirtypages = new ArrayList<Page>();
+		BLinkPageId rightId = null;
+		while (true) {
+			boolean full;
+			synchronized (leaf) {
+				full = leaf.isFull();
+			}
+			if (full && rightId == null) {
+				// the leaf is locked by tid, so it stays full
+				rightId = allocatePage();
+			}
+			// lock the new leaf before latching anything, a new page is never locked by anyone else
+			BLinkPage right = full ? (BLinkPage) bp.getPage(tid, rightId, Permissions.READ_WRITE) : null;
+			Field separator;
+			synchronized (leaf) {
+				if (!bp.isCurrent(leaf)) {	// evicted meanwhile, try again
+					leaf = (BLinkPage) bp.getPage(tid, leaf.getId(), Permissions.READ_WRITE);
+					continue;
+				}
+				if (!full) {
+					leaf.insertTuple(t);
+					leaf.markDirty(true, tid);
+					dirtypages.add(leaf);
+					return dirtypages;
+				}
+				synchronized (right) {
+					if (!bp.isCurrent(right)) {
+						continue;
+					}
+					separator = leaf.splitInto(right);
+					if (leaf.covers(t.getField(keyField))) {
+						leaf.insertTuple(t);
+					} else {
+						right.insertTuple(t);
+					}
+					leaf.markDirty(true, tid);
+					right.markDirty(true, tid);
+					dirtypages.add(leaf);
+					dirtypages.add(right);
+				}
+			}
+			splits.computeIfAbsent(tid, k -> new ArrayList<Split>()).add(new Split(leaf.getId(), separator, rightId));
+			pending.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(this);
+			return dirtypages;
+		}
+	}
+
+	/**
+	 * Complete the splits of tid in every B-link tree it split a leaf of.
+	 * Called by the BufferPool once the pages of tid are written, or
+	 * discarded, and before its locks are released.
+	 */
+	public static void completeSplits(TransactionId tid, boolean commit) throws IOException {
+		Set<BLinkTreeFile> files = pending.remove(tid);
+		if (files != null) {
+			for (BLinkTreeFile file : files) {
+				file.transactionComplete(tid, commit);
+			}
+		}
+	}
+
+	/**
+	 * Add the parent entries of the leaves tid split if it commits, or forget
+	 * about them if it aborts.
+	 */
+	public void transactionComplete(TransactionId tid, boolean commit) throws IOException {
+		ArrayList<Split> list = splits.remove(tid);
+		if (!commit || list == null) {
+			return;
+		}
+		try {
+			// in the order of the splits, so that the left page of each has an entry already
+			for (Split split : list) {
+				insertEntry(split.left, 0, split.separator, split.right);
+			}
+		} catch (DbException e) {
+			throw new IOException("can't add split of " + tid + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Add the entry for the page right, split off the page left at the given
+	 * level, to the parent of left. Splits the parent if it is full, and so on
+	 * up to the root. If left was the root, a new root is created. Each page
+	 * is written to disk as soon as it is changed, a new page before the page
+	 * that points to it, so readers and the tree on disk always find every page
+	 * through either its parent or the right link of its left neighbour.
+	 *
+	 * @param separator - the high key of left
+	 */
+	private void insertEntry(BLinkPageId left, int level, Field separator, BLinkPageId right)
+			throws DbException, IOException {
+		BufferPool bp = Database.getBufferPool();
+		synchronized (smoLock) {
+			while (true) {
+				BLinkPageId parentId = findParent(left, level + 1, separator);
+				if (parentId == null) {
+					newRoot(left, level + 1, separator, right);
+					return;
+				}
+
+				BLinkPage parent = latchable(parentId);
+				boolean full;
+				synchronized (parent) {
+					full = parent.isFull();
+				}
+				// only this thread changes internal pages, so parent stays full
+				BLinkPageId siblingId = full ? allocatePage() : null;
+				Field up = null;
+				while (true) {
+					parent = latchable(parentId);
+					BLinkPage sibling = full ? latchable(siblingId) : null;
+					synchronized (parent) {
+						if (!bp.isCurrent(parent)) {	// evicted meanwhile, try again
+							continue;
+						}
+						if (!full) {
+							parent.insertEntry(parent.indexOfChild(left.getPageNumber()), separator, right);
+							writeThrough(parent);
+							return;
+						}
+						synchronized (sibling) {
+							if (!bp.isCurrent(sibling)) {
+								continue;
+							}
+							up = parent.splitInto(sibling);
+							// the entry goes next to the pointer to left, in either half
+							BLinkPage target = parent.indexOfChild(left.getPageNumber()) >= 0 ? parent : sibling;
+							target.insertEntry(target.indexOfChild(left.getPageNumber()), separator, right);
+							writeThrough(sibling);
+							writeThrough(parent);
+						}
+					}
+					break;
+				}
+				left = parentId;
+				right = siblingId;
+				separator = up;
+				level++;
+			}
+		}
+	}
+
+	/**
+	 * Write a changed internal page or the meta page to disk, under its latch.
+	 * These pages are never dirty in the BufferPool.
+	 */
+	private void writeThrough(BLinkPage page) throws IOException {
+		writePage(page);
+		page.setBeforeImage();
+	}
+
+	/**
+	 * Find the page at the given level that holds the pointer to child.
+	 * Must be called holding the structure modification mutex.
+	 *
+	 * @param f - the high key of child
+	 * @return the id of the parent page, or null if child is the root
+	 */
+	private BLinkPageId findParent(BLinkPageId child, int level, Field f) throws DbException {
+		BLinkPage meta = latchable(getMetaPageId());
+		BLinkPageId rootId;
+		synchronized (meta) {
+			rootId = new BLinkPageId(tableid, meta.getRootPageNo());
+		}
+		BLinkPage root = latchable(rootId);
+		synchronized (root) {
+			if (root.getLevel() < level) {
+				return null;
+			}
+		}
+		// the entry of child is on the left-most page that may hold f, or to its right
+		BLinkPageId pid = descend(f, level);
+		while (pid != null) {
+			BLinkPage page = latchable(pid);
+			synchronized (page) {
+				if (page.indexOfChild(child.getPageNumber()) >= 0) {
+					return pid;
+				}
+				pid = page.getRightLink();
+			}
+		}
+		throw new DbException("findParent: no parent for page " + child);
+	}
+
+	/**
+	 * Create a new root at the given level above the root left and the page
+	 * right just split off it, and point the meta page to it.
+	 */
+	private void newRoot(BLinkPageId left, int level, Field separator, BLinkPageId right)
+			throws DbException, IOException {
+		BufferPool bp = Database.getBufferPool();
+		BLinkPageId rootId = allocatePage();
+		while (true) {
+			BLinkPage root = latchable(rootId);
+			synchronized (root) {
+				if (!bp.isCurrent(root)) {
+					continue;
+				}
+				root.initRoot(level, left, separator, right);
+				writeThrough(root);
+				break;
+			}
+		}
+		while (true) {
+			BLinkPage meta = latchable(getMetaPageId());
+			synchronized (meta) {
+				if (!bp.isCurrent(meta)) {
+					continue;
+				}
+				meta.setRootPageNo(rootId.getPageNumber());
+				writeThrough(meta);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Delete a tuple from this BLinkTreeFile. Locks the leaf the tuple is on;
+	 * the leaf is not merged with its siblings if it becomes empty.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || rid.getPageId().getTableId() != tableid) {
+			throw new DbException("tuple not a member of this table");
+		}
+		BufferPool bp = Database.getBufferPool();
+		Field key = t.getField(keyField);
+		// the tuple is on the leaf of its record id, or to its right if that was split since
+		BLinkPageId pid = (BLinkPageId) rid.getPageId();
+		while (pid != null) {
+			BLinkPage leaf = (BLinkPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+			synchronized (leaf) {
+				if (!bp.isCurrent(leaf)) {
+					continue;
+				}
+				int i = leaf.indexOf(t);
+				if (i >= 0) {
+					leaf.deleteTuple(i);
+					leaf.markDirty(true, tid);
+					return new ArrayList<Page>(Arrays.asList(leaf));
+				}
+				pid = leaf.covers(key) ? null : leaf.getRightLink();
+			}
+		}
+		throw new DbException("deleteTuple: can't find the tuple");
+	}
+
+	/**
+	 * Get an iterator over all the tuples of this file, in key order, on
+	 * behalf of the specified transaction. Locks the leaves that are read.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator over all the tuples
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new BLinkTreeIterator(this, tid, null);
+	}
+
+	/**
+	 * Get the tuples whose key satisfies the predicate, in key order, on
+	 * behalf of the specified transaction. Locks the leaves that are read.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new BLinkTreeIterator(this, tid, ipred);
+	}
+}
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a
+ * BLinkTreeFile, optionally filtered by an index predicate.
+ */
+class BLinkTreeIterator extends AbstractDbFileIterator {
+
+	private final BLinkTreeFile f;
+	private final TransactionId tid;
+	private final IndexPredicate ipred;
+
+	private Iterator<Tuple> it = null;
+	private BLinkPageId nextp = null;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BLinkTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 */
+	public BLinkTreeIterator(BLinkTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator on the first leaf that may hold a matching tuple
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		Field key = null;
+		if (ipred != null && (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ)) {
+			key = ipred.getField();
+		}
+		BufferPool bp = Database.getBufferPool();
+		if (bp.readsSnapshot(tid)) {
+			if (f.numPages() == 0) {	// nothing was ever inserted
+				it = Collections.<Tuple>emptyList().iterator();
+				nextp = null;
+				return;
+			}
+			// the snapshot of each leaf links to the snapshot of the next
+			load((BLinkPage) bp.getPage(tid, f.getFirstLeafId(), Permissions.READ_ONLY));
+		} else {
+			load(f.lockLeaf(tid, f.descend(key, 0), key, Permissions.READ_ONLY));
+		}
+	}
+
+	// the leaf is locked, so it is not split while its tuples are read
+	private void load(BLinkPage leaf) {
+		synchronized (leaf) {
+			it = leaf.getTuples().iterator();
+			nextp = leaf.getRightLink();
+		}
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples matching
+	 * the predicate or from the next page by following the right link.
+	 *
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+					return t;
+				} else if (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+					// the keys only get larger from here
+					return null;
+				} else if (ipred.getOp() == Op.EQUALS &&
+						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+					return null;
+				}
+			}
+			if (nextp == null) {
+				return null;
+			}
+			load((BLinkPage) Database.getBufferPool().getPage(tid, nextp, Permissions.READ_ONLY));
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+	}
+}
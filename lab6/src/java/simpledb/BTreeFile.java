@@ -2,6 +2,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.Predicate.Op;
 
@@ -25,6 +28,12 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private int keyField;
 
+	// the latches of the root pointer and the internal pages, see findLeafPage
+	private final ConcurrentHashMap<BTreePageId, ReentrantReadWriteLock> latches =
+			new ConcurrentHashMap<BTreePageId, ReentrantReadWriteLock>();
+	// the latches held by the current thread, in the order they were taken
+	private final ThreadLocal<ArrayList<Lock>> latched = ThreadLocal.withInitial(ArrayList::new);
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 *
@@ -176,34 +185,123 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-	 * leaf node with permission perm.
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most
+	 * page possibly containing the key field f. It locks the leaf node with
+	 * permission perm.
+	 *
+	 * The internal nodes and the root pointer are not locked, only latched for
+	 * reading while the search passes them (latch crabbing): the latch on a node
+	 * is released as soon as its child is latched, and the latch on the parent of
+	 * the leaf as soon as the leaf is locked. The search never waits for a lock
+	 * while it holds a latch: if the leaf is locked by another transaction, it
+	 * releases its latches, waits for the lock and starts over, since the tree
+	 * may have changed in the meantime.
 	 *
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * tree has no root yet
 	 *
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
 									   Field f)
-			throws DbException, TransactionAbortedException {
+			throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
+		init();
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(bp.readsSnapshot(tid)) {
+			// the pages of a snapshot never change, no latches needed
+			BTreePageId pid = ((BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY)).getRootId();
+			while(pid != null && pid.pgcateg() != BTreePageId.LEAF) {
+				pid = childFor((BTreeInternalPage) bp.getPage(tid, pid, Permissions.READ_ONLY), f);
+			}
+			return pid == null ? null : (BTreeLeafPage) bp.getPage(tid, pid, perm);
+		}
+
+		// a leaf tid only locked to wait for it, unlocked if the search ends up elsewhere
+		BTreePageId waited = null;
+		try {
+			while(true) {
+				latch(rootPtrId, false);
+				Page parent = bp.fetchPage(rootPtrId);
+				BTreePageId pid = ((BTreeRootPtrPage) parent).getRootId();
+				if(pid == null) {
+					return null;
+				}
+				while(pid.pgcateg() != BTreePageId.LEAF) {
+					latch(pid, false);
+					unlatch(1);
+					parent = bp.fetchPage(pid);
+					pid = childFor((BTreeInternalPage) parent, f);
+				}
 
-		if (pid.pgcateg() == BTreePageId.LEAF) {	// base case, leaf page
-			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+				// base case, leaf page
+				boolean held = bp.holdsLock(tid, pid);
+				Page leaf = bp.tryGetPage(tid, pid, perm);
+				if(leaf == null) {
+					unlatchAll();
+					if(waited != null) {
+						bp.releasePage(tid, waited);
+						waited = null;
+					}
+					bp.getPage(tid, pid, perm);
+					if(!held) {
+						waited = pid;
+					}
+					continue;
+				}
+				// an abort discards the pages it dirtied, the parent read may be gone
+				boolean current = bp.isCurrent(parent);
+				unlatchAll();
+				if(!current) {
+					if(!held) {
+						bp.releasePage(tid, pid);
+					}
+					continue;
+				}
+				if(waited != null && !waited.equals(pid)) {
+					bp.releasePage(tid, waited);
+				}
+				waited = null;
+				return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+			}
+		}
+		finally {
+			unlatchAll();
 		}
+	}
 
-		// internal node, READ_ONLY
-		BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		Iterator<BTreeEntry> iter = internalPage.iterator();
+	/**
+	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
+	 * Used by the BTreeFile iterator.
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
+	 *
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @return the left-most leaf page possibly containing the key field f, or null
+	 *
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		try {
+			return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f);
+		} catch (IOException e) {
+			throw new DbException(e.getMessage());
+		}
+	}
 
+	/**
+	 * @return the id of the child of page on the way to the left-most leaf page
+	 * possibly containing the key field f, or to the left-most leaf page if f is null
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		Iterator<BTreeEntry> iter = page.iterator();
 		BTreeEntry cur;
 		try {
 			cur = iter.next();
@@ -212,7 +310,7 @@ public class BTreeFile implements DbFile {
 		}
 
 		if (f == null) {	// If f is null, it finds the left-most leaf page
-			return findLeafPage(tid, dirtypages, cur.getLeftChild(), perm, f);
+			return cur.getLeftChild();
 		}
 
 		while (iter.hasNext() && cur.getKey().compare(Op.LESS_THAN, f)) {
@@ -220,29 +318,53 @@ public class BTreeFile implements DbFile {
 		}
 
 		if (cur.getKey().compare(Op.LESS_THAN, f)) {
-			return findLeafPage(tid, dirtypages, cur.getRightChild(), perm, f);
+			return cur.getRightChild();
 		} else {	// if multiple results, return the leftmost one.
-			return findLeafPage(tid, dirtypages, cur.getLeftChild(), perm, f);
+			return cur.getLeftChild();
 		}
+	}
 
+	/**
+	 * Latch page pid of this file, for writing if exclusive is set. Latches are
+	 * taken top-down, from the root pointer towards the leaves, and are kept in
+	 * the order they were taken until {@link #unlatch(int)} or {@link #unlatchAll()}.
+	 */
+	private void latch(BTreePageId pid, boolean exclusive) {
+		ReentrantReadWriteLock latch = latches.computeIfAbsent(pid, k -> new ReentrantReadWriteLock());
+		Lock l = exclusive ? latch.writeLock() : latch.readLock();
+		l.lock();
+		latched.get().add(l);
 	}
 
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
-	 *
-	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
-	 * @param perm - the permissions with which to lock the leaf page
-	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
-	 *
+	 * Release the latches taken first, the ancestors of the pages latched last,
+	 * until only keep latches are held.
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-							   Field f)
-			throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+	private void unlatch(int keep) {
+		ArrayList<Lock> held = latched.get();
+		while(held.size() > keep) {
+			held.remove(0).unlock();
+		}
+	}
+
+	private void unlatchAll() {
+		unlatch(0);
+	}
+
+	/**
+	 * @return true if an insert into page (or a delete from it) can't make it split
+	 * (or merge), so that a split (or merge) of its child won't change its parent
+	 */
+	private static boolean isSafe(BTreeInternalPage page, boolean insert) {
+		if(insert) {
+			return page.getNumEmptySlots() > 0;
+		}
+		if(page.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+			// the root is only replaced when it loses its last entry
+			return page.getNumEntries() > 1;
+		}
+		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
+		return page.getNumEmptySlots() < maxEmptySlots;
 	}
 
 	/**
@@ -413,7 +535,9 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Method to encapsulate the process of getting a parent page ready to accept new entries.
 	 * This may mean creating a page to become the new root of the tree, splitting the existing
-	 * parent page if there are no empty slots, or simply locking and returning the existing parent page.
+	 * parent page if there are no empty slots, or simply returning the existing parent page.
+	 * The parent (or the root pointer) must have been latched and locked on the way down, it
+	 * is taken from dirtypages.
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -438,8 +562,7 @@ public class BTreeFile implements DbFile {
 			parent = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
 			// update the root pointer
-			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
-					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) latched(dirtypages, parentId);
 			BTreePageId prevRootId = rootPtr.getRootId(); //save prev id before overwriting.
 			rootPtr.setRootId(parent.getId());
 
@@ -448,9 +571,7 @@ public class BTreeFile implements DbFile {
 			prevRootPage.setParentId(parent.getId());
 		}
 		else {
-			// lock the parent page
-			parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId,
-					Permissions.READ_WRITE);
+			parent = (BTreeInternalPage) latched(dirtypages, parentId);
 		}
 
 		// split the parent if needed
@@ -462,6 +583,19 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * @return the page pid from dirtypages, where the search for a split or merge put the
+	 * pages it latched and locked for writing
+	 * @see #latchForUpdate(TransactionId, HashMap, Field, BTreeLeafPage)
+	 */
+	private static Page latched(HashMap<PageId, Page> dirtypages, BTreePageId pid) throws DbException {
+		Page p = dirtypages.get(pid);
+		if(p == null) {
+			throw new DbException("page " + pid.getPageNumber() + " was not latched for the split or merge");
+		}
+		return p;
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 *
@@ -558,32 +692,211 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Field field = t.getField(keyField);
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		// find and lock the left-most leaf page corresponding to the key field. If it
+		// is full, search again with write latches to split it
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, field);
+		try {
+			if(leafPage == null || leafPage.getNumEmptySlots() == 0) {
+				leafPage = latchForUpdate(tid, dirtypages, field, null);
+			}
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, field);
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
 		}
-
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+		catch(TransactionAbortedException e) {
+			discardPages(dirtypages);
+			throw e;
+		}
+		finally {
+			unlatchAll();
 		}
-
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Search the tree for a split or a merge: latch the path from the root pointer down to
+	 * the leaf page for writing, and release the latches on the ancestors of every internal
+	 * page that is safe, i.e. that a split (or merge) of its child can't make split (or
+	 * merge) in turn. The pages still latched when the leaf is reached are the ones the split
+	 * or merge may change; they are locked with read-write permission and put in dirtypages,
+	 * where getParentWithEmptySlots, handleMinOccupancyPage and deleteParentEntry take them
+	 * from. The latches are held until the caller calls unlatchAll.
+	 *
+	 * No lock is waited for while latches are held: if a page is locked by another
+	 * transaction, the latches are released, the lock is waited for, and the search
+	 * starts over. Only the siblings a merge or redistribution takes from are locked
+	 * later, under the latches; such a wait times out like any other lock wait, so
+	 * latches and locks can't deadlock for good.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param field - the key of the tuple to insert, for a split
+	 * @param leaf - the leaf page below minimum occupancy for a merge, which tid has locked
+	 * with read-write permission. Null for a split
+	 * @return the leaf page, locked with read-write permission
+	 */
+	private BTreeLeafPage latchForUpdate(TransactionId tid, HashMap<PageId, Page> dirtypages,
+										 Field field, BTreeLeafPage leaf)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean insert = leaf == null;
+		while(true) {
+			// a merge follows the parent pointers of the leaf, which may be stale
+			ArrayList<BTreePageId> route = insert ? null : routeTo(leaf);
+			int step = 0;
+			// the pages latched for the split or merge, top-down
+			ArrayList<Page> path = new ArrayList<Page>();
+			latch(rootPtrId, true);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.fetchPage(rootPtrId);
+			path.add(rootPtr);
+			BTreePageId pid = rootPtr.getRootId();
+			if(pid == null) {
+				// the root has just been created, so set the root pointer to point to it
+				if(!lockForUpdate(tid, dirtypages, rootPtr)) {
+					continue;
+				}
+				pid = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr.setRootId(pid);
+			}
+			while(pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+				if(route != null && !pid.equals(route.get(step++))) {
+					pid = null;
+					break;
+				}
+				latch(pid, true);
+				BTreeInternalPage page = (BTreeInternalPage) bp.fetchPage(pid);
+				if(isSafe(page, insert)) {
+					unlatch(1);
+					path.clear();
+				}
+				path.add(page);
+				pid = insert ? childFor(page, field) : route.get(step);
+				if(!insert && !isChild(page, pid)) {
+					pid = null;
+				}
+			}
+			if(pid == null || (!insert && !pid.equals(leaf.getId()))) {
+				// a split or merge moved the leaf meanwhile, follow its parent pointers again
+				unlatchAll();
+				continue;
+			}
+
+			if(insert) {
+				boolean held = bp.holdsLock(tid, pid);
+				Page locked = bp.tryGetPage(tid, pid, Permissions.READ_WRITE);
+				if(locked == null) {
+					unlatchAll();
+					bp.getPage(tid, pid, Permissions.READ_WRITE);
+					continue;
+				}
+				if(!held && !bp.isCurrent(path.get(path.size() - 1))) {
+					unlatchAll();
+					bp.releasePage(tid, pid);
+					continue;
+				}
+				leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+				if(leaf.getNumEmptySlots() > 0) {
+					// room was made meanwhile, no split needed
+					unlatchAll();
+					return leaf;
+				}
+			}
+
+			boolean locked = true;
+			for(Page p : path) {
+				if(!lockForUpdate(tid, dirtypages, p)) {
+					locked = false;
+					break;
+				}
+			}
+			if(locked) {
+				return leaf;
+			}
+		}
+	}
+
+	/**
+	 * Throw away the changes of a split or merge that tid gave up halfway. They can't wait for
+	 * the abort of tid: once the latches are released, other transactions would find the pages
+	 * half changed.
+	 */
+	private void discardPages(HashMap<PageId, Page> dirtypages) {
+		for(PageId pid : dirtypages.keySet()) {
+			Database.getBufferPool().discardPage(pid);
+		}
+	}
+
+	/**
+	 * Lock a page latched for writing with read-write permission, mark it dirty and put
+	 * it in dirtypages. If the page is locked by another transaction, release all latches
+	 * and wait for the lock.
+	 * @return false if the latches were released, or if the page was evicted or discarded
+	 * since it was latched, and the search has to start over
+	 */
+	private boolean lockForUpdate(TransactionId tid, HashMap<PageId, Page> dirtypages, Page p)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		if(dirtypages.get(p.getId()) == p) {
+			return true;
+		}
+		if(bp.tryGetPage(tid, p.getId(), Permissions.READ_WRITE) == null) {
+			unlatchAll();
+			bp.getPage(tid, p.getId(), Permissions.READ_WRITE);
+			return false;
+		}
+		synchronized(p) {
+			if(!bp.isCurrent(p)) {
+				unlatchAll();
+				return false;
+			}
+			// a dirty page can't be evicted while the split or merge goes on
+			p.markDirty(true, tid);
+		}
+		dirtypages.put(p.getId(), p);
+		return true;
+	}
+
+	/**
+	 * @return the ids of the pages from the root down to leaf, following the parent pointers
+	 * up from leaf. The parent pointers of the internal pages are read without latches, so the
+	 * route is only a guess that latchForUpdate checks on its way down.
+	 */
+	private ArrayList<BTreePageId> routeTo(BTreeLeafPage leaf) throws DbException {
+		ArrayList<BTreePageId> route = new ArrayList<BTreePageId>();
+		route.add(leaf.getId());
+		BTreePageId pid = leaf.getParentId();
+		// a stale parent pointer can't send the walk around in circles for long
+		while(pid.pgcateg() == BTreePageId.INTERNAL && route.size() <= numPages()) {
+			route.add(pid);
+			pid = ((BTreePage) Database.getBufferPool().fetchPage(pid)).getParentId();
+		}
+		Collections.reverse(route);
+		return route;
+	}
+
+	/**
+	 * @return true if pid is a child of page
+	 */
+	private static boolean isChild(BTreeInternalPage page, BTreePageId pid) {
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(e.getLeftChild().equals(pid) || e.getRightChild().equals(pid)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -610,7 +923,7 @@ public class BTreeFile implements DbFile {
 		// the same parent as the page. Find the entries in the parent corresponding to
 		// the page and siblings
 		if(parentId.pgcateg() != BTreePageId.ROOT_PTR) {
-			parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			parent = (BTreeInternalPage) latched(dirtypages, parentId);
 			Iterator<BTreeEntry> ite = parent.iterator();
 			while(ite.hasNext()) {
 				BTreeEntry e = ite.next();
@@ -760,6 +1073,7 @@ public class BTreeFile implements DbFile {
 
 		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
+			latch(leftSiblingId, true);
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
@@ -771,6 +1085,7 @@ public class BTreeFile implements DbFile {
 			}
 		}
 		else if(rightSiblingId != null) {
+			latch(rightSiblingId, true);
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
@@ -1053,7 +1368,7 @@ public class BTreeFile implements DbFile {
 			if(rootPtrId.pgcateg() != BTreePageId.ROOT_PTR) {
 				throw new DbException("attempting to delete a non-root node");
 			}
-			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) latched(dirtypages, rootPtrId);
 			leftPage.setParentId(rootPtrId);
 			rootPtr.setRootId(leftPage.getId());
 
@@ -1088,8 +1403,19 @@ public class BTreeFile implements DbFile {
 		// if the page is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) {
-			handleMinOccupancyPage(tid, dirtypages, page);
+		if(page.getNumEmptySlots() > maxEmptySlots
+				&& page.getParentId().pgcateg() != BTreePageId.ROOT_PTR) {
+			try {
+				latchForUpdate(tid, dirtypages, null, page);
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+			catch(TransactionAbortedException e) {
+				discardPages(dirtypages);
+				throw e;
+			}
+			finally {
+				unlatchAll();
+			}
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -1109,6 +1435,16 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		init();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and root page if necessary.
+	 */
+	private void init() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -1121,9 +1457,6 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -1360,11 +1693,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1445,17 +1775,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
-		it = curp.iterator();
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -13,6 +13,7 @@ import java.io.*;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn = 0;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -28,7 +29,8 @@ public class BTreeHeaderPage implements Page {
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
-	 * The format of a BTreeHeaderPage is two pointers to the next and previous
+	 * The format of a BTreeHeaderPage is the LSN of the page (see
+	 * Page.getLsn) and two pointers to the next and previous
 	 * header pages, followed by a set of bytes indicating which pages in the file
 	 * are used or available
 	 * @see BufferPool#getPageSize()
@@ -39,6 +41,8 @@ public class BTreeHeaderPage implements Page {
 		this.numSlots = getNumSlots();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		this.lsn = dis.readLong();
+
 		// Read the next and prev pointers
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
@@ -76,8 +80,8 @@ public class BTreeHeaderPage implements Page {
 	 * Computes the number of bytes in the header while saving room for pointers
 	 */
 	private static int getHeaderSize() {        
-		// pointerBytes: nextPage and prevPage pointers
-		int pointerBytes = 2 * INDEX_SIZE; 
+		// pointerBytes: LSN, nextPage and prevPage pointers
+		int pointerBytes = LSN_SIZE + 2 * INDEX_SIZE; 
 		return BufferPool.getPageSize() - pointerBytes;
 	}
 
@@ -136,6 +140,12 @@ public class BTreeHeaderPage implements Page {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		try {
+			dos.writeLong(lsn);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the next and prev pointers
 		try {
 			dos.writeInt(nextPage);
@@ -264,6 +274,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
@@ -45,7 +45,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
-	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
+	 * bytes for the LSN of the page (see Page.getLsn), the parent pointer, one
+	 * extra child pointer (a node with m entries 
 	 * has m+1 pointers to children), and the category of all child pages (either 
 	 * leaf or internal).
 	 *  Specifically, the number of entries is equal to: <p>
@@ -70,6 +71,8 @@ public class BTreeInternalPage extends BTreePage {
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		this.lsn = dis.readLong();
+
 		// Read the parent pointer
 		try {
 			Field f = Type.INT_TYPE.parse(dis);
@@ -115,11 +118,19 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
+		return maxEntries(td, keyField);
+	}
+
+	/**
+	 * @return the maximum number of entries an internal page of a tree of
+	 * tuples of the given TupleDesc, keyed on keyField, can hold
+	 */
+	static int maxEntries(TupleDesc td, int keyField) {
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
-		// extraBits are: one parent pointer, 1 byte for child page category, 
+		// extraBits are: LSN, one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
+		int extraBits = LSN_SIZE * 8 + 2 * INDEX_SIZE * 8 + 8 + 1; 
 		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
@@ -236,6 +247,12 @@ public class BTreeInternalPage extends BTreePage {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		try {
+			dos.writeLong(lsn);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// write out the parent pointer
 		try {
 			dos.writeInt(parent);
@@ -315,7 +332,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
+		int zerolen = BufferPool.getPageSize() - (LSN_SIZE + INDEX_SIZE + 1 + header.length + 
 				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
@@ -761,8 +778,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the first used slot before this one,
+					// deletions may have left empty slots in between
+					int left = entry - 1;
+					while(left > 0 && !p.isSlotUsed(left)) {
+						--left;
+					}
+					BTreePageId childId = p.getChildId(left);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -10,10 +10,11 @@ import java.io.*;
  */
 public class BTreeRootPtrPage implements Page {
 	// size of this page
-	public final static int PAGE_SIZE = 9;
+	public final static int PAGE_SIZE = LSN_SIZE + 9;
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private volatile long lsn = 0;
 
 	private BTreePageId pid;
 	private DataInputStream dis;
@@ -28,7 +29,8 @@ public class BTreeRootPtrPage implements Page {
 	 * Constructor.
 	 * Construct the BTreeRootPtrPage from a set of bytes of data read from
 	 * disk.
-	 * The format of an BTreeRootPtrPage is an integer for the page number
+	 * The format of an BTreeRootPtrPage is the LSN of the page (see
+	 * Page.getLsn), an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
 	 * of the first header page
@@ -37,6 +39,8 @@ public class BTreeRootPtrPage implements Page {
 		this.pid = id;
 		this.dis = new DataInputStream(new ByteArrayInputStream(data));
 
+		lsn = dis.readLong();
+
 		// read in the root pointer
 		root = dis.readInt();
 		rootCategory = (int) dis.readByte();
@@ -82,6 +86,12 @@ public class BTreeRootPtrPage implements Page {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
+		try{
+			dos.writeLong(lsn);
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+
 		// write out the root pointer (page number of the root page)
 		try{
 			dos.writeInt(root);
@@ -138,6 +148,14 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
@@ -0,0 +1,36 @@
+package simpledb;
+
+/**
+ * BatchOpIterator is implemented by the operators that can hand out their
+ * tuples a TupleBatch at a time, so that a plan of such operators moves
+ * about a thousand rows per call instead of one.  It extends OpIterator,
+ * and the tuples of the batches are the ones next() would return; a
+ * consumer reads an iterator through either nextBatch() or
+ * hasNext()/next(), not both.
+ * <p>
+ * A batch stays valid until the next call to nextBatch(), rewind() or
+ * close(), after which the operator may reuse it; a consumer that keeps
+ * rows longer copies them.  The consumer may narrow the selection of the
+ * batch it got.
+ */
+public interface BatchOpIterator extends OpIterator {
+
+    /**
+     * Returns the next batch of tuples, with at least one selected row.
+     *
+     * @return the next batch, or null if there are no more tuples
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+    /**
+     * @return the iterator itself if it is a BatchOpIterator, else a
+     *         BatchAdapter that reads its tuples into batches
+     */
+    public static BatchOpIterator of(OpIterator it) {
+        if (it instanceof BatchOpIterator) {
+            return (BatchOpIterator) it;
+        }
+        return new BatchAdapter(it);
+    }
+}
@@ -0,0 +1,66 @@
+package simpledb;
+
+/**
+ * Abstract class for implementing operators that work a TupleBatch at a
+ * time.  Subclasses implement <code>fetchNextBatch</code>, and
+ * BatchOperator hands out the rows of the batches to the consumers that
+ * read tuples through <code>hasNext</code> and <code>next</code>, so
+ * plans that mix batch and tuple operators still work.
+ * <p>
+ * Subclasses that override <code>rewind</code> or <code>close</code>
+ * should call the method of BatchOperator, which drops the current batch.
+ */
+public abstract class BatchOperator extends Operator implements BatchOpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient TupleBatch current = null;
+    private transient int pos = 0;
+    private transient boolean opened = false;
+
+    /**
+     * Returns the next batch of the operator, with at least one selected
+     * row, or null if the iteration is finished.
+     */
+    protected abstract TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException;
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!opened)
+            throw new IllegalStateException("Operator not yet open");
+        return fetchNextBatch();
+    }
+
+    /**
+     * Hands out the rows of the batches one by one.  Every row is a new
+     * Tuple: callers of next() may keep the tuples they get (OrderBy,
+     * the join buffers, the tests that collect results), so one Tuple
+     * can't be reused for all rows.  BatchBenchmark measures what that
+     * costs against reading the same plan a batch at a time.
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (current == null || pos == current.size()) {
+            current = fetchNextBatch();
+            pos = 0;
+            if (current == null)
+                return null;
+        }
+        return current.getTuple(pos++);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        opened = true;
+        current = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        current = null;
+    }
+
+    public void close() {
+        super.close();
+        opened = false;
+        current = null;
+    }
+}
@@ -5,6 +5,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -15,6 +16,12 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * A read-only transaction may read a snapshot instead (see
+ * {@link #beginSnapshot(TransactionId)}): it takes no locks at all and sees
+ * the database as of the last commit before the snapshot was taken, using
+ * the committed images of the pages and the older versions kept in the
+ * {@link VersionStore}.
  *
  * @Threadsafe, all fields are final
  */
@@ -27,7 +34,18 @@ public class BufferPool {
     private ConcurrentHashMap<PageId, Page> buffer;
     private int capacity;
     private LockManager lockManager;
-
+    // pages dirtied by each running transaction
+    private ConcurrentHashMap<TransactionId, Set<PageId>> dirtiedPages;
+    // pages written to disk on behalf of each running transaction
+    private ConcurrentHashMap<TransactionId, Set<PageId>> flushedPages;
+    // the data of a page as of its last update record, until the page gets
+    // a new before-image or leaves the pool
+    private ConcurrentHashMap<PageId, byte[]> loggedImages;
+    private VersionStore versions;
+    // snapshot timestamp of each transaction that reads a snapshot
+    private ConcurrentHashMap<TransactionId, Long> snapshots;
+    // commit timestamp of each transaction that is committing
+    private ConcurrentHashMap<TransactionId, Long> commitTs;
 
     /** Default number of pages passed to the constructor. This is used by
      other classes. BufferPool should use the numPages argument to the
@@ -44,6 +62,12 @@ public class BufferPool {
         lockManager = new LockManager();
         buffer = new ConcurrentHashMap<>();
         capacity = numPages;
+        dirtiedPages = new ConcurrentHashMap<>();
+        flushedPages = new ConcurrentHashMap<>();
+        loggedImages = new ConcurrentHashMap<>();
+        versions = new VersionStore();
+        snapshots = new ConcurrentHashMap<>();
+        commitTs = new ConcurrentHashMap<>();
     }
 
     public static int getPageSize() {
@@ -79,23 +103,170 @@ public class BufferPool {
             throws TransactionAbortedException, DbException {
         // some code goes here
 
+        Long snapshot = snapshots.get(tid);
+        if (snapshot != null) {
+            if (perm == Permissions.READ_WRITE) {
+                throw new DbException("transaction reads a snapshot and can't write");
+            }
+            return snapshotPage(pid, snapshot);
+        }
+
         // acquire the lock
         lockManager.acquireLock(tid, pid, perm);
 
-        if (buffer.containsKey(pid)) { // already in buffer
-            return buffer.get(pid);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions)}, but returns
+     * null instead of waiting when the lock is held by another transaction.
+     * Used by B+ trees, which must not wait for a lock while they hold page
+     * latches.
+     */
+    Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (snapshots.containsKey(tid)) {
+            return getPage(tid, pid, perm);
+        }
+        if (!lockManager.tryAcquireLock(tid, pid, perm)) {
+            return null;
+        }
+        return fetchPage(pid);
+    }
+
+    /**
+     * Let tid read a snapshot of the database from now on: its reads take
+     * no locks and see the commits that finished before this call.
+     * tid must not have read or written anything yet, and can't write.
+     * The snapshot is released by transactionComplete.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        snapshots.computeIfAbsent(tid, k -> versions.beginSnapshot());
+    }
+
+    /** Return true if tid reads a snapshot */
+    public boolean readsSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * @return the image of pid seen by the snapshot taken at ts. It is a
+     * private copy, the caller may keep it as long as it likes.
+     */
+    private Page snapshotPage(PageId pid, long ts) throws DbException {
+        // the committed image first, a commit that is being published
+        // saves the image it replaces before it changes the committed image
+        Page page = fetchPage(pid).getBeforeImage();
+        Page version = versions.getVersion(pid, ts);
+        return version != null ? version : page;
+    }
+
+    /**
+     * Get a commit timestamp for tid and save the committed images its
+     * dirty pages are about to replace, if a snapshot may still need them.
+     * Called once per commit, before any page of tid is written.
+     */
+    private void publishVersions(TransactionId tid) {
+        if (commitTs.containsKey(tid) || snapshots.containsKey(tid)) {
+            return;
+        }
+        long ts = versions.beginCommit();
+        commitTs.put(tid, ts);
+        if (!versions.isNeeded(ts)) {
+            return;
+        }
+        for (PageId pid : pagesOf(tid)) {
+            Page page = buffer.get(pid);
+            if (page != null && page.isDirty() != null) {
+                versions.addVersion(pid, page.getBeforeImage(), ts);
+            }
+        }
+    }
+
+    /**
+     * Retrieve the specified page without taking a page lock. Used by
+     * B-link trees and snapshot reads; the caller must hold the page latch
+     * (the monitor of the returned page) while it reads or changes the page,
+     * and check with {@link #isCurrent(Page)} under the latch that the page
+     * was not evicted in the meantime before changing it.
+     *
+     * @param pid the ID of the requested page
+     */
+    Page fetchPage(PageId pid) throws DbException {
+        Page page = buffer.get(pid);
+        if (page != null) { // already in buffer
+            return page;
+        }
+        return loadPage(pid);
+    }
+
+    /**
+     * Reads a missing page into the buffer. Synchronized so that concurrent
+     * misses on the same page end up with a single page object.
+     */
+    private synchronized Page loadPage(PageId pid) throws DbException {
+        Page page = buffer.get(pid);
+        if (page != null) { // loaded by another transaction meanwhile
+            return page;
         }
 
         if (buffer.size() >= capacity) {   // buffer is full, need to evict page
             evictPage();
         }
 
-        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
         buffer.put(pid, page);
 
         return page;
     }
 
+    /**
+     * @return true if page is the cached version of its page, i.e. it has not
+     * been evicted. Only meaningful while holding the page latch.
+     */
+    boolean isCurrent(Page page) {
+        return buffer.get(page.getId()) == page;
+    }
+
+    /**
+     * Lock a whole table, SLock for READ_ONLY and XLock for READ_WRITE, so
+     * that the pages of the table don't need to be locked one by one.
+     * @param wait if false, don't block when the lock can't be granted
+     * @return true if the lock was granted
+     */
+    public boolean lockTable(TransactionId tid, int tableId, Permissions perm, boolean wait)
+            throws TransactionAbortedException {
+        if (snapshots.containsKey(tid)) {
+            // a snapshot needs no locks
+            return perm == Permissions.READ_ONLY;
+        }
+        return lockManager.acquireTableLock(tid, tableId, perm, wait);
+    }
+
+    /**
+     * @return the number of page locks a transaction may hold on one table
+     * before they are escalated to a table lock
+     */
+    public int getLockEscalationThreshold() {
+        return lockManager.getEscalationThreshold();
+    }
+
+    public void setLockEscalationThreshold(int threshold) {
+        lockManager.setEscalationThreshold(threshold);
+    }
+
+    public LockManager.DeadlockPolicy getDeadlockPolicy() {
+        return lockManager.getDeadlockPolicy();
+    }
+
+    public void setDeadlockPolicy(LockManager.DeadlockPolicy policy) {
+        lockManager.setDeadlockPolicy(policy);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -143,28 +314,77 @@ public class BufferPool {
             throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        HashSet<PageId> lockedList = lockManager.getLockedPage(tid);
-        if (lockedList == null) {   // this transaction may acquire no lock
-            return;
+        if (commit) {
+            publishVersions(tid);
+        }
+        Set<PageId> pageIds = pagesOf(tid);
+        dirtiedPages.remove(tid);
+        if (commit) {
+            flushPages(pageIds, tid);
         }
-        for (PageId pid : lockedList) {
-            if (!buffer.containsKey(pid)) {
+        for (PageId pid : pageIds) {
+            Page page = buffer.get(pid);
+            if (page == null) {
                 continue;
             }
-            Page page = buffer.get(pid);
             if (commit) {
-                flushPage(pid);
-                // use current page contents as the before-image
-                // for the next transaction that modifies this page.
-                page.setBeforeImage();
-            } else if (buffer.get(pid).isDirty() != null) { // abort dirty pages
+                // flushPages above already wrote the pages tid dirtied
+                Set<PageId> flushed = flushedPages.get(tid);
+                if (flushed != null && flushed.contains(pid)) {
+                    // use current page contents as the before-image
+                    // for the next transaction that modifies this page.
+                    // Pages tid only read still hold their before-image.
+                    synchronized (page) {
+                        page.setBeforeImage();
+                        loggedImages.remove(pid);
+                    }
+                }
+            } else if (page.isDirty() != null) {
+                // abort dirty pages
                 discardPage(pid);
             }
         }
 
-        lockManager.releaseLock(tid);
+        // leaves tid split are only added to the index once they are on disk
+        BLinkTreeFile.completeSplits(tid, commit);
 
+        flushedPages.remove(tid);
+        Long ts = commitTs.remove(tid);
+        if (ts != null) {
+            versions.endCommit(ts);
+        }
+        Long snapshot = snapshots.remove(tid);
+        if (snapshot != null) {
+            versions.endSnapshot(snapshot);
+        }
+        lockManager.releaseLock(tid);
+    }
 
+    /**
+     * @return the pages tid holds a lock on or has dirtied. Pages covered by
+     * a table lock of tid are not locked one by one, so the cached pages of
+     * those tables that no other transaction dirtied are included as well.
+     */
+    private Set<PageId> pagesOf(TransactionId tid) {
+        Set<PageId> lockedList = lockManager.getLockedPage(tid);
+        Set<PageId> dirtied = dirtiedPages.get(tid);
+        Set<PageId> pageIds = new HashSet<>();
+        if (lockedList != null) {   // this transaction may acquire no lock
+            pageIds.addAll(lockedList);
+        }
+        if (dirtied != null) {
+            pageIds.addAll(dirtied);
+        }
+        Set<Integer> tableIds = lockManager.getCoveringTableLocks(tid);
+        if (!tableIds.isEmpty()) {
+            for (Page page : buffer.values()) {
+                TransactionId dirtier = page.isDirty();
+                if (tableIds.contains(page.getId().getTableId()) && (dirtier == null || dirtier.equals(tid))) {
+                    pageIds.add(page.getId());
+                }
+            }
+        }
+        return pageIds;
     }
 
     /**
@@ -198,6 +418,7 @@ public class BufferPool {
                 evictPage();
             }
             buffer.put(pid, p);
+            dirtiedBy(tid, pid);
         }
     }
 
@@ -224,9 +445,14 @@ public class BufferPool {
             p.markDirty(true, tid);
             getPage(tid, p.getId(), Permissions.READ_WRITE);
             buffer.put(p.getId(), p);
+            dirtiedBy(tid, p.getId());
         }
     }
 
+    private void dirtiedBy(TransactionId tid, PageId pid) {
+        dirtiedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -236,7 +462,7 @@ public class BufferPool {
         // done
         // not necessary for lab1
         for (PageId pid : buffer.keySet()) {
-            flushPage(pid);
+            flushPage(pid, null);
         }
     }
 
@@ -257,43 +483,114 @@ public class BufferPool {
             return;
         }
         buffer.remove(pid);
+        loggedImages.remove(pid);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
+     * @param tid the transaction the update record is logged for, or null
+     *            for the transaction that dirtied the page
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private synchronized  void flushPage(PageId pid, TransactionId tid) throws IOException {
         // done
         // not necessary for lab1
-        if (buffer.containsKey(pid)) {
-            Page page = buffer.get(pid);
+        Page page = buffer.get(pid);
+        if (page == null) {
+            return;
+        }
+        synchronized (page) {
             TransactionId dirtier = page.isDirty();
             if (dirtier != null){
-                Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-                Database.getLogFile().force();
-
                 // append an update record to the log, with
                 // a before-image and after-image.
+                logPage(page, tid == null ? dirtier : tid);
+                // write-ahead: the update record goes to disk before the page
+                Database.getLogFile().flushUpTo(page.getLsn());
+
                 page.markDirty(false, null);
                 Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                Database.getLogFile().pageWritten(pid, page.getLsn());
             }
-
         }
+    }
 
+    /**
+     * Append an update record for a dirty page on behalf of writer, and
+     * stamp the page with its LSN. The record holds the change since the
+     * previous update record of the page, or since its before-image.
+     * Call under the page latch.
+     *
+     * @return the logged page data
+     */
+    private byte[] logPage(Page page, TransactionId writer) throws IOException {
+        PageId pid = page.getId();
+        byte[] data = page.getPageData();
+        byte[] base = loggedImages.get(pid);
+        if (base == null) {
+            base = page.getBeforeImage().getPageData();
+        }
+        page.setLsn(Database.getLogFile().logWrite(writer, page, base, data));
+        loggedImages.put(pid, data);
+        flushedPages.computeIfAbsent(writer, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        return data;
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        HashSet<PageId> pageIds = lockManager.getLockedPage(tid);
-        if (pageIds == null) {  // tid may acquire no lock
+        Set<PageId> pageIds;
+        synchronized (this) {
+            publishVersions(tid);
+            pageIds = pagesOf(tid);
+        }
+        flushPages(pageIds, tid);
+    }
+
+    /**
+     * Write the given pages to disk with a single log force: the update
+     * records of all dirty pages are appended first, and the pages are only
+     * written once the log is flushed up to the last of them. The force happens
+     * outside the monitor of the buffer pool, so it can be shared with
+     * other committing transactions.
+     */
+    private void flushPages(Set<PageId> pageIds, TransactionId tid) throws IOException {
+        ArrayList<Page> logged = new ArrayList<>();
+        long lastLsn = 0;
+        synchronized (this) {
+            for (PageId pid : pageIds) {
+                Page page = buffer.get(pid);
+                if (page == null) {
+                    continue;
+                }
+                synchronized (page) {
+                    TransactionId dirtier = page.isDirty();
+                    if (dirtier != null) {
+                        logPage(page, tid == null ? dirtier : tid);
+                        lastLsn = Math.max(lastLsn, page.getLsn());
+                        logged.add(page);
+                    }
+                }
+            }
+        }
+        if (logged.isEmpty()) {
             return;
         }
-        for (PageId pid : pageIds) {
-            flushPage(pid);
+        Database.getLogFile().flushUpTo(lastLsn);
+        synchronized (this) {
+            for (int i = 0; i < logged.size(); ++i) {
+                Page page = logged.get(i);
+                synchronized (page) {
+                    if (page.isDirty() == null) {
+                        continue; // flushed by someone else in the meantime
+                    }
+                    page.markDirty(false, null);
+                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                    Database.getLogFile().pageWritten(page.getId(), page.getLsn());
+                }
+            }
         }
     }
 
@@ -311,9 +608,17 @@ public class BufferPool {
         Enumeration<PageId> iter =  buffer.keys();
         while (iter.hasMoreElements()) {
             PageId pid = iter.nextElement();
-            if (buffer.get(pid).isDirty() == null) {   // non dirty page, evict it
-                discardPage(pid);
-                return;
+            Page page = buffer.get(pid);
+            if (page == null) {
+                continue;
+            }
+            // check under the page latch, a B-link writer may be about to dirty it
+            synchronized (page) {
+                if (page.isDirty() == null) {   // non dirty page, evict it
+                    buffer.remove(pid, page);
+                    loggedImages.remove(pid);
+                    return;
+                }
             }
         }
 
@@ -175,7 +175,8 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [blink]
+                //where blink stores the table in a B-link tree keyed on the primary key
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -206,7 +207,21 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String fileType = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                DbFile tabHf;
+                if (fileType.equals("blink")) {
+                    if (primaryKey.equals("")) {
+                        System.out.println("B-link tree without primary key : " + name);
+                        System.exit(0);
+                    }
+                    tabHf = new BLinkTreeFile(new File(baseFolder+"/"+name + ".dat"), names.indexOf(primaryKey), t);
+                } else if (fileType.equals("")) {
+                    tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                } else {
+                    System.out.println("Unknown file type " + fileType);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Exchange runs each of its children on a thread of a shared ForkJoinPool
+ * and gathers the batches they hand out into a single stream, in no
+ * particular order.  The children are usually the partitions of a parallel
+ * scan (see SeqScan) with the operators that can work on a part of a table
+ * above them, like a Filter, or an Aggregate that computes partial results
+ * for another Aggregate above the exchange to combine; see
+ * LogicalPlan.physicalPlan.
+ * <p>
+ * The workers put copies of their batches into a bounded queue, so that
+ * they can't get more than a few batches ahead of the consumer.  All the
+ * children run as a part of the same transaction and take their locks
+ * as that transaction.  An exception thrown by a child is rethrown to the
+ * consumer, and close() stops the workers that are still running.
+ */
+public class Exchange extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of batches each worker may be ahead of the consumer. */
+    public static final int QUEUE_BATCHES = 4;
+
+    private static ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // put by a worker after its last batch
+    private static final Object END = new Object();
+
+    private OpIterator[] children;
+    private final TupleDesc td;
+    private transient BlockingQueue<Object> queue;
+    private transient volatile boolean stopping;
+    private transient int running = 0; // workers that have not put END yet
+
+    /**
+     * Constructor.
+     *
+     * @param children
+     *            the subplans to run in parallel, with the same TupleDesc
+     */
+    public Exchange(OpIterator[] children) {
+        this(children, null);
+    }
+
+    /**
+     * Constructor for an exchange that renames the fields of its children.
+     *
+     * @param children
+     *            the subplans to run in parallel, with the same types
+     * @param td
+     *            the TupleDesc of the output, or null for that of the children
+     */
+    public Exchange(OpIterator[] children, TupleDesc td) {
+        this.children = children;
+        this.td = td;
+    }
+
+    /**
+     * @return the number of threads exchanges run their children on
+     */
+    public static synchronized int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Run the children of exchanges opened from now on on a pool of the
+     * given number of threads.  Exchanges that are running keep the
+     * threads they have.
+     */
+    public static synchronized void setParallelism(int threads) {
+        if (threads != pool.getParallelism()) {
+            pool.shutdown();
+            pool = new ForkJoinPool(threads);
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public String getName() {
+        return "exchange(" + children.length + ")";
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        start();
+    }
+
+    private void start() {
+        BlockingQueue<Object> q = new ArrayBlockingQueue<Object>(QUEUE_BATCHES * children.length);
+        queue = q;
+        stopping = false;
+        running = children.length;
+        ForkJoinPool p = getPool();
+        for (OpIterator child : children) {
+            p.execute(() -> work(child, q));
+        }
+    }
+
+    /**
+     * Runs child and puts copies of its batches into q, then END or the
+     * exception that ended it.
+     */
+    private void work(OpIterator child, BlockingQueue<Object> q) {
+        Object last = END;
+        try {
+            child.open();
+            try {
+                BatchOpIterator input = BatchOpIterator.of(child);
+                TupleBatch batch;
+                while (!stopping && (batch = input.nextBatch()) != null) {
+                    q.put(batch.copy(getTupleDesc()));
+                }
+            } finally {
+                child.close();
+            }
+        } catch (Throwable e) {
+            last = e;
+        }
+        while (true) {
+            try {
+                q.put(last);
+                return;
+            } catch (InterruptedException e) {
+                // the consumer waits for END, keep trying
+            }
+        }
+    }
+
+    private Object take() throws DbException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for a worker");
+        }
+    }
+
+    /**
+     * Returns the next batch any of the workers put into the queue.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        while (running > 0) {
+            Object o = take();
+            if (o instanceof TupleBatch) {
+                return (TupleBatch) o;
+            }
+            --running;
+            if (o != END) {
+                rethrow((Throwable) o);
+            }
+        }
+        return null;
+    }
+
+    private static void rethrow(Throwable e) throws DbException, TransactionAbortedException {
+        if (e instanceof DbException) {
+            throw (DbException) e;
+        } else if (e instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+        DbException d = new DbException("exchange worker failed: " + e);
+        d.initCause(e);
+        throw d;
+    }
+
+    /**
+     * Tells the workers to stop and waits until they closed their children.
+     */
+    private void stop() {
+        stopping = true;
+        while (running > 0) {
+            Object o;
+            try {
+                o = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!(o instanceof TupleBatch)) {
+                --running;
+            }
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        stop();
+        start();
+    }
+
+    public void close() {
+        super.close();
+        stop();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td != null ? td : children[0].getTupleDesc();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return children;
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.children = children;
+    }
+}
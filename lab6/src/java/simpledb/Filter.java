@@ -3,13 +3,15 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select.  It filters a
+ * batch of its child at a time, narrowing the selection of the batch.
  */
-public class Filter extends Operator {
+public class Filter extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
     private final Predicate predicate;
     private OpIterator child;
+    private transient BatchOpIterator input;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -41,6 +43,7 @@ public class Filter extends Operator {
         // done
         super.open();
         child.open();
+        input = BatchOpIterator.of(child);
     }
 
     public void close() {
@@ -51,25 +54,26 @@ public class Filter extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         // done
+        super.rewind();
         child.rewind();
     }
 
     /**
-     * AbstractDbIterator.readNext implementation. Iterates over tuples from the
-     * child operator, applying the predicate to them and returning those that
-     * pass the predicate (i.e. for which the Predicate.filter() returns true.)
+     * BatchOperator.fetchNextBatch implementation. Reads batches from the
+     * child operator and narrows each down to the tuples that pass the
+     * predicate, skipping the batches none of them pass.
      *
-     * @return The next tuple that passes the filter, or null if there are no
-     *         more tuples
-     * @see Predicate#filter
+     * @return The next batch with tuples that pass the filter, or null if
+     *         there are no more tuples
+     * @see Predicate#filter(TupleBatch)
      */
-    protected Tuple fetchNext() throws NoSuchElementException,
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        // done
-        while (child.hasNext()) {
-            Tuple tp = child.next();
-            if (predicate.filter(tp)) {
-                return tp;
+        TupleBatch batch;
+        while ((batch = input.nextBatch()) != null) {
+            predicate.filter(batch);
+            if (batch.size() > 0) {
+                return batch;
             }
         }
         return null;
@@ -3,16 +3,31 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation.  It probes
+ * the hash table with a batch of the right relation at a time.
+ * <p>
+ * HashEquiJoin is a hybrid hash join.  The left relation is hashed into
+ * FANOUT partitions, each with its own hash table, and as long as it fits
+ * into the memory budget the right relation is simply probed against
+ * them.  When the budget is exceeded, the largest partition still in
+ * memory is spilled to a SpillFile, and so are the tuples of the left
+ * relation that hash to it afterwards; the tuples of the right relation
+ * that hash to a spilled partition are spilled as well instead of being
+ * probed.  The partitions that stayed in memory are joined in one pass
+ * over the right relation, and every pair of spilled partitions is then
+ * joined by another HashEquiJoin, which partitions them with another
+ * hash function if they still don't fit.  Past MAX_LEVELS of that, the
+ * keys are too skewed to be split, and the left partition is loaded a
+ * budget at a time, with a pass over the right partition for each.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
+    private final int level;
+    private int memoryTuples = MAP_SIZE;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -26,9 +41,14 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, 0);
+    }
+
+    private HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int level) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.level = level;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -49,58 +69,258 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+
+    /**
+     * Set the number of tuples of the left relation the join keeps in
+     * memory before it spills partitions to disk, MAP_SIZE by default.
+     * Takes effect when the join is opened or rewound.
+     */
+    public void setMemoryBudget(int tuples) {
+        memoryTuples = tuples;
+    }
+
+    public int getMemoryBudget() {
+        return memoryTuples;
+    }
+
+    /** The default memory budget, in tuples of the left relation. */
     public final static int MAP_SIZE = 20000;
+    /** The number of partitions the left relation is hashed into. */
+    public final static int FANOUT = 16;
+    /** The number of times spilled partitions are partitioned again. */
+    public final static int MAX_LEVELS = 3;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+    // the hash tables of the partitions, null for the spilled ones
+    transient private ArrayList<HashMap<Field, ArrayList<Tuple>>> tables;
+    transient private int[] counts;
+    transient private int inMemory;
+    transient private SpillFile[] buildFiles, probeFiles;
+    transient private boolean chunked, buildDone, probing, done;
+    // the join of the pair of spilled partitions next - 1
+    transient private HashEquiJoin spilled;
+    transient private int next;
+
+    // batches of child1 being loaded, and of child2 being probed
+    transient private BatchOpIterator input1, input2;
+    transient private TupleBatch build, probe, out;
+    transient private int buildPos, probePos;
+    transient private ArrayList<Tuple> matches;
+    transient private int matchPos;
+
+    /**
+     * @return the partition of a join key, hashed differently on every
+     *         level so that the partitions of a spilled partition split it
+     */
+    private int partition(Field key) {
+        if (tables.size() == 1) {
+            return 0;
+        }
+        int h = (key.hashCode() ^ (level * 0x27d4eb2d)) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % tables.size();
+    }
+
+    /**
+     * @return the next tuple of child1, or null if there are no more
+     */
+    private Tuple nextBuildTuple() throws DbException, TransactionAbortedException {
+        if (build == null || buildPos == build.size()) {
+            build = buildDone ? null : input1.nextBatch();
+            buildPos = 0;
+            if (build == null) {
+                buildDone = true;
+                return null;
+            }
+        }
+        return build.getTuple(buildPos++);
+    }
+
+    /**
+     * Hash all of child1 into the partitions, spilling the largest ones
+     * while the partitions in memory exceed the budget.
+     */
+    private void buildPartitions() throws DbException, TransactionAbortedException {
+        Tuple t1;
+        while ((t1 = nextBuildTuple()) != null) {
+            Field key = t1.getField(pred.getField1());
+            int p = partition(key);
+            HashMap<Field, ArrayList<Tuple>> table = tables.get(p);
+            if (table == null) {
+                buildFiles[p].add(t1);
+                continue;
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            table.computeIfAbsent(key, k -> new ArrayList<Tuple>()).add(t1);
+            counts[p]++;
+            if (++inMemory > memoryTuples) {
+                spillLargest();
+            }
+        }
+    }
+
+    private void spillLargest() throws DbException {
+        int largest = -1;
+        for (int p = 0; p < tables.size(); p++) {
+            if (tables.get(p) != null && (largest < 0 || counts[p] > counts[largest])) {
+                largest = p;
+            }
+        }
+        buildFiles[largest] = new SpillFile(child1.getTupleDesc());
+        probeFiles[largest] = new SpillFile(child2.getTupleDesc());
+        for (ArrayList<Tuple> list : tables.get(largest).values()) {
+            for (Tuple t : list) {
+                buildFiles[largest].add(t);
+            }
+        }
+        tables.set(largest, null);
+        inMemory -= counts[largest];
+        counts[largest] = 0;
+    }
+
+    /**
+     * Load the next budget of tuples of child1 into the single table of a
+     * chunked join.
+     *
+     * @return true if there were any
+     */
+    private boolean loadChunk() throws DbException, TransactionAbortedException {
+        HashMap<Field, ArrayList<Tuple>> map = tables.get(0);
+        map.clear();
+        int cnt = 0;
+        Tuple t1;
+        while (cnt < memoryTuples && (t1 = nextBuildTuple()) != null) {
+            map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<Tuple>()).add(t1);
+            cnt++;
         }
         return cnt > 0;
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        chunked = level >= MAX_LEVELS;
+        int n = chunked ? 1 : FANOUT;
+        tables = new ArrayList<HashMap<Field, ArrayList<Tuple>>>(n);
+        for (int i = 0; i < n; i++) {
+            tables.add(new HashMap<Field, ArrayList<Tuple>>());
+        }
+        counts = new int[n];
+        inMemory = 0;
+        buildFiles = new SpillFile[n];
+        probeFiles = new SpillFile[n];
+        build = null;
+        probe = null;
+        matches = null;
+        buildDone = false;
+        spilled = null;
+        next = 0;
+        probing = true;
+        if (chunked) {
+            done = !loadChunk();
+        } else {
+            buildPartitions();
+            done = false;
+        }
+    }
 
+    /** Close the join of spilled partitions and remove all spill files. */
+    private void dropSpills() {
+        if (spilled != null) {
+            spilled.close();
+            spilled = null;
+        }
+        for (SpillFile[] files : new SpillFile[][] { buildFiles, probeFiles }) {
+            if (files != null) {
+                for (SpillFile f : files) {
+                    if (f != null) {
+                        f.delete();
+                    }
+                }
+            }
+        }
+        buildFiles = null;
+        probeFiles = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        input1 = BatchOpIterator.of(child1);
+        input2 = BatchOpIterator.of(child2);
+        start();
         super.open();
     }
 
     public void close() {
         super.close();
+        dropSpills();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        this.build = null;
+        this.probe = null;
+        this.matches = null;
+        this.tables = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        dropSpills();
         child1.rewind();
         child2.rewind();
+        start();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    /**
+     * Called when child2 is done: load the next chunk of child1 in a
+     * chunked join, else go on with the spilled partitions.
+     */
+    private void endProbe() throws DbException, TransactionAbortedException {
+        matches = null;
+        if (chunked) {
+            if (buildDone) {
+                done = true;
+            } else {
+                child2.rewind();
+                done = !loadChunk();
+            }
+            return;
+        }
+        probing = false;
+    }
 
     /**
-     * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * @return the next batch of the joins of the pairs of spilled
+     *         partitions, or null if there are no more
+     */
+    private TupleBatch nextSpilledBatch() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (spilled != null) {
+                TupleBatch b = spilled.nextBatch();
+                if (b != null) {
+                    return b;
+                }
+                spilled.close();
+                spilled = null;
+                buildFiles[next - 1].delete();
+                probeFiles[next - 1].delete();
+            }
+            while (next < buildFiles.length
+                    && (buildFiles[next] == null || probeFiles[next].size() == 0)) {
+                next++;
+            }
+            if (next == buildFiles.length) {
+                return null;
+            }
+            spilled = new HashEquiJoin(pred, buildFiles[next].iterator(), probeFiles[next].iterator(), level + 1);
+            spilled.setMemoryBudget(memoryTuples);
+            spilled.open();
+            next++;
+        }
+    }
+
+    /**
+     * Returns the next batch of tuples generated by the join, or null if there
+     * are no more tuples. Batches of child2 are probed against the
+     * partitions of child1 that are in memory, and the joins of the spilled
+     * partitions follow.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -111,52 +331,50 @@ public class HashEquiJoin extends Operator {
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
      * 
-     * @return The next matching tuple.
+     * @return The next batch of matching tuples.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
-    }
-
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        if (out == null) {
+            out = new TupleBatch(comboTD, TupleBatch.DEFAULT_SIZE);
         }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+        out.clear();
+        int td1n = child1.getTupleDesc().numFields();
+        int field2 = pred.getField2();
+        while (!done && !out.isFull()) {
+            if (matches != null && matchPos < matches.size()) {
+                // set fields in combined tuple
+                int row = out.addRow();
+                out.copyRow(row, 0, matches.get(matchPos++));
+                out.copyRow(row, td1n, probe, probe.row(probePos - 1));
+            } else if (probe != null && probePos < probe.size()) {
+                Field key = probe.getField(field2, probe.row(probePos++));
+                int p = partition(key);
+                HashMap<Field, ArrayList<Tuple>> table = tables.get(p);
+                if (table != null) {
+                    matches = table.get(key);
+                } else {
+                    probeFiles[p].add(probe.getTuple(probePos - 1));
+                    matches = null;
+                }
+                matchPos = 0;
+            } else if (probing && (probe = input2.nextBatch()) != null) {
+                probePos = 0;
+                matches = null;
+            } else if (probing) {
+                endProbe();
+            } else if (out.size() > 0) {
+                // hand out the tuples of the partitions in memory first
+                break;
+            } else {
+                TupleBatch b = nextSpilledBatch();
+                if (b == null) {
+                    done = true;
+                }
+                return b;
+            }
         }
-
-        return null;
+        return out.size() == 0 ? null : out;
     }
 
     @Override
@@ -151,31 +151,48 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // done
+        return iterator(tid, 0, -1);
+    }
+
+    /**
+     * Returns an iterator over the tuples of pages firstPage up to but not
+     * including endPage, so that the pages of a file can be split among
+     * parallel scans.
+     *
+     * @param endPage the page to stop at, or -1 to read up to the end of
+     *            the file as it is while iterating
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
 
         return new DbFileIterator() {
 
             private Iterator<Tuple> iter = null;
-            private int pageIdx = 0;
+            private int pageIdx = firstPage;
+
+            private int end() {
+                int n = numPages();
+                return endPage < 0 ? n : Math.min(endPage, n);
+            }
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
+                BufferPool bp = Database.getBufferPool();
+                if (numPages() > bp.getLockEscalationThreshold()) {
+                    // the page locks would be escalated anyway, so try to lock the
+                    // whole table up front; fall back to page locks if it's busy
+                    bp.lockTable(tid, getId(), Permissions.READ_ONLY, false);
+                }
                 // Let iter be the first page's iterator.
-                pageIdx = 0;
-                PageId pid = new HeapPageId(getId(), pageIdx);
-                Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-                HeapPage hPage = (HeapPage) page;
-                iter = hPage.iterator();
+                pageIdx = firstPage;
+                iter = pageIdx < end() ? pageIterator(tid, pageIdx) : null;
             }
 
             @Override
             public boolean hasNext() throws DbException, TransactionAbortedException {
                 if (iter != null && iter.hasNext()) {
                     return true;
-                } else if (pageIdx + 1 < numPages()) {
-                    PageId pid = new HeapPageId(getId(), ++pageIdx);
-                    Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-                    HeapPage hPage = (HeapPage) page;
-                    iter = hPage.iterator();
+                } else if (iter != null && pageIdx + 1 < end()) {
+                    iter = pageIterator(tid, ++pageIdx);
                     return hasNext();
                 } else {
                     return false;
@@ -198,11 +215,21 @@ public class HeapFile implements DbFile {
             @Override
             public void close() {
                 iter = null;
-                pageIdx = 0;
+                pageIdx = firstPage;
             }
         };
 
     }
 
+    /**
+     * Returns the tuples of page pgNo that tid may see.
+     */
+    private Iterator<Tuple> pageIterator(TransactionId tid, int pgNo)
+            throws DbException, TransactionAbortedException {
+        PageId pid = new HeapPageId(getId(), pgNo);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        return page.iterator();
+    }
+
 }
 
@@ -95,7 +95,8 @@ public class HeapFileEncoder {
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+      // every page starts with its LSN, 0 for a page that was never logged
+      int nrecords = ((npagebytes - Page.LSN_SIZE) * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
       
     //  per record, we need one bit; there are nrecords per page, so we need
     // nrecords bits, i.e., ((nrecords/32)+1) integers.
@@ -201,10 +202,11 @@ public class HeapFileEncoder {
             
             // pad the rest of the page with zeroes
             
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
+            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes + Page.LSN_SIZE)); i++)
                 pageStream.writeByte(0);
             
-            // write header and body to file
+            // write LSN, header and body to file
+            os.write(new byte[Page.LSN_SIZE]);
             headerStream.flush();
             headerBAOS.writeTo(os);
             pageStream.flush();
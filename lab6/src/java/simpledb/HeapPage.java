@@ -20,16 +20,18 @@ public class HeapPage implements Page {
     final int numSlots;
     private boolean dirty;
     private TransactionId dirtyTid;
+    private volatile long lsn;
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
-     * The format of a HeapPage is a set of header bytes indicating
+     * The format of a HeapPage is the LSN of the page (see Page.getLsn),
+     * a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor(((BufferPool.getPageSize() - LSN_SIZE)*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
@@ -46,6 +48,8 @@ public class HeapPage implements Page {
         this.numSlots = getNumTuples();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
+        lsn = dis.readLong();
+
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
@@ -69,7 +73,7 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // done
-        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        return ((BufferPool.getPageSize() - LSN_SIZE) * 8) / (td.getSize() * 8 + 1);
     }
 
     /**
@@ -164,6 +168,12 @@ public class HeapPage implements Page {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
+        try {
+            dos.writeLong(lsn);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
         // create the header of the page
         for (int i=0; i<header.length; i++) {
             try {
@@ -203,7 +213,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (LSN_SIZE + header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -305,6 +315,14 @@ public class HeapPage implements Page {
         return dirtyTid;
     }
 
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
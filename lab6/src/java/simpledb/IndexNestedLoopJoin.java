@@ -0,0 +1,221 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins a relation with a table stored in a BTreeFile,
+ * on equality of a field of the relation with the key of the file.  It
+ * doesn't read the table: every key of the outer relation is looked up in
+ * the B+ tree with BTreeFile.indexIterator, so the join costs about a leaf
+ * page per outer tuple however large the table is.
+ * <p>
+ * The outer relation is probed a batch at a time.  The tuples of a batch
+ * are sorted on their keys and looked up in that order, so that
+ * consecutive probes go down the same internal pages to the same or
+ * neighbouring leaves, which are still in the buffer pool, and the tuples
+ * with the same key share a single lookup.
+ */
+public class IndexNestedLoopJoin extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child;
+    private final TransactionId tid;
+    private final int tableid;
+    private final String alias;
+    private final TupleDesc comboTD;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The equality predicate to join on; its second field must
+     *            be the key of the table
+     * @param child
+     *            Iterator for the outer relation to join
+     * @param tid
+     *            The transaction the lookups run as a part of
+     * @param tableid
+     *            The table to look the keys of the outer relation up in, a
+     *            BTreeFile
+     * @param tableAlias
+     *            The alias of the table, the prefix of its field names
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child, TransactionId tid, int tableid,
+            String tableAlias) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("can't probe an index on " + p.getOperator());
+        }
+        if (!canProbe(tableid, p.getField2())) {
+            throw new IllegalArgumentException("table " + tableid + " has no index on field " + p.getField2());
+        }
+        this.pred = p;
+        this.child = child;
+        this.tid = tid;
+        this.tableid = tableid;
+        this.alias = tableAlias;
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        String[] names = new String[td.numFields()];
+        Type[] types = new Type[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            names[i] = tableAlias + "." + td.getFieldName(i);
+            types[i] = td.getFieldType(i);
+        }
+        comboTD = TupleDesc.merge(child.getTupleDesc(), new TupleDesc(types, names));
+    }
+
+    /**
+     * @return true if the table is a BTreeFile keyed on the given field
+     */
+    public static boolean canProbe(int tableid, int field) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /** @return the id of the table the join looks keys up in */
+    public int getTableId() {
+        return tableid;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public String getJoinField1Name() {
+        return child.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return comboTD.getFieldName(child.getTupleDesc().numFields() + pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    private transient BatchOpIterator input;
+    private transient BTreeFile file;
+    // the tuples of the outer batch being probed, sorted on their keys
+    private transient ArrayList<Tuple> probes;
+    private transient int probePos;
+    // the matches of key in the table, for the outer tuple current
+    private transient ArrayList<Tuple> matches;
+    private transient Field key;
+    private transient Tuple current;
+    private transient int matchPos;
+    private transient boolean done;
+    private transient TupleBatch out;
+
+    private void start() {
+        probes = new ArrayList<Tuple>();
+        probePos = 0;
+        matches = new ArrayList<Tuple>();
+        key = null;
+        current = null;
+        done = false;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        input = BatchOpIterator.of(child);
+        file = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+        start();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        probes = null;
+        matches = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        child.rewind();
+        start();
+    }
+
+    /**
+     * Load the next batch of the outer relation to probe, in key order.
+     *
+     * @return false if there are no more
+     */
+    private boolean loadProbes() throws DbException, TransactionAbortedException {
+        TupleBatch b = input.nextBatch();
+        if (b == null) {
+            return false;
+        }
+        probes.clear();
+        for (int i = 0; i < b.size(); i++) {
+            probes.add(b.getTuple(i));
+        }
+        Collections.sort(probes, new TupleComparator(pred.getField1(), true));
+        probePos = 0;
+        return true;
+    }
+
+    /** Read the tuples of the table with the given key into matches. */
+    private void lookUp(Field k) throws DbException, TransactionAbortedException {
+        matches.clear();
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, k));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                matches.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        key = k;
+    }
+
+    /**
+     * Returns the next batch of tuples generated by the join, or null if
+     * there are no more tuples.  Like the other joins, the tuples are the
+     * concatenation of the joining tuples of the outer relation and the
+     * table.
+     *
+     * @return The next batch of matching tuples.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        if (out == null) {
+            out = new TupleBatch(comboTD, TupleBatch.DEFAULT_SIZE);
+        }
+        out.clear();
+        int n1 = child.getTupleDesc().numFields();
+        while (!done && !out.isFull()) {
+            if (current != null && matchPos < matches.size()) {
+                int row = out.addRow();
+                out.copyRow(row, 0, current);
+                out.copyRow(row, n1, matches.get(matchPos++));
+            } else if (probePos < probes.size()) {
+                current = probes.get(probePos++);
+                Field k = current.getField(pred.getField1());
+                if (key == null || !k.compare(Predicate.Op.EQUALS, key)) {
+                    lookUp(k);
+                }
+                matchPos = 0;
+            } else {
+                done = !loadProbes();
+            }
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -113,8 +113,17 @@ public class IntHistogram {
     public double avgSelectivity()
     {
         // done
-
-        return 1.0;
+        // the EQUALS selectivity of the value of a tuple drawn at random: a
+        // value in bucket b has selectivity buckets[b] / width / ntups, and
+        // is drawn with probability buckets[b] / ntups
+        if (ntups == 0) {
+            return 1.0;
+        }
+        double sel = 0;
+        for (int b : buckets) {
+            sel += (double) b * b;
+        }
+        return sel / ((int) bucketSize + 1) / ntups / ntups;
     }
     
     /**
@@ -16,7 +16,18 @@ public class IntegerAggregator implements Aggregator {
     private final Type gbFieldType;
     private final int aggField;
     private final Op op;
-    private HashMap<String, ArrayList<Integer>> gbIdxToAggList;
+    // every group keeps its aggregates as it goes, in the arrays below at
+    // its group number, which groups get in the order they are first seen
+    private int numGroups;
+    private int[] counts = new int[16];
+    private int[] sums = new int[16];
+    private int[] mins = new int[16];
+    private int[] maxs = new int[16];
+    // the group numbers of the values of an int or a string group-by field
+    private final IntGroups intGroups;
+    private final HashMap<String, Integer> stringGroups;
+    private String[] stringKeys;
+
     /**
      * Aggregate constructor
      * 
@@ -38,7 +49,59 @@ public class IntegerAggregator implements Aggregator {
         gbFieldType = gbfieldtype;
         aggField = afield;
         op = what;
-        gbIdxToAggList = new HashMap<>();
+        boolean grouped = gbField != Aggregator.NO_GROUPING;
+        intGroups = grouped && gbFieldType == Type.INT_TYPE ? new IntGroups() : null;
+        stringGroups = grouped && gbFieldType != Type.INT_TYPE ? new HashMap<>() : null;
+        stringKeys = stringGroups != null ? new String[16] : null;
+    }
+
+    /**
+     * @return the number of a new group
+     */
+    private int newGroup() {
+        if (numGroups == counts.length) {
+            int size = 2 * numGroups;
+            counts = Arrays.copyOf(counts, size);
+            sums = Arrays.copyOf(sums, size);
+            mins = Arrays.copyOf(mins, size);
+            maxs = Arrays.copyOf(maxs, size);
+            if (stringKeys != null) {
+                stringKeys = Arrays.copyOf(stringKeys, size);
+            }
+        }
+        mins[numGroups] = Integer.MAX_VALUE;
+        maxs[numGroups] = Integer.MIN_VALUE;
+        return numGroups++;
+    }
+
+    private int groupOf(int key) {
+        int g = intGroups.get(key);
+        if (g < 0) {
+            g = newGroup();
+            intGroups.put(key, g);
+        }
+        return g;
+    }
+
+    private int groupOf(String key) {
+        Integer g = stringGroups.get(key);
+        if (g == null) {
+            g = newGroup();
+            stringGroups.put(key, g);
+            stringKeys[g] = key;
+        }
+        return g;
+    }
+
+    private void add(int g, int val) {
+        counts[g]++;
+        sums[g] += val;
+        if (val < mins[g]) {
+            mins[g] = val;
+        }
+        if (val > maxs[g]) {
+            maxs[g] = val;
+        }
     }
 
     /**
@@ -50,17 +113,50 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // done
-        String key = "NoGrouping";
-        if (!(gbField == Aggregator.NO_GROUPING) && gbFieldType == Type.INT_TYPE) {
-            key = Integer.toString(((IntField)tup.getField(gbField)).getValue());
-        } else if (!(gbField == Aggregator.NO_GROUPING)) {
-            key = ((StringField)tup.getField(gbField)).getValue();
+        int g;
+        if (gbField == Aggregator.NO_GROUPING) {
+            g = numGroups == 0 ? newGroup() : 0;
+        } else if (intGroups != null) {
+            g = groupOf(((IntField) tup.getField(gbField)).getValue());
+        } else {
+            g = groupOf(((StringField) tup.getField(gbField)).getValue());
         }
-        Integer val = ((IntField)tup.getField(aggField)).getValue();
-        if (!gbIdxToAggList.containsKey(key)) {
-            gbIdxToAggList.put(key, new ArrayList<>());
+        add(g, ((IntField) tup.getField(aggField)).getValue());
+    }
+
+    /**
+     * Merge the selected rows of a batch into the aggregate, reading the
+     * fields from their columns.
+     *
+     * @param batch
+     *            the rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroups(TupleBatch batch) {
+        int[] values = batch.intColumn(aggField);
+        int n = batch.size();
+        if (gbField == Aggregator.NO_GROUPING) {
+            if (n == 0) {
+                return;
+            }
+            int g = numGroups == 0 ? newGroup() : 0;
+            for (int i = 0; i < n; i++) {
+                add(g, values[batch.row(i)]);
+            }
+            return;
+        }
+        if (intGroups != null) {
+            int[] keys = batch.intColumn(gbField);
+            for (int i = 0; i < n; i++) {
+                int r = batch.row(i);
+                add(groupOf(keys[r]), values[r]);
+            }
+        } else {
+            String[] keys = batch.stringColumn(gbField);
+            for (int i = 0; i < n; i++) {
+                int r = batch.row(i);
+                add(groupOf(keys[r]), values[r]);
+            }
         }
-        gbIdxToAggList.get(key).add(val);
     }
 
     /**
@@ -74,28 +170,23 @@ public class IntegerAggregator implements Aggregator {
     public OpIterator iterator() {
         // some code goes here
         return new OpIterator() {
-            private Iterator iter = null;
+            // the next group to return, or -1 if not open
+            private int next = -1;
+            // the values of the int group-by field by group number
+            private int[] intKeys;
 
-            private int calculate(ArrayList<Integer> list) {
-                assert !list.isEmpty() : "expect non empty list";
-                int res = 0;
+            private int calculate(int g) {
                 switch (op) {
                     case AVG:
-                        for (int i : list) {
-                            res += i;
-                        }
-                        return res / list.size();
+                        return sums[g] / counts[g];
                     case MAX:
-                        return Collections.max(list);
+                        return maxs[g];
                     case MIN:
-                        return Collections.min(list);
+                        return mins[g];
                     case SUM:
-                        for (int i : list) {
-                            res += i;
-                        }
-                        return res;
+                        return sums[g];
                     case COUNT:
-                        return list.size();
+                        return counts[g];
                     default:
                         throw new NotImplementedException();
                 }
@@ -103,30 +194,31 @@ public class IntegerAggregator implements Aggregator {
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
-                iter = gbIdxToAggList.entrySet().iterator();
+                if (intGroups != null) {
+                    intKeys = intGroups.keysByGroup(numGroups);
+                }
+                next = 0;
             }
 
             @Override
             public boolean hasNext() throws DbException, TransactionAbortedException {
-                if (iter == null)
+                if (next < 0)
                     throw new IllegalStateException("Operator not yet open");
 
-                return iter.hasNext();
+                return next < numGroups;
             }
 
             @Override
             public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                if (iter == null)
+                if (next < 0)
                     throw new IllegalStateException("Operator not yet open");
 
-                if (!iter.hasNext()) {
+                if (next >= numGroups) {
                     throw new NoSuchElementException();
                 }
 
-                HashMap.Entry pair = (HashMap.Entry) iter.next();
-                ArrayList<Integer> l = (ArrayList<Integer>) pair.getValue();
-                String key = (String) pair.getKey();
-                IntField val = new IntField(calculate(l));
+                int g = next++;
+                IntField val = new IntField(calculate(g));
 
                 TupleDesc td = getTupleDesc();
                 Tuple tp = new Tuple(td);
@@ -134,10 +226,11 @@ public class IntegerAggregator implements Aggregator {
                 if (gbField == Aggregator.NO_GROUPING) {
                     tp.setField(0, val);
                 } else if (gbFieldType == Type.INT_TYPE) {
-                    IntField bgFieldValue = new IntField(Integer.parseInt(key));
+                    IntField bgFieldValue = new IntField(intKeys[g]);
                     tp.setField(0, bgFieldValue);
                     tp.setField(1, val);
                 } else {
+                    String key = stringKeys[g];
                     StringField bgFieldValue = new StringField(key, key.length());
                     tp.setField(0, bgFieldValue);
                     tp.setField(1, val);
@@ -162,10 +255,76 @@ public class IntegerAggregator implements Aggregator {
 
             @Override
             public void close() {
-                iter = null;
+                next = -1;
             }
         };
     }
 
+    /**
+     * An open addressing hash table from the values of an int group-by
+     * field to their group numbers, so that grouping boxes nothing.
+     */
+    private static final class IntGroups implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private int[] keys = new int[32];
+        // group number + 1 of every slot, 0 if the slot is empty
+        private int[] groups = new int[32];
+        private int size;
+
+        private static int slot(int key, int mask) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        /** @return the group of key, or -1 if it has none */
+        int get(int key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); groups[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return groups[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        /** Give key, which has no group yet, the group g. */
+        void put(int key, int g) {
+            if (2 * (size + 1) > keys.length) {
+                int[] oldKeys = keys, oldGroups = groups;
+                keys = new int[2 * oldKeys.length];
+                groups = new int[2 * oldKeys.length];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldGroups[i] != 0) {
+                        insert(oldKeys[i], oldGroups[i]);
+                    }
+                }
+            }
+            insert(key, g + 1);
+            size++;
+        }
+
+        private void insert(int key, int group) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (groups[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            groups[i] = group;
+        }
+
+        /** @return the keys of the groups 0 to n - 1, by group */
+        int[] keysByGroup(int n) {
+            int[] byGroup = new int[n];
+            for (int i = 0; i < keys.length; i++) {
+                if (groups[i] != 0) {
+                    byGroup[groups[i] - 1] = keys[i];
+                }
+            }
+            return byGroup;
+        }
+    }
+
 
 }
@@ -4,15 +4,33 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Join is a block nested loops join: it loads a block of batches of the
+ * left (outer) relation, up to its memory budget in tuples, and joins the
+ * whole block with every batch of one pass over the right (inner)
+ * relation, so the inner relation is read once per block instead of once
+ * per outer tuple.  Int join fields are compared as ints, without a Field
+ * per pair of tuples.  Join can evaluate any predicate; the equality and
+ * band joins of a plan usually go to HashEquiJoin or SortMergeJoin.
  */
-public class Join extends Operator {
+public class Join extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
 
+    /** The default memory budget, in tuples of the outer relation. */
+    public final static int BLOCK_SIZE = 20000;
+
     private final JoinPredicate joinPredicate;
     private OpIterator opIterator1, opIterator2;
-    private Tuple t1 = null, t2 = null;
+    private final TupleDesc comboTD;
+    private int memoryTuples = BLOCK_SIZE;
 
+    // the block of outer batches, and the position of the join in it
+    private transient ArrayList<TupleBatch> block;
+    private transient boolean firstBlock, done;
+    private transient BatchOpIterator input1, input2;
+    private transient TupleBatch inner, out;
+    private transient int innerPos, blockIdx, blockRow;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -26,14 +44,13 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
-        // done
         joinPredicate = p;
         opIterator1 = child1;
         opIterator2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
     public JoinPredicate getJoinPredicate() {
-        // done
         return joinPredicate;
     }
 
@@ -43,7 +60,6 @@ public class Join extends Operator {
      *       alias or table name.
      * */
     public String getJoinField1Name() {
-        // done
         return opIterator1.getTupleDesc().getFieldName(joinPredicate.getField1());
     }
 
@@ -53,7 +69,6 @@ public class Join extends Operator {
      *       alias or table name.
      * */
     public String getJoinField2Name() {
-        // done
         return opIterator2.getTupleDesc().getFieldName(joinPredicate.getField2());
     }
 
@@ -62,40 +77,133 @@ public class Join extends Operator {
      *      implementation logic.
      */
     public TupleDesc getTupleDesc() {
-        // done
-        return TupleDesc.merge(opIterator1.getTupleDesc(), opIterator2.getTupleDesc());
+        return comboTD;
+    }
+
+    /**
+     * Set the number of tuples of the outer relation the join loads for a
+     * pass over the inner relation, BLOCK_SIZE by default.  Takes effect
+     * when the next block is loaded.
+     */
+    public void setMemoryBudget(int tuples) {
+        memoryTuples = tuples;
+    }
+
+    public int getMemoryBudget() {
+        return memoryTuples;
+    }
+
+    /**
+     * Load the next block of the outer relation, and start a pass over the
+     * inner one for it.
+     *
+     * @return false if the outer relation is done
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        int tuples = 0;
+        TupleBatch b;
+        while (tuples < memoryTuples && (b = input1.nextBatch()) != null) {
+            block.add(b.copy(b.getTupleDesc()));
+            tuples += b.size();
+        }
+        if (tuples == 0) {
+            return false;
+        }
+        if (!firstBlock) {
+            opIterator2.rewind();
+        }
+        firstBlock = false;
+        inner = null;
+        return true;
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        block = new ArrayList<TupleBatch>();
+        firstBlock = true;
+        inner = null;
+        done = !loadBlock();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        // done
-        super.open();
         opIterator1.open();
         opIterator2.open();
-        if (opIterator1.hasNext()) {
-            t1 = opIterator1.next();
-        }
+        input1 = BatchOpIterator.of(opIterator1);
+        input2 = BatchOpIterator.of(opIterator2);
+        start();
+        super.open();
     }
 
     public void close() {
-        // done
         super.close();
-        opIterator1.close();
         opIterator2.close();
+        opIterator1.close();
+        block = null;
+        inner = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        // done
+        super.rewind();
         opIterator1.rewind();
         opIterator2.rewind();
+        start();
     }
 
+    private static boolean matches(Predicate.Op op, int v1, int v2) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return v1 == v2;
+        case NOT_EQUALS:
+            return v1 != v2;
+        case GREATER_THAN:
+            return v1 > v2;
+        case GREATER_THAN_OR_EQ:
+            return v1 >= v2;
+        case LESS_THAN:
+            return v1 < v2;
+        case LESS_THAN_OR_EQ:
+            return v1 <= v2;
+        }
+        return false;
+    }
 
     /**
-     * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * Join the current inner row with the block, from the current position
+     * in it, until the block is done or the output is full.
+     *
+     * @return false if the output got full
+     */
+    private boolean joinRow(int r2) {
+        int f1 = joinPredicate.getField1(), f2 = joinPredicate.getField2();
+        Predicate.Op op = joinPredicate.getOperator();
+        int[] col2 = inner.intColumn(f2);
+        int n1 = opIterator1.getTupleDesc().numFields();
+        for (; blockIdx < block.size(); blockIdx++, blockRow = 0) {
+            TupleBatch b = block.get(blockIdx);
+            int[] col1 = b.intColumn(f1);
+            for (; blockRow < b.size(); blockRow++) {
+                boolean match = col1 != null && col2 != null
+                        ? matches(op, col1[blockRow], col2[r2])
+                        : b.getField(f1, blockRow).compare(op, inner.getField(f2, r2));
+                if (match) {
+                    if (out.isFull()) {
+                        return false;
+                    }
+                    int row = out.addRow();
+                    out.copyRow(row, 0, b, blockRow);
+                    out.copyRow(row, n1, inner, r2);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next batch of tuples generated by the join, or null if
+     * there are no more tuples. Logically, these are the next tuples in r1
+     * cross r2 that satisfy the join predicate, block by block of r1.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -106,47 +214,42 @@ public class Join extends Operator {
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
      *
-     * @return The next matching tuple.
+     * @return The next batch of matching tuples.
      * @see JoinPredicate#filter
      */
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // done
-        while (opIterator1.hasNext() || opIterator2.hasNext()) {
-            if (!opIterator2.hasNext()) {   // the condition of while makes opIterator1.hasNext() = true
-                t1 = opIterator1.next();
-                opIterator2.rewind();
-            }
-            while (opIterator2.hasNext()) {
-                t2 = opIterator2.next();
-                if (joinPredicate.filter(t1, t2)) {
-                    TupleDesc m_td = TupleDesc.merge(t1.getTupleDesc(), t2.getTupleDesc());
-                    Tuple ret = new Tuple(m_td);
-                    int n1 = t1.getTupleDesc().numFields(), n2 = t2.getTupleDesc().numFields();
-                    for (int i = 0; i < n1; ++i) {
-                        ret.setField(i, t1.getField(i));
-                    }
-                    for (int i = 0; i < n2; ++i) {
-                        ret.setField(i + n1, t2.getField(i));
-                    }
-                    return ret;
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        if (out == null) {
+            out = new TupleBatch(comboTD, TupleBatch.DEFAULT_SIZE);
+        }
+        out.clear();
+        while (!done) {
+            if (inner != null && innerPos < inner.size()) {
+                if (!joinRow(inner.row(innerPos))) {
+                    break;
                 }
+                innerPos++;
+                blockIdx = 0;
+                blockRow = 0;
+            } else if ((inner = input2.nextBatch()) != null) {
+                innerPos = 0;
+                blockIdx = 0;
+                blockRow = 0;
+            } else {
+                done = !loadBlock();
             }
         }
-        return null;
-
+        return out.size() == 0 ? null : out;
     }
 
     @Override
     public OpIterator[] getChildren() {
-        // done
         return new OpIterator[]{opIterator1, opIterator2};
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
-        // done, not sure right
         opIterator1 = children[0];
         opIterator2 = children[1];
     }
 
-}
\ No newline at end of file
+}
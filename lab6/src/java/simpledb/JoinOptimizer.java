@@ -13,6 +13,8 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    // true if the plan reads a snapshot, which copies every page it reads
+    private boolean snapshotReads;
 
     /**
      * Constructor
@@ -27,6 +29,14 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Tell the optimizer whether the plan runs in a transaction that reads
+     * a snapshot (see BufferPool.beginSnapshot), false by default.
+     */
+    public void setSnapshotReads(boolean snapshotReads) {
+        this.snapshotReads = snapshotReads;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -68,12 +78,57 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.p == Predicate.Op.EQUALS) {
+            OpIterator probe = lj.indexProbe ? instantiateIndexJoin(p, plan1, plan2) : null;
+            // inputs that come sorted on the keys are merged as they are
+            if (probe != null) {
+                j = probe;
+            } else if (lj.sortMerge
+                    || (SortMergeJoin.isSorted(plan1, t1id) && SortMergeJoin.isSorted(plan2, t2id))) {
+                j = new SortMergeJoin(p, plan1, plan2);
+            } else {
+                j = new HashEquiJoin(p, plan1, plan2);
+            }
+        } else if (SortMergeJoin.supports(lj.p) && !(lj instanceof LogicalSubplanJoinNode)) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
     }
 
+    /**
+     * Build an IndexNestedLoopJoin that looks the tuples of plan1 up in the
+     * table plan2 scans, with the filters on that table applied to its
+     * output.
+     *
+     * @return the join, or null if plan2 is not a scan of a BTreeFile keyed
+     *         on the join field, under filters only
+     */
+    private static OpIterator instantiateIndexJoin(JoinPredicate p, OpIterator plan1, OpIterator plan2) {
+        ArrayList<Predicate> filters = new ArrayList<Predicate>();
+        while (plan2 instanceof Filter) {
+            filters.add(((Filter) plan2).getPredicate());
+            plan2 = ((Filter) plan2).getChildren()[0];
+        }
+        if (!(plan2 instanceof SeqScan)) {
+            return null;
+        }
+        SeqScan scan = (SeqScan) plan2;
+        if (!IndexNestedLoopJoin.canProbe(scan.getTableId(), p.getField2())) {
+            return null;
+        }
+        OpIterator j = new IndexNestedLoopJoin(p, plan1, scan.getTransactionId(), scan.getTableId(),
+                scan.getAlias());
+        int n1 = plan1.getTupleDesc().numFields();
+        for (Predicate f : filters) {
+            j = new Filter(new Predicate(f.getField() + n1, f.getOp(), f.getOperand()), j);
+        }
+        return j;
+    }
+
     /**
      * Estimate the cost of a join.
      *
@@ -102,17 +157,197 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2,
+                isSortedTable(j.t1Alias, j.f1PureName), isSortedTable(j.t2Alias, j.f2PureName));
+    }
+
+    /**
+     * Like estimateJoinCost, for sides that may not be the tables of the
+     * join, but the result of other joins.
+     *
+     * @param sorted1
+     *            true if the left-hand side comes sorted on its join field
+     * @param sorted2
+     *            true if the right-hand side comes sorted on its join field
+     */
+    double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
+            if (j.p == Predicate.Op.EQUALS) {
+                return Math.min(estimateHashJoinCost(card1, card2, cost1, cost2),
+                        estimateMergeJoinCost(card1, card2, cost1, cost2, sorted1, sorted2));
+            } else if (SortMergeJoin.supports(j.p)) {
+                // the fraction of the cross product estimateTableJoinCardinality assumes
+                return estimateSortMergeJoinCost(card1, card2, cost1, cost2, 0.3 * card1 * card2);
+            }
+            return estimateBlockJoinCost(card1, card2, cost1, cost2);
+        }
+    }
+
+    /**
+     * Estimate the cost of a block nested loops Join, which reads the
+     * inner side once for every block of BLOCK_SIZE outer tuples and
+     * compares every pair of tuples.
+     */
+    static double estimateBlockJoinCost(int card1, int card2, double cost1, double cost2) {
+        double blocks = Math.max(1, Math.ceil((double) card1 / Join.BLOCK_SIZE));
+        return cost1 + blocks * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * The cost of writing a tuple to a spill file and reading it back,
+     * about that of scanning it twice at the IO cost of a page of a table.
+     */
+    static final double SPILL_TUPLE_COST = 4.0;
+
+    /**
+     * Estimate the cost of a HashEquiJoin, which reads each side once and
+     * hashes every tuple of the left side and probes with every tuple of
+     * the right side.  When the left side exceeds the memory budget of the
+     * join, the part of both sides that hashes to spilled partitions is
+     * written to disk and read back.
+     */
+    static double estimateHashJoinCost(int card1, int card2, double cost1, double cost2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        if (card1 > HashEquiJoin.MAP_SIZE) {
+            double spilled = 1.0 - (double) HashEquiJoin.MAP_SIZE / card1;
+            cost += spilled * (card1 + card2) * SPILL_TUPLE_COST;
         }
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of a SortMergeJoin of two unsorted inputs: each
+     * side is read and sorted once, n log n comparisons for n tuples, and
+     * the merge touches every input tuple once and every output tuple.
+     *
+     * @param card
+     *            The estimated number of tuples the join outputs
+     */
+    static double estimateSortMergeJoinCost(int card1, int card2, double cost1, double cost2,
+            double card) {
+        return cost1 + cost2 + sortCost(card1) + sortCost(card2) + card1 + card2 + card;
+    }
+
+    /**
+     * Estimate the cost of a SortMergeJoin on equal keys, which sorts only
+     * the sides that don't come sorted.  Like estimateHashJoinCost, it
+     * leaves out the output, which is the same for both.
+     */
+    static double estimateMergeJoinCost(int card1, int card2, double cost1, double cost2,
+            boolean sorted1, boolean sorted2) {
+        return cost1 + cost2 + (sorted1 ? 0 : sortCost(card1)) + (sorted2 ? 0 : sortCost(card2))
+                + card1 + card2;
+    }
+
+    /**
+     * @return true if a SortMergeJoin is no more expensive than a
+     *         HashEquiJoin for an equality join; merging needs no hash table
+     */
+    private static boolean prefersSortMerge(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
+        return j.p == Predicate.Op.EQUALS && !(j instanceof LogicalSubplanJoinNode)
+                && estimateMergeJoinCost(card1, card2, cost1, cost2, sorted1, sorted2)
+                <= estimateHashJoinCost(card1, card2, cost1, cost2);
+    }
+
+    /**
+     * @return true if a scan of the table alias reads it sorted on field,
+     *         that is if the table is a BTreeFile keyed on field
+     */
+    private boolean isSortedTable(String alias, String field) {
+        Integer tableid = alias == null ? null : p.getTableId(alias);
+        if (tableid == null) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile)) {
+            return false;
+        }
+        try {
+            return ((BTreeFile) f).keyField() == f.getTupleDesc().fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    private static double sortCost(int card) {
+        return card < 2 ? card : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * The cost of the private copy of a page a snapshot read gets, per
+     * slot of the page (see BufferPool.getPage): about a pass over it.
+     */
+    static final double SNAPSHOT_COPY_COST = 1.0;
+
+    /**
+     * Estimate the cost of an IndexNestedLoopJoin that looks every tuple of
+     * the left side up in the table on the right side instead of scanning
+     * the table.  Every lookup reads a page at each internal level of the
+     * tree and the leaves its matches are on, and copies each of these
+     * pages if the plan reads a snapshot.
+     *
+     * @return the cost, or infinity if the right table has no index on the
+     *         join field or no statistics
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1, double cost1,
+            Map<String, TableStats> stats) {
+        if (j.p != Predicate.Op.EQUALS || j instanceof LogicalSubplanJoinNode) {
+            return Double.POSITIVE_INFINITY;
+        }
+        int tableid = p.getTableId(j.t2Alias);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        int field;
+        try {
+            field = f.getTupleDesc().fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (!IndexNestedLoopJoin.canProbe(tableid, field)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableid));
+        if (s == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        TupleDesc td = f.getTupleDesc();
+        int pages = Math.max(1, ((BTreeFile) f).numPages());
+        int leafTuples = BTreeLeafPage.maxTuples(td);
+        int fanout = BTreeInternalPage.maxEntries(td, field) + 1;
+        int levels = pages == 1 ? 0 : (int) Math.ceil(Math.log(pages) / Math.log(fanout));
+        double matches = s.totalTuples() * s.avgSelectivity(field, Predicate.Op.EQUALS);
+        // a run of matches may start anywhere in a leaf
+        double leaves = 1 + matches / leafTuples;
+        double probe = 1 + (levels + leaves) * s.estimateScanCost() / pages;
+        if (snapshotReads) {
+            probe += (levels * fanout + leaves * leafTuples) * SNAPSHOT_COPY_COST;
+        }
+        return cost1 + card1 * probe;
+    }
+
+    /**
+     * @return a copy of a join that is done by a SortMergeJoin
+     */
+    private static LogicalJoinNode withSortMerge(LogicalJoinNode j) {
+        LogicalJoinNode merge = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName,
+                j.f2PureName, j.p);
+        merge.sortMerge = true;
+        return merge;
+    }
+
+    /**
+     * @return a copy of a join that probes the index of its right table
+     */
+    private static LogicalJoinNode withIndexProbe(LogicalJoinNode j) {
+        LogicalJoinNode probe = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName,
+                j.f2PureName, j.p);
+        probe.indexProbe = true;
+        return probe;
     }
 
     /**
@@ -269,6 +504,10 @@ public class JoinOptimizer {
         if (explain) {
             printJoins(joins, pc, stats, filterSelectivities);
         }
+        if (joins.isEmpty()) {
+            // a query over a single table, the cache has no empty plan
+            return joins;
+        }
         return pc.getOrder(new HashSet<>(joins));
     }
 
@@ -397,11 +636,38 @@ public class JoinOptimizer {
             }
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        // a base table scans sorted if it's a BTreeFile keyed on the join field
+        boolean t1Base = news.isEmpty() || !doesJoin(prevBest, table1Alias);
+        boolean t2Base = news.isEmpty() || doesJoin(prevBest, table1Alias);
+        boolean t1Sorted = t1Base && isSortedTable(j.t1Alias, j.f1PureName);
+        boolean t2Sorted = t2Base && isSortedTable(j.t2Alias, j.f2PureName);
 
+        // case where prevbest is left
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t1Sorted, t2Sorted);
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t2Sorted, t1Sorted);
+        if (prefersSortMerge(j, t1card, t2card, t1cost, t2cost, t1Sorted, t2Sorted)) {
+            j = withSortMerge(j);
+        }
+        if (prefersSortMerge(j2, t2card, t1card, t2cost, t1cost, t2Sorted, t1Sorted)) {
+            j2 = withSortMerge(j2);
+        }
+
+        // the inner side can be looked up in an index if it's a base table
+        if (t2Base) {
+            double cost = estimateIndexJoinCost(j, t1card, t1cost, stats);
+            if (cost < cost1) {
+                cost1 = cost;
+                j = withIndexProbe(j);
+            }
+        }
+        if (t1Base) {
+            double cost = estimateIndexJoinCost(j2, t2card, t2cost, stats);
+            if (cost < cost2) {
+                cost2 = cost;
+                j2 = withIndexProbe(j2);
+            }
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
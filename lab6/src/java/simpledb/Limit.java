@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit implements LIMIT and OFFSET: it skips the first offset tuples of
+ * its child and hands out at most limit of the following ones, narrowing
+ * the selection of the batches of its child like a Filter.
+ * <p>
+ * Once the limit is reached, Limit reads nothing more from its child and
+ * closes it, so a pipeline below it stops early: a scan reads no more
+ * pages, and an Exchange stops its workers.
+ */
+public class Limit extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int limit;
+    private final int offset;
+
+    private transient BatchOpIterator input;
+    private transient boolean childOpen;
+    private transient int skipped, returned;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the number of tuples to hand out at most, or -1 for all of
+     *            them
+     * @param offset
+     *            the number of tuples to skip first
+     * @param child
+     *            The child operator
+     */
+    public Limit(int limit, int offset, OpIterator child) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("negative offset " + offset);
+        }
+        this.child = child;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** @return the number of tuples handed out at most, or -1 if all */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        childOpen = true;
+        input = BatchOpIterator.of(child);
+        skipped = 0;
+        returned = 0;
+        super.open();
+    }
+
+    /** Close the child, once nothing more is read from it. */
+    private void release() {
+        if (childOpen) {
+            child.close();
+            childOpen = false;
+        }
+    }
+
+    public void close() {
+        super.close();
+        release();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        if (childOpen) {
+            child.rewind();
+        } else {
+            child.open();
+            childOpen = true;
+            input = BatchOpIterator.of(child);
+        }
+        skipped = 0;
+        returned = 0;
+    }
+
+    /**
+     * BatchOperator.fetchNextBatch implementation. Reads batches from the
+     * child operator and narrows them down to the tuples after the offset,
+     * up to the limit.
+     *
+     * @return The next batch of tuples within the limit, or null if there
+     *         are no more
+     */
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (limit >= 0 && returned >= limit) {
+            // the batch handed out last may still be in use, so the child
+            // is closed on the call after it
+            release();
+            return null;
+        }
+        TupleBatch batch;
+        while (childOpen && (batch = input.nextBatch()) != null) {
+            int n = batch.size();
+            int skip = Math.min(n, offset - skipped);
+            skipped += skip;
+            int take = n - skip;
+            if (limit >= 0) {
+                take = Math.min(take, limit - returned);
+            }
+            if (take == 0) {
+                continue;
+            }
+            if (take < n) {
+                int[] sel = batch.selection();
+                System.arraycopy(sel, skip, sel, 0, take);
+                batch.setSize(take);
+            }
+            returned += take;
+            return batch;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+
+}
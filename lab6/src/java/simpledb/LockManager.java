@@ -1,175 +1,844 @@
 package simpledb;
 
-//import sun.plugin.javascript.navig.Array;
-
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * LockManager manages lock
+ * LockManager manages table-level and page-level locks for the
+ * BufferPool.
+ * <p>
+ * Tables are locked with the multi-granularity modes IS, IX, S, SIX and X:
+ * before locking a page, a transaction takes an intention lock (IS or IX) on
+ * its table, and a table S, SIX or X lock covers the pages of the table so
+ * that no page lock is needed any more. A transaction that locks more than
+ * escalationThreshold pages of a table tries to trade them for a single
+ * table lock (lock escalation).
+ * <p>
+ * A page is the smallest unit that can be locked, there are no row locks:
+ * the log records whole page images and an abort discards the pages a
+ * transaction dirtied, so the uncommitted changes on a page must all belong
+ * to one transaction.
+ * <p>
+ * What happens to a request that has to wait is decided by the
+ * {@link DeadlockPolicy}, which can be chosen at startup with the system
+ * property simpledb.deadlockPolicy or changed with setDeadlockPolicy. The
+ * timestamp based policies order transactions by their start timestamp
+ * (see TransactionId.isOlderThan), which a restarted transaction keeps.
+ * <p>
+ * Each lock table is keyed by packed long ids (see {@link #pack(PageId)})
+ * and is split into a fixed number of stripes. Each
+ * stripe owns its own map and its own monitor, so transactions locking
+ * unrelated pages never contend on the same monitor, and a waiter is only
+ * woken up by releases on its own stripe.
  */
 
 public class LockManager {
+    /**
+     * What to do when a lock can't be granted right away.
+     * WAIT_DIE and WOUND_WAIT order transactions by
+     * TransactionId.isOlderThan, so a restarted transaction keeps the age of
+     * its first try.  In every policy, a transaction that waits longer than waitTime is
+     * still assumed to be deadlocked and aborted, as a last resort.
+     */
+    public enum DeadlockPolicy {
+        /** wait, and abort after waitTime */
+        TIMEOUT,
+        /** abort right away */
+        NO_WAIT,
+        /** wait only for younger transactions, abort if an older one holds the lock */
+        WAIT_DIE,
+        /** abort (wound) the younger holders, wait for the older ones */
+        WOUND_WAIT
+    }
+
     public enum LockType {
-        SLock, XLock, NoLock
+        SLock, XLock, NoLock, ISLock, IXLock, SIXLock;
+
+        /**
+         * @return if a lock in this mode can be granted while another
+         * transaction holds a lock in mode other
+         */
+        boolean compatibleWith(LockType other) {
+            switch (this) {
+                case NoLock: return true;
+                case ISLock: return other != XLock;
+                case IXLock: return other == NoLock || other == ISLock || other == IXLock;
+                case SLock: return other == NoLock || other == ISLock || other == SLock;
+                case SIXLock: return other == NoLock || other == ISLock;
+                default: return other == NoLock;
+            }
+        }
+
+        /**
+         * @return the weakest mode that grants both this mode and other
+         */
+        LockType combine(LockType other) {
+            if (this == other || other == NoLock) {
+                return this;
+            }
+            if (this == NoLock) {
+                return other;
+            }
+            if (this == XLock || other == XLock) {
+                return XLock;
+            }
+            if (this == ISLock) {
+                return other;
+            }
+            if (other == ISLock) {
+                return this;
+            }
+            // two different modes out of IX, S and SIX
+            return SIXLock;
+        }
+
+        /**
+         * @return if holding this mode already grants mode other
+         */
+        boolean covers(LockType other) {
+            return combine(other) == this;
+        }
     }
 
     /**
-     * inner class, page-level lock
+     * inner class, a page-level lock.
+     * The common case is a single holder, which is stored inline in owner;
+     * the sharers set is only allocated once a second transaction shares the lock.
+     * Protected by the monitor of the stripe the lock lives in.
      */
-    class Lock {
-        private HashSet<TransactionId> tidSet;
+    static class Lock {
+        private TransactionId owner;
+        private HashSet<TransactionId> sharers;
         private LockType type;
 
-        Lock(TransactionId tid, LockManager.LockType t) {
-            tidSet = new HashSet<>(Arrays.asList(tid));
+        Lock(TransactionId tid, LockType t) {
+            owner = tid;
             type = t;
         }
 
-        public synchronized void addTid(TransactionId tid) {
-            tidSet.add(tid);
+        boolean holds(TransactionId tid) {
+            return sharers == null ? tid.equals(owner) : sharers.contains(tid);
+        }
+
+        int numHolders() {
+            return sharers == null ? 1 : sharers.size();
+        }
+
+        Collection<TransactionId> holders() {
+            return sharers == null ? Collections.singleton(owner) : sharers;
+        }
+
+        void addHolder(TransactionId tid) {
+            if (holds(tid)) {
+                return;
+            }
+            if (sharers == null) {
+                sharers = new HashSet<>(4);
+                sharers.add(owner);
+                owner = null;
+            }
+            sharers.add(tid);
+        }
+
+        /**
+         * @return true if the lock has no holder left and can be dropped
+         */
+        boolean removeHolder(TransactionId tid) {
+            if (sharers == null) {
+                if (tid.equals(owner)) {
+                    owner = null;
+                }
+                return owner == null;
+            }
+            sharers.remove(tid);
+            if (sharers.size() == 1) {
+                // back to the compact representation
+                owner = sharers.iterator().next();
+                sharers = null;
+            }
+            return sharers != null && sharers.isEmpty();
+        }
+    }
+
+    /**
+     * An open addressing hash map from long keys to locks, with linear
+     * probing, so looking a lock up boxes nothing. A slot is free if its
+     * lock is null.
+     */
+    static final class LockMap {
+        private long[] keys = new long[16];
+        private Lock[] locks = new Lock[16];
+        private int size;
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+        }
+
+        Lock get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key); locks[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return locks[i];
+                }
+            }
+            return null;
+        }
+
+        /** Map key, which has no lock yet, to lock. */
+        void put(long key, Lock lock) {
+            if (2 * (size + 1) > keys.length) {
+                long[] oldKeys = keys;
+                Lock[] oldLocks = locks;
+                keys = new long[2 * oldKeys.length];
+                locks = new Lock[2 * oldKeys.length];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldLocks[i] != null) {
+                        insert(oldKeys[i], oldLocks[i]);
+                    }
+                }
+            }
+            insert(key, lock);
+            size++;
+        }
+
+        private void insert(long key, Lock lock) {
+            int mask = keys.length - 1;
+            int i = slot(key);
+            while (locks[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            locks[i] = lock;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key);
+            while (locks[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (locks[i] == null) {
+                return;
+            }
+            locks[i] = null;
+            size--;
+            // move later entries of the probe run back into the hole, so
+            // that lookups don't stop at it
+            for (int j = (i + 1) & mask; locks[j] != null; j = (j + 1) & mask) {
+                int home = slot(keys[j]);
+                // can the entry at j move to i: is i cyclically in [home, j)?
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    locks[i] = locks[j];
+                    locks[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /** One slice of a lock table. Its monitor protects locks. */
+    private static final class Stripe {
+        final LockMap locks = new LockMap();
+    }
+
+    /**
+     * A striped table of S/X locks keyed by long.
+     */
+    private final class LockTable {
+        private final Stripe[] stripes;
+
+        LockTable() {
+            stripes = new Stripe[NUM_STRIPES];
+            for (int i = 0; i < NUM_STRIPES; ++i) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        private Stripe stripeOf(long key) {
+            // mix the table id into the low bits so pages of different tables spread out
+            long h = key ^ (key >>> 32);
+            h ^= (h >>> 16);
+            return stripes[(int) h & (NUM_STRIPES - 1)];
+        }
+
+        LockType type(long key) {
+            Stripe stripe = stripeOf(key);
+            synchronized (stripe) {
+                Lock lock = stripe.locks.get(key);
+                return lock == null ? LockType.NoLock : lock.type;
+            }
+        }
+
+        boolean holds(TransactionId tid, long key) {
+            Stripe stripe = stripeOf(key);
+            synchronized (stripe) {
+                Lock lock = stripe.locks.get(key);
+                return lock != null && lock.holds(tid);
+            }
+        }
+
+        /**
+         * Blocks until the lock is granted or about waitTime ms have passed,
+         * in which case the transaction is assumed to be deadlocked.
+         * If wait is false, give up right away when the lock can't be granted.
+         * @return true if the lock was granted
+         */
+        boolean acquire(TransactionId tid, long key, LockType want, boolean wait, long waitTime)
+                throws TransactionAbortedException {
+            Stripe stripe = stripeOf(key);
+            synchronized (stripe) {
+                long deadline = 0;
+                while (!tryAcquire(stripe, key, tid, want)) {
+                    if (!wait) {
+                        return false;
+                    }
+                    beforeWait(tid, stripe.locks.get(key).holders());
+                    long now = System.currentTimeMillis();
+                    if (deadline == 0) {
+                        deadline = deadline(now, waitTime);
+                    } else if (now >= deadline) {
+                        // Out of time. Abort this transaction.
+                        throw new TransactionAbortedException();
+                    }
+                    try {
+                        // released by release on this stripe
+                        stripe.wait(waitSlice(deadline - now));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    }
+                }
+                return true;
+            }
+        }
+
+        /** Must be called with the monitor of stripe held. */
+        private boolean tryAcquire(Stripe stripe, long key, TransactionId tid, LockType want) {
+            Lock lock = stripe.locks.get(key);
+            if (lock == null) {
+                stripe.locks.put(key, new Lock(tid, want));
+                return true;
+            }
+            if (lock.holds(tid)) {
+                if (want == LockType.SLock || lock.type == LockType.XLock) {
+                    return true;
+                }
+                if (lock.numHolders() == 1) {
+                    // upgrade the SLock
+                    lock.type = LockType.XLock;
+                    return true;
+                }
+                return false;
+            }
+            if (want == LockType.SLock && lock.type == LockType.SLock) {
+                lock.addHolder(tid);
+                return true;
+            }
+            // other transaction holds SLock or XLock on key
+            return false;
+        }
+
+        /**
+         * Drop tid from the lock on key and wake up the waiters of the stripe.
+         * @return false if tid did not hold the lock
+         */
+        boolean release(TransactionId tid, long key) {
+            Stripe stripe = stripeOf(key);
+            synchronized (stripe) {
+                Lock lock = stripe.locks.get(key);
+                if (lock == null || !lock.holds(tid)) {
+                    return false;
+                }
+                if (lock.removeHolder(tid)) {
+                    stripe.locks.remove(key);
+                }
+                stripe.notifyAll();
+                return true;
+            }
+        }
+    }
+
+    /** One slice of the table lock table. Its monitor protects locks. */
+    private static final class TableStripe {
+        // table id -> mode held by each holder
+        final HashMap<Integer, HashMap<TransactionId, LockType>> locks = new HashMap<>();
+    }
+
+    /**
+     * A striped table of multi-granularity table locks. Unlike page and row
+     * locks, holders of a table lock may hold it in different modes
+     * (e.g. IS and IX), so each holder's mode is kept.
+     */
+    private final class TableLockTable {
+        private final TableStripe[] stripes;
+
+        TableLockTable() {
+            stripes = new TableStripe[NUM_STRIPES];
+            for (int i = 0; i < NUM_STRIPES; ++i) {
+                stripes[i] = new TableStripe();
+            }
+        }
+
+        private TableStripe stripeOf(int tableId) {
+            int h = tableId ^ (tableId >>> 16);
+            return stripes[h & (NUM_STRIPES - 1)];
+        }
+
+        /**
+         * Grant tid the mode want on top of what it holds already.
+         * If wait is false, give up right away when the lock can't be granted,
+         * otherwise block like LockTable.acquire.
+         * @return the mode tid holds now, or null if the lock was not granted
+         */
+        LockType acquire(TransactionId tid, int tableId, LockType want, boolean wait, long waitTime)
+                throws TransactionAbortedException {
+            TableStripe stripe = stripeOf(tableId);
+            synchronized (stripe) {
+                long deadline = 0;
+                while (true) {
+                    HashMap<TransactionId, LockType> holders = stripe.locks.get(tableId);
+                    if (holders == null) {
+                        holders = new HashMap<>(4);
+                        stripe.locks.put(tableId, holders);
+                    }
+                    LockType held = holders.getOrDefault(tid, LockType.NoLock);
+                    LockType target = held.combine(want);
+                    ArrayList<TransactionId> blockers = null;
+                    for (Map.Entry<TransactionId, LockType> e : holders.entrySet()) {
+                        if (!e.getKey().equals(tid) && !target.compatibleWith(e.getValue())) {
+                            if (blockers == null) {
+                                blockers = new ArrayList<>(2);
+                            }
+                            blockers.add(e.getKey());
+                        }
+                    }
+                    if (blockers == null) {
+                        holders.put(tid, target);
+                        return target;
+                    }
+                    if (holders.isEmpty()) {
+                        stripe.locks.remove(tableId);
+                    }
+                    if (!wait) {
+                        return null;
+                    }
+                    beforeWait(tid, blockers);
+                    long now = System.currentTimeMillis();
+                    if (deadline == 0) {
+                        deadline = deadline(now, waitTime);
+                    } else if (now >= deadline) {
+                        // Out of time. Abort this transaction.
+                        throw new TransactionAbortedException();
+                    }
+                    try {
+                        stripe.wait(waitSlice(deadline - now));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    }
+                }
+            }
+        }
+
+        void release(TransactionId tid, int tableId) {
+            TableStripe stripe = stripeOf(tableId);
+            synchronized (stripe) {
+                HashMap<TransactionId, LockType> holders = stripe.locks.get(tableId);
+                if (holders == null || holders.remove(tid) == null) {
+                    return;
+                }
+                if (holders.isEmpty()) {
+                    stripe.locks.remove(tableId);
+                }
+                stripe.notifyAll();
+            }
         }
     }
 
-    private ConcurrentHashMap<PageId, Lock> pageIdToLock;
-    private ConcurrentHashMap<TransactionId, HashSet<PageId>> tidToLockedPage;
-    private final int waitTime = 500;
+    /**
+     * inner class, what a transaction holds on one table, so repeated page
+     * requests don't have to go to the shared table lock table. Only touched
+     * by the transaction itself, but that may be several Exchange workers at
+     * once, so the fields are protected by the monitor of the state. It is
+     * never held while waiting for a lock, and is taken after the monitor of
+     * the map in tidToTables.
+     */
+    private static final class TableState {
+        LockType mode = LockType.NoLock;
+        int pages;              // page locks held on the table
+        boolean wrote;          // some of them are XLocks
+        int nextEscalation;     // page count at which to try escalation
+    }
+
+    /** Number of stripes per lock table, must be a power of two. */
+    static final int NUM_STRIPES = 64;
+
+    /** Default number of page locks per table after which escalation is tried. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1024;
+
+    private final LockTable pageLocks;
+    private final TableLockTable tableLocks;
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> tidToLockedPage;
+    private final ConcurrentHashMap<TransactionId, HashMap<Integer, TableState>> tidToTables;
+    private final long waitTime = 500;
+    private volatile DeadlockPolicy policy;
+    // transactions wounded by older ones under WOUND_WAIT, they abort at their next lock request
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+
+    /** How often a waiter checks whether it has been wounded, in ms. */
+    private static final long WOUND_CHECK_INTERVAL = 10;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
 
     LockManager() {
-        pageIdToLock = new ConcurrentHashMap<>();
+        pageLocks = new LockTable();
+        tableLocks = new TableLockTable();
         tidToLockedPage = new ConcurrentHashMap<>();
+        tidToTables = new ConcurrentHashMap<>();
+        policy = DeadlockPolicy.valueOf(
+                System.getProperty("simpledb.deadlockPolicy", DeadlockPolicy.TIMEOUT.name()));
     }
 
-    public LockType getLockType(PageId pid) {
-        synchronized (pid) {
-            if (!pageIdToLock.containsKey(pid)) {
-                return LockType.NoLock;
-            }
-            return pageIdToLock.get(pid).type;
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /**
+     * Should only be changed while no transaction is waiting for a lock.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Called with the monitor of a stripe held, each time tid is about to
+     * wait for a lock held by blockers. Throws if the deadlock policy says
+     * tid has to abort instead.
+     */
+    private void beforeWait(TransactionId tid, Collection<TransactionId> blockers)
+            throws TransactionAbortedException {
+        switch (policy) {
+            case NO_WAIT:
+                throw new TransactionAbortedException();
+            case WAIT_DIE:
+                for (TransactionId holder : blockers) {
+                    if (holder.isOlderThan(tid)) {
+                        // an older transaction holds the lock, die
+                        throw new TransactionAbortedException();
+                    }
+                }
+                break;
+            case WOUND_WAIT:
+                if (wounded.contains(tid)) {
+                    throw new TransactionAbortedException();
+                }
+                for (TransactionId holder : blockers) {
+                    if (tid.isOlderThan(holder)) {
+                        wounded.add(holder);
+                    }
+                }
+                break;
+            default:
+                break;
         }
     }
 
     /**
-     * @return if tid holds a lock on pid
+     * @return how long to wait at most before checking again, a wounded
+     * waiter has to notice that it was wounded
+     */
+    private long waitSlice(long remaining) {
+        return policy == DeadlockPolicy.WOUND_WAIT ? Math.min(remaining, WOUND_CHECK_INTERVAL) : remaining;
+    }
+
+    /**
+     * @return when a waiter that starts waiting at now gives up.  The timeout
+     * is picked at random between waitTime / 2 and 3 * waitTime / 2, so of
+     * transactions deadlocked on each other one gives up well before the
+     * rest, instead of all of them aborting and retrying in lockstep.
+     */
+    private static long deadline(long now, long waitTime) {
+        return now + waitTime / 2 + ThreadLocalRandom.current().nextLong(waitTime + 1);
+    }
+
+    /**
+     * Abort tid if it was wounded by an older transaction.
+     */
+    private void checkWounded(TransactionId tid) throws TransactionAbortedException {
+        if (policy == DeadlockPolicy.WOUND_WAIT && wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on a table
+     * before they are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int threshold) {
+        escalationThreshold = threshold;
+    }
+
+    /**
+     * Pack a page id into a long: table id in the high 32 bits, page category
+     * (only meaningful for BTree pages) in the next 2 bits and the page number
+     * in the low 30 bits. Equal page ids always pack to the same value, no
+     * matter which PageId instance is used.
+     */
+    static long pack(PageId pid) {
+        long categ = pid instanceof BTreePageId ? ((BTreePageId) pid).pgcateg() : 0;
+        return ((long) pid.getTableId() << 32) | (categ << 30) | (pid.getPageNumber() & 0x3FFFFFFFL);
+    }
+
+    private static LockType lockTypeOf(Permissions perm) {
+        return perm == Permissions.READ_ONLY ? LockType.SLock : LockType.XLock;
+    }
+
+    public LockType getLockType(PageId pid) {
+        return pageLocks.type(pack(pid));
+    }
+
+    /**
+     * @return if tid holds a lock on pid, either on the page itself or
+     * through a table lock
      * */
     public boolean ifHoldsLock(TransactionId tid, PageId pid) {
-        synchronized (pid) {
-            return pageIdToLock.containsKey(pid) && pageIdToLock.get(pid).tidSet.contains(tid);
+        return getTableLockType(tid, pid.getTableId()).covers(LockType.SLock)
+                || pageLocks.holds(tid, pack(pid));
+    }
+
+    /**
+     * @return the mode tid holds on table tableId
+     */
+    public LockType getTableLockType(TransactionId tid, int tableId) {
+        HashMap<Integer, TableState> tables = tidToTables.get(tid);
+        if (tables == null) {
+            return LockType.NoLock;
+        }
+        TableState state;
+        synchronized (tables) {
+            state = tables.get(tableId);
+        }
+        if (state == null) {
+            return LockType.NoLock;
+        }
+        synchronized (state) {
+            return state.mode;
         }
     }
 
     /**
-     * tid adds a lock on pid
-     *
-     *
-     * @param tid
-     * @param pid
-     * @param perm
-     *            decides the type of lock
+     * @return the tables on which tid holds a lock that covers their pages
      */
-    public void acquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
-        long start = System.currentTimeMillis();
-        while (!(perm == Permissions.READ_ONLY ? acquireSLock(tid, pid) : acquireXLock(tid, pid))) {
-            try {
-                // Release intrinsic lock on pid
-                // Give other threads chance to release Slock or XLock on pid.
-                // Wait random time to stagger the threads
-                Random rand = new Random();
-                wait(rand.nextInt(40) + 1);
-            } catch (Exception e) {
-                // do nothing
-            }
-            if (System.currentTimeMillis() - start > waitTime) {
-                // Out of time. Abort this transaction.
-                System.out.println("aborted");
-                throw new TransactionAbortedException();
+    public Set<Integer> getCoveringTableLocks(TransactionId tid) {
+        Set<Integer> tableIds = new HashSet<>();
+        HashMap<Integer, TableState> tables = tidToTables.get(tid);
+        if (tables != null) {
+            synchronized (tables) {
+                for (Map.Entry<Integer, TableState> e : tables.entrySet()) {
+                    TableState state = e.getValue();
+                    synchronized (state) {
+                        if (state.mode.covers(LockType.SLock)) {
+                            tableIds.add(e.getKey());
+                        }
+                    }
+                }
             }
         }
-        // lock successfully, update tidToLockedPage
-        // No need to synchronize on this part, cuz won't exist 2 threads on same tid.
-        if (tidToLockedPage.containsKey(tid)) {
-            tidToLockedPage.get(tid).add(pid);
-        } else {
-            tidToLockedPage.put(tid, new HashSet<>(Arrays.asList(pid)));
+        return tableIds;
+    }
+
+    private TableState tableState(TransactionId tid, int tableId) {
+        HashMap<Integer, TableState> tables = tidToTables.computeIfAbsent(tid, k -> new HashMap<>(4));
+        synchronized (tables) {
+            return tables.computeIfAbsent(tableId, k -> new TableState());
         }
     }
 
-    private boolean acquireSLock(TransactionId tid, PageId pid) {
-        synchronized (pid) {
-            if (ifHoldsLock(tid, pid)) {
+    /**
+     * tid adds a lock on the whole table tableId: SLock for READ_ONLY,
+     * XLock for READ_WRITE.
+     * @param wait if false, return right away when the lock can't be granted
+     * @return true if the lock was granted
+     */
+    public boolean acquireTableLock(TransactionId tid, int tableId, Permissions perm, boolean wait)
+            throws TransactionAbortedException {
+        return lockTable(tid, tableId, lockTypeOf(perm), wait);
+    }
+
+    private boolean lockTable(TransactionId tid, int tableId, LockType want, boolean wait)
+            throws TransactionAbortedException {
+        TableState state = tableState(tid, tableId);
+        synchronized (state) {
+            if (state.mode.covers(want)) {
                 return true;
             }
-            LockType lockState = getLockType(pid);
-            if (lockState == LockType.NoLock) {
-                pageIdToLock.put(pid, new Lock(tid, LockType.SLock));
-                return true;
-            } else if (lockState == LockType.SLock) {
-                pageIdToLock.get(pid).addTid(tid);
-                return true;
-            } else {
-                return false;
+        }
+        LockType mode = tableLocks.acquire(tid, tableId, want, wait, waitTime);
+        if (mode == null) {
+            return false;
+        }
+        synchronized (state) {
+            // another worker of tid may have been granted a stronger mode meanwhile
+            state.mode = state.mode.combine(mode);
+            if (state.mode.covers(LockType.SLock)) {
+                releaseCoveredPages(tid, tableId, state.mode, state);
             }
         }
+        return true;
     }
 
-    private boolean acquireXLock(TransactionId tid, PageId pid) {
-        synchronized (pid) {
-            LockType lockState = getLockType(pid);
-            if (lockState == LockType.NoLock) {
-                pageIdToLock.put(pid, new Lock(tid, LockType.XLock));
-                return true;
-            } else if (lockState == LockType.SLock) {
-                if (ifHoldsLock(tid, pid) && pageIdToLock.get(pid).tidSet.size() == 1) {
-                    // upgrade the SLock
-                    pageIdToLock.get(pid).type = LockType.XLock;
-                    return true;
-                }
-            } else if (ifHoldsLock(tid, pid)) { // tid already holds an XLock on pid
-                return true;
+    /**
+     * Drop the page locks of tid on table tableId that are implied by the
+     * table lock mode. Called with the monitor of state held.
+     */
+    private void releaseCoveredPages(TransactionId tid, int tableId, LockType mode, TableState state) {
+        Set<PageId> pageIds = tidToLockedPage.get(tid);
+        if (pageIds == null) {
+            return;
+        }
+        for (PageId pid : pageIds) {
+            if (pid.getTableId() != tableId) {
+                continue;
+            }
+            long key = pack(pid);
+            if (mode == LockType.XLock || pageLocks.type(key) == LockType.SLock) {
+                pageLocks.release(tid, key);
+                pageIds.remove(pid);
+                --state.pages;
             }
         }
-        // other transaction holds SLock or XLock on pid
-        return false;
     }
 
-    public void releaseLock(TransactionId tid, PageId pid) {
-        synchronized (pid) {
-            if (!ifHoldsLock(tid, pid)) {
-                return;
+    /**
+     * Trade the page locks of tid on a table for a single table lock, if
+     * that lock can be granted right away. Otherwise try again once tid
+     * has locked twice as many pages.
+     */
+    private void escalate(TransactionId tid, int tableId, TableState state)
+            throws TransactionAbortedException {
+        LockType want;
+        synchronized (state) {
+            want = state.wrote ? LockType.XLock : LockType.SLock;
+        }
+        if (!lockTable(tid, tableId, want, false)) {
+            synchronized (state) {
+                state.nextEscalation = 2 * state.pages;
+            }
+        }
+    }
+
+    /**
+     * tid adds a lock on pid.
+     * Blocks until the lock is granted; a transaction that waits longer than
+     * waitTime is assumed to be deadlocked and is aborted.
+     *
+     * @param tid
+     * @param pid
+     * @param perm
+     *            decides the type of lock
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        lockPage(tid, pid, perm, true);
+    }
+
+    /**
+     * tid adds a lock on pid if it can be granted right away.
+     * @return true if the lock was granted
+     */
+    public boolean tryAcquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        return lockPage(tid, pid, perm, false);
+    }
+
+    private boolean lockPage(TransactionId tid, PageId pid, Permissions perm, boolean wait)
+            throws TransactionAbortedException {
+        checkWounded(tid);
+        int tableId = pid.getTableId();
+        LockType want = lockTypeOf(perm);
+        TableState state = tableState(tid, tableId);
+        synchronized (state) {
+            if (state.mode.covers(want)) {
+                // the table lock already grants the page
+                return true;
             }
-            pageIdToLock.get(pid).tidSet.remove(tid);
-            if (pageIdToLock.get(pid).tidSet.isEmpty()) {
-                pageIdToLock.remove(pid);
+        }
+        if (!lockTable(tid, tableId, want == LockType.SLock ? LockType.ISLock : LockType.IXLock, wait)
+                || !pageLocks.acquire(tid, pack(pid), want, wait, waitTime)) {
+            return false;
+        }
+        // lock successfully, update tidToLockedPage
+        boolean added = tidToLockedPage.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        boolean escalate;
+        synchronized (state) {
+            if (added) {
+                ++state.pages;
             }
-            tidToLockedPage.get(tid).remove(pid);
-            if (tidToLockedPage.get(tid).isEmpty()) {
+            state.wrote |= want == LockType.XLock;
+            escalate = state.pages > Math.max(escalationThreshold, state.nextEscalation);
+        }
+        if (escalate) {
+            escalate(tid, tableId, state);
+        }
+        return true;
+    }
+
+    public void releaseLock(TransactionId tid, PageId pid) {
+        if (!pageLocks.release(tid, pack(pid))) {
+            return;
+        }
+        Set<PageId> pageIds = tidToLockedPage.get(tid);
+        if (pageIds != null) {
+            pageIds.remove(pid);
+            if (pageIds.isEmpty()) {
                 tidToLockedPage.remove(tid);
             }
         }
+        TableState state = tableState(tid, pid.getTableId());
+        synchronized (state) {
+            --state.pages;
+        }
     }
 
+    /**
+     * Release all table and page locks held by tid.
+     */
     public void releaseLock(TransactionId tid) {
-        if (tidToLockedPage.containsKey(tid)) {
-            HashSet<PageId> pageIds = tidToLockedPage.get(tid);
+        Set<PageId> pageIds = tidToLockedPage.remove(tid);
+        if (pageIds != null) {
             for (PageId pid : pageIds) {
-                synchronized (pid) {
-                    pageIdToLock.get(pid).tidSet.remove(tid);
-                    if (pageIdToLock.get(pid).tidSet.isEmpty()) {
-                        pageIdToLock.remove(pid);
-                    }
-                }
+                pageLocks.release(tid, pack(pid));
+            }
+        }
+        // the table locks last, they may cover pages locked above
+        HashMap<Integer, TableState> tables = tidToTables.remove(tid);
+        if (tables != null) {
+            for (int tableId : tables.keySet()) {
+                tableLocks.release(tid, tableId);
             }
-            tidToLockedPage.remove(tid);
         }
+        wounded.remove(tid);
     }
 
     /*
      * Return the pages which are locked by tid
      * If tid holds no lock on any page, return null
      */
-    public HashSet<PageId> getLockedPage(TransactionId tid) {
-        return tidToLockedPage.getOrDefault(tid, null);
+    public Set<PageId> getLockedPage(TransactionId tid) {
+        return tidToLockedPage.get(tid);
     }
 }
@@ -3,10 +3,16 @@ package simpledb;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
-import java.util.logging.LogRecord;
-import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -20,8 +26,8 @@ two-phase locking discipline are followed.  <p>
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+log records (on page flushed) and the log file discards BufferPool
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -35,6 +41,78 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Log buffer and LSNs: </u>
+<p>
+
+Records are not written to the file one field at a time: they are
+appended to an in-memory log buffer, which is written to the file when it
+fills up, when the log is forced, and before the log file is read.  Every
+record has a log sequence number (LSN), its offset in the log as if the
+log had never been truncated, so LSNs grow monotonically.  The LSN of
+the last record that changed a page is kept in the page (see
+Page.getLsn()), and BufferPool calls flushUpTo() with it before the page
+is written, which is what makes the log write-ahead.
+
+<u> Group commit: </u>
+<p>
+
+flushUpTo() and force() do not hold the monitor of the log while they
+wait for the disk.  The first thread that needs the log forced becomes the leader of
+a group: it optionally waits up to the group commit delay for other
+committers to append their records, and then a single
+FileChannel.force() makes every record appended so far durable.  Threads
+that arrive while the leader is forcing wait for it, and the next one
+whose records are not covered yet leads the next group.
+
+<u> Asynchronous commit: </u>
+<p>
+
+A transaction that commits asynchronously (see
+Transaction.setSynchronousCommit()) returns as soon as its COMMIT record
+is in the log buffer.  A background flusher forces the log at most the
+async commit delay later, so a crash loses at most the transactions that
+committed within the delay before it.  Atomicity is not at risk: the
+update records of a transaction are forced before its pages are written,
+as always, so recovery rolls back a transaction whose COMMIT record was
+lost like any other that never finished.
+
+<u> Fuzzy checkpoints: </u>
+<p>
+
+The log keeps the dirty page table: for every page with an update record
+that BufferPool hasn't written yet (see pageWritten()), the LSN of the
+first such record, its recLSN.  A checkpoint writes the running
+transactions and the dirty page table without flushing any pages and
+without the buffer pool lock, so it only holds up appenders for as long
+as it takes to copy the two tables into the log buffer.  Recovery starts
+at the oldest of the checkpoint, the first records of the transactions
+running then and the recLSNs of the dirty pages.  setCheckpointInterval()
+starts a background thread that takes a checkpoint whenever the log grew
+by the given number of bytes, which bounds the log recovery has to read.
+
+<u> Undo chains: </u>
+<p>
+
+Every record of a transaction holds the LSN of its previous one, and the
+log keeps the LSN of the last record of each running transaction, so
+rollback follows the chain of a transaction back to its BEGIN record and
+reads none of the records of other transactions.  Every update it undoes
+is logged as a compensation log record (CLR), which redo repeats like an
+update, and which points at the next record of the transaction left to
+undo.  A rollback or recovery that is interrupted by a crash picks up
+where it stopped instead of undoing the same updates again.
+
+<u> Segments: </u>
+<p>
+
+The records are kept in segment files of about setSegmentSize() bytes
+next to the log file, named after it with the LSN of their first byte
+appended, like log.0000000000000001.  When the segment at the tail of
+the log is full, the next write of the log buffer starts a new one, so a
+record never spans two segments.  Truncation deletes the segments that
+end before the oldest record recovery would read, and never has to
+rewrite the log.
 */
 
 /**
@@ -42,33 +120,43 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file holds a single long integer, the LSN of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> All additional data in the log consists of log records, in the
+segment files.  Log records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with a byte type and the varint length of
+its body (see Varint), and ends with the integer CRC32 of the type and
+the body.  A record whose checksum doesn't match ends the log: it was
+torn by a crash.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> The body of every record begins with the zigzag varint transaction
+id and the varint LSN of the previous record of the transaction, or 0
+for its first one.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of the id of the page they change, as
+written by PageIdCodec, and a PageDelta: the byte
+ranges of the page that changed, with their bytes before and after the
+change.  They are read back with LogFile.readUpdate().
+
+<li> CLR records consist of the id of the page an undone update changed
+and the PageDelta that undoes it, followed by the varint LSN of the
+next record of the transaction to undo, the previous record of the
+update.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format
+of the record is a varint count of the number of transactions, as well
+as a transaction id and a varint first record LSN
+for each active transaction, then a varint count of dirty pages, as
+well as the page id and the varint recLSN for each dirty page.
 
 </ul>
 
@@ -77,7 +165,7 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the log file, with the checkpoint LSN
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -85,16 +173,65 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    long currentOffset = -1;//protected by this, LSN of the next record
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // LSN of the last record of each running transaction, the head of its undo chain
+    private final HashMap<Long, Long> lastLsns = new HashMap<>(); // protected by this
+
+    static final int LOG_BUFFER_SIZE = 1 << 20;
+
+    // records appended but not yet written to the file
+    private final LogBuffer buffer = new LogBuffer();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    // the body of the record being appended
+    private final LogBuffer record = new LogBuffer();
+    private final DataOutputStream body = new DataOutputStream(record);
+    private long recordTid; // protected by this, the transaction of the record
+    private final CRC32 crc = new CRC32(); // protected by this
+
+    // 0 is the LSN of a page that was never logged
+    static final long FIRST_LSN = 1;
+    static final long DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    // segment files by the LSN of their first byte; the last one is the tail
+    private final TreeMap<Long, File> segments = new TreeMap<>(); // protected by this
+    private RandomAccessFile segment; // protected by this, the tail segment
+    private long segmentStart = 0; // protected by this, LSN of its first byte
+    private long fileOffset = 0; // protected by this, end of its contents
+    private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    // group commit state
+    private final Object groupLock = new Object();
+    private long durableLsn = 0; // protected by groupLock, end of the forced log
+    private boolean forcing = false; // protected by groupLock, true while a leader forces
+    private long forces = 0; // protected by groupLock
+    private volatile long groupCommitDelayMicros = 0;
+
+    // asynchronous commit state
+    static final long DEFAULT_ASYNC_COMMIT_DELAY_MILLIS = 10;
+    private volatile boolean synchronousCommit = true;
+    private volatile long asyncCommitDelayMillis = DEFAULT_ASYNC_COMMIT_DELAY_MILLIS;
+    private long asyncCommitLsn = 0; // protected by this, the last asynchronous COMMIT record
+    private Thread flusher; // protected by this
+
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    // dirty page table: page -> {recLSN, LSN of its last update record}
+    private final HashMap<PageId, long[]> dirtyPages = new HashMap<>(); // protected by this
+    private long checkpointLsn = 0; // protected by this, LSN of the last checkpoint
+
+    static final long CHECKPOINT_POLL_MILLIS = 50;
+    private volatile long checkpointInterval = 0;
+    private Thread checkpointer; // protected by this
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -130,17 +267,195 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startLog();
+        }
+    }
+
+    // throw away the log and start a new one
+    private void startLog() throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        for (File f : listSegments().values()) {
+            f.delete();
+        }
+        segments.clear();
+        raf.seek(0);
+        raf.setLength(0);
+        raf.writeLong(NO_CHECKPOINT_ID);
+        openSegment(FIRST_LSN);
+        currentOffset = tail();
+    }
+
+    // the segment files of the log on disk
+    private TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> found = new TreeMap<>();
+        String prefix = logFile.getName() + ".";
+        File[] files = logFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(prefix)) {
+                    try {
+                        found.put(Long.parseLong(name.substring(prefix.length()), 16), f);
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // make the segment starting at the given LSN the tail of the log
+    private void openSegment(long start) throws IOException {
+        File f = new File(logFile.getAbsoluteFile().getParentFile(),
+                          String.format("%s.%016x", logFile.getName(), start));
+        segments.put(start, f);
+        segment = new RandomAccessFile(f, "rw");
+        segmentStart = start;
+        fileOffset = segment.length();
+    }
+
+    // the LSN at which the next record starts
+    private long tail() {
+        return segmentStart + fileOffset + buffer.size();
+    }
+
+    // write the log buffer to the end of the log, without forcing it
+    private void writeBuffer() throws IOException {
+        if (buffer.size() > 0) {
+            if (fileOffset >= segmentSize) {
+                // the full segment goes to disk before the next one is used
+                segment.getChannel().force(true);
+                segment.close();
+                openSegment(segmentStart + fileOffset);
+            }
+            segment.seek(fileOffset);
+            fileOffset += buffer.drainTo(segment);
+        }
+    }
+
+    // start a record of the given transaction, and return the stream
+    // the rest of its body goes to
+    private DataOutputStream beginRecord(long tid) throws IOException {
+        record.reset();
+        recordTid = tid;
+        Varint.writeSigned(body, tid);
+        Long prev = lastLsns.get(tid);
+        Varint.write(body, prev == null ? 0 : prev);
+        return body;
+    }
+
+    // append the record begun at currentOffset; returns its LSN
+    private long endRecord(int type) throws IOException {
+        out.writeByte(type);
+        Varint.write(out, record.size());
+        record.writeTo(out);
+        out.writeInt(checksum(type, record.buf(), record.size()));
+
+        long lsn = currentOffset;
+        currentOffset = tail();
+        if (recordTid != NO_CHECKPOINT_ID) {
+            lastLsns.put(recordTid, lsn);
+        }
+        if (buffer.size() >= LOG_BUFFER_SIZE) {
+            writeBuffer();
+        }
+        return lsn;
+    }
+
+    /** @return the LSN the next record will get */
+    public synchronized long getNextLsn() {
+        return tail();
+    }
+
+    /** @return the LSN up to which the log is on disk: every record
+        with a smaller LSN is durable
+    */
+    public long getFlushedLsn() {
+        synchronized (groupLock) {
+            return durableLsn;
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** Set how long the leader of a commit group waits for other
+        committers to join the group before it forces the log.  The
+        leader only waits if other transactions are running.  0, the
+        default, forces right away.
+
+        @param micros The maximum delay in microseconds
+    */
+    public void setGroupCommitDelay(long micros) {
+        groupCommitDelayMicros = micros;
+    }
+
+    public long getGroupCommitDelay() {
+        return groupCommitDelayMicros;
+    }
+
+    /** Set whether the transactions that don't choose for themselves
+        wait for their COMMIT record to be forced to disk (the default),
+        or commit asynchronously.
+
+        @param synchronous false to commit asynchronously
+        @see Transaction#setSynchronousCommit
+    */
+    public void setSynchronousCommit(boolean synchronous) {
+        synchronousCommit = synchronous;
+    }
+
+    public boolean getSynchronousCommit() {
+        return synchronousCommit;
+    }
+
+    /** Set the longest time an asynchronous COMMIT record stays in the
+        log buffer before the background flusher forces it.
+
+        @param millis The delay in milliseconds
+    */
+    public void setAsyncCommitDelay(long millis) {
+        asyncCommitDelayMillis = millis;
+    }
+
+    public long getAsyncCommitDelay() {
+        return asyncCommitDelayMillis;
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        synchronized (groupLock) {
+            return forces;
+        }
+    }
+
+    /** Set the size at which the segment at the tail of the log is
+        closed and a new one started.  Segments end at a record boundary,
+        so they may grow by up to a log buffer beyond it.
+
+        @param bytes The segment size
+    */
+    public void setSegmentSize(long bytes) {
+        segmentSize = bytes;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the number of bytes of log kept in the segments */
+    synchronized long getLogSize() {
+        return segments.isEmpty() ? 0 : tail() - segments.firstKey();
+    }
+
+    /** @return the number of segment files of the log */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -161,32 +476,88 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(tid.getId());
+                endRecord(ABORT_RECORD);
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                lastLsns.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk, unless the log commits
+        asynchronously by default.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, synchronousCommit);
+    }
+
+    /** Write a commit record for the specified tid.
+
+        @param tid The committing transaction.
+        @param synchronous true to force the log to disk, false to leave
+        that to the background flusher
+    */
+    public void logCommit(TransactionId tid, boolean synchronous) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(tid.getId());
+            lsn = endRecord(COMMIT_RECORD);
+            if (!synchronous) {
+                tidToFirstLogRecord.remove(tid.getId());
+                lastLsns.remove(tid.getId());
+                asyncCommitLsn = lsn;
+                if (flusher == null) {
+                    flusher = new Thread(this::runFlusher, "log flusher");
+                    flusher.setDaemon(true);
+                    flusher.start();
+                }
+                return;
+            }
+        }
+        // the commit record is forced together with those of other committers
+        flushUpTo(lsn);
+        synchronized (this) {
+            tidToFirstLogRecord.remove(tid.getId());
+            lastLsns.remove(tid.getId());
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Force the asynchronous COMMIT records every async commit delay,
+        until they are all on disk.
+    */
+    private void runFlusher() {
+        try {
+            while (true) {
+                Thread.sleep(asyncCommitDelayMillis);
+                if (Database.getLogFile() != this) {
+                    break; // a reset database has a new log
+                }
+                long lsn;
+                synchronized (this) {
+                    lsn = asyncCommitLsn;
+                    if (lsn < getFlushedLsn()) {
+                        flusher = null;
+                        return;
+                    }
+                }
+                flushUpTo(lsn);
+            }
+        } catch (InterruptedException e) {
+            // stop
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            flusher = null;
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -194,108 +565,127 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public long logWrite(TransactionId tid, Page before, Page after)
+        throws IOException  {
+        return logWrite(tid, after, before.getPageData(), after.getPageData());
+    }
+
+    /** Write an UPDATE record to disk for the specified tid and page.
+        Only the bytes of the page that differ between the two images are
+        logged.
+        @param tid The transaction performing the write
+        @param page The page being written
+        @param before The page data as of the last update record of the
+          page, or its before image if there is none
+        @param after The page data as it is written
+        @return the LSN of the record
+    */
+    public  synchronized long logWrite(TransactionId tid, Page page,
+                                       byte[] before, byte[] after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + tail());
         preAppend();
         /* update record conists of
 
-           record type
            transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
+           page id, changed bytes of the page (see Update)
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        DataOutputStream rec = beginRecord(tid.getId());
+        // the LSN of the page is not part of the change: whoever applies
+        // the record stamps the page with the LSN of the record instead
+        PageDelta delta = PageDelta.diff(before, after, Page.LSN_SIZE);
+        new Update(page.getId(), delta).write(rec);
+        long lsn = endRecord(UPDATE_RECORD);
+
+        long[] entry = dirtyPages.get(page.getId());
+        if (entry == null) {
+            dirtyPages.put(page.getId(), new long[] { lsn, lsn });
+        } else {
+            entry[1] = lsn;
+        }
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** The contents of an UPDATE record after the transaction id: the
+        id of the page and the change.
+    */
+    static class Update {
+        final PageId pid;
+        final PageDelta delta;
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        Update(PageId pid, PageDelta delta) {
+            this.pid = pid;
+            this.delta = delta;
+        }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        void write(DataOutput out) throws IOException {
+            PageIdCodec.write(out, pid);
+            delta.write(out);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    Update readUpdate(DataInput in) throws IOException {
+        PageId pid = PageIdCodec.read(in);
+        return new Update(pid, PageDelta.read(in));
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** The data of a page as recovery and rollback write it back.  The
+        DbFiles only need the id and the data of a page to write it.  The
+        LSN is read from and stamped into the first Page.LSN_SIZE bytes of
+        the data, where every page format keeps it.
+    */
+    private static class PageImage implements Page {
+        private final PageId pid;
+        private final byte[] data;
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        PageImage(PageId pid, byte[] data) {
+            this.pid = pid;
+            this.data = data;
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        public PageId getId() { return pid; }
+        public TransactionId isDirty() { return null; }
+        public void markDirty(boolean dirty, TransactionId tid) { }
+        public byte[] getPageData() { return data; }
+        public Page getBeforeImage() { return this; }
+        public void setBeforeImage() { }
+        public long getLsn() { return ByteBuffer.wrap(data).getLong(0); }
+        public void setLsn(long lsn) { ByteBuffer.wrap(data).putLong(0, lsn); }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /** Read the data of a page from disk.  A page the file doesn't have
+        yet starts out empty.
+    */
+    private static PageImage readImage(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] data;
+        try {
+            data = file.readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            data = new byte[BufferPool.getPageSize()];
         }
-        return newPage;
+        return new PageImage(pid, data);
+    }
 
+    private static void writeImage(PageImage image) throws IOException {
+        Database.getCatalog().getDatabaseFile(image.getId().getTableId()).writePage(image);
+    }
+
+    /** Redo or undo an update on the page on disk.
+        @param lsn The LSN of the record that redoes or undoes it, which
+          the page is stamped with
+    */
+    void applyUpdate(Update u, boolean redo, long lsn) throws IOException {
+        PageImage image = readImage(u.pid);
+        u.delta.apply(image.getPageData(), redo);
+        image.setLsn(lsn);
+        writeImage(image);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -310,150 +700,145 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(tid.getId());
+        endRecord(BEGIN_RECORD);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Tell the log that a page was written to disk with the changes
+        of its update records up to the given LSN, which takes it out of
+        the dirty page table unless it was logged again since.
+
+        @param pid The page that was written
+        @param lsn The LSN of the page when it was written
+    */
+    public synchronized void pageWritten(PageId pid, long lsn) {
+        long[] entry = dirtyPages.get(pid);
+        if (entry != null && entry[1] <= lsn) {
+            dirtyPages.remove(pid);
+        }
+    }
+
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: it records the running transactions and the dirty page
+        table instead of flushing the buffer pool, so transactions keep
+        running while it is taken.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset = currentOffset;
+            DataOutputStream rec = beginRecord(NO_CHECKPOINT_ID); //no tid
+
+            //write list of outstanding transactions
+            Varint.write(rec, tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                Varint.writeSigned(rec, e.getKey());
+                Varint.write(rec, e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table, with the recLSNs
+            Varint.write(rec, dirtyPages.size());
+            for (Map.Entry<PageId, long[]> e : dirtyPages.entrySet()) {
+                PageIdCodec.write(rec, e.getKey());
+                Varint.write(rec, e.getValue()[0]);
             }
+            checkpointLsn = endRecord(CHECKPOINT_RECORD);
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            // truncation deletes what an older checkpoint would need
+            raf.getFD().sync();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
+    /** Take a checkpoint in the background whenever the log grew by the
+        given number of bytes since the last one.  0, the default, turns
+        the background checkpoints off.
+
+        @param bytes The log growth that triggers a checkpoint
+    */
+    public synchronized void setCheckpointInterval(long bytes) {
+        checkpointInterval = bytes;
+        if (bytes > 0 && checkpointer == null) {
+            checkpointer = new Thread(this::runCheckpointer, "log checkpointer");
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    private void runCheckpointer() {
+        try {
+            // a reset database has a new log
+            while (checkpointInterval > 0 && Database.getLogFile() == this) {
+                boolean due;
+                synchronized (this) {
+                    due = !recoveryUndecided && tail() - checkpointLsn >= checkpointInterval;
+                }
+                if (due) {
+                    logCheckpoint();
+                } else {
+                    Thread.sleep(CHECKPOINT_POLL_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stop
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (this) {
+                checkpointer = null;
+            }
+        }
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption: delete the segments that end before the oldest
+        record recovery from the last checkpoint reads. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        writeBuffer();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return; // recovery reads all of the log
+        }
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        Record cp = readCheckpoint(cpLoc);
+        for (long firstLogRecord : cp.firstLsns.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        // redo starts at the oldest recLSN
+        for (long recLogRecord : cp.recLsns.values()) {
+            if (recLogRecord < minLogRecord) {
+                minLogRecord = recLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can delete every segment that ends before minLogRecord
+        while (segments.size() > 1 && segments.higherKey(segments.firstKey()) <= minLogRecord) {
+            File f = segments.pollFirstEntry().getValue();
+            Debug.log("TRUNCATING LOG; DELETING " + f + ", NEW START : " + segments.firstKey());
+            f.delete();
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -480,34 +865,56 @@ public class LogFile {
     private void rollBack(long tid) throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                Long begin = tidToFirstLogRecord.get(tid);
-                raf.seek(raf.length() - LONG_SIZE); // last record
-                long cur = raf.readLong();
-                while (begin < cur) {   // the first record of tid is BEGIN type
-                    raf.seek(cur);
-                    int recordType = raf.readInt();
-                    long recordTid = raf.readLong();
-                    if (recordType == UPDATE_RECORD && recordTid == tid) {  // roll back
-                        Page beforeImg = readPageData(raf);
-                        Database.getCatalog().getDatabaseFile(beforeImg.getId().getTableId()).writePage(beforeImg);
-                        Database.getBufferPool().discardPage(beforeImg.getId());
+                // follow the undo chain of tid back to its BEGIN record
+                ArrayList<Record> undo = new ArrayList<>();
+                Long lsn = lastLsns.get(tid);
+                while (lsn != null && lsn != 0) {
+                    Record r = readRecordAt(lsn);
+                    if (r.type == UPDATE_RECORD) {
+                        undo.add(r);
                     }
-                    raf.seek(cur - LONG_SIZE);  // previous file offset
-                    cur = raf.readLong();
+                    lsn = r.type == CLR_RECORD ? r.undoNext : r.prev;
+                }
+                long[] clrs = new long[undo.size()];
+                for (int i = 0; i < undo.size(); ++i) {
+                    clrs[i] = logClr(undo.get(i));
+                }
+                // write-ahead: the CLRs go to disk before the pages
+                if (!undo.isEmpty()) {
+                    force();
+                }
+                for (int i = 0; i < undo.size(); ++i) {  // roll back
+                    Record r = undo.get(i);
+                    applyUpdate(r.update, false, clrs[i]);
+                    Database.getBufferPool().discardPage(r.update.pid);
                 }
-                raf.seek(currentOffset);
             }
         }
     }
 
+    /** Append the compensation log record for undoing the given update.
+        CLRs don't enter the dirty page table: the undo is written to the
+        page before the log monitor is released, so no checkpoint sees it
+        unwritten.
+    */
+    private long logClr(Record update) throws IOException {
+        preAppend();
+        DataOutputStream rec = beginRecord(update.tid);
+        new Update(update.update.pid, update.update.delta.invert()).write(rec);
+        Varint.write(rec, update.prev);
+        return endRecord(CLR_RECORD);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
     public synchronized void shutdown() {
         try {
+            checkpointInterval = 0;
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
+            segment.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -517,88 +924,430 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery follows ARIES:
+        <ul>
+        <li> analysis reads the log forward from the last checkpoint (or
+        the oldest record it refers to) and rebuilds the transaction
+        table (the running transactions and their updates) and the dirty
+        page table (the one of the checkpoint, plus every page changed
+        since, with the LSN of its first change, its recLSN);
+        <li> redo repeats history from the smallest recLSN: every update
+        and CLR to a page in the dirty page table at or after its recLSN;
+        <li> undo follows the undo chains of the transactions that never
+        finished, newest record first, rolls back their updates that no
+        CLR compensates yet, logging a CLR for each, and logs an ABORT
+        record for every such transaction.
+        </ul>
+        Redo and undo of different pages are independent, so the work is
+        collected per page and the pages are partitioned over a pool of
+        recovery threads: each reads its pages once, applies their updates
+        in order and writes them back once.  Within a page, an update is
+        only redone if its LSN is beyond the page LSN.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                segments.clear();
+                segments.putAll(listSegments());
+                if (segments.isEmpty() || raf.length() < LONG_SIZE) {
+                    // no log, nothing to recover; start a new one
+                    startLog();
+                    return;
+                }
+                openSegment(segments.lastKey());
+                currentOffset = tail();
 
-                // read the last checkpoint
-                currentOffset = raf.length();
+                // analysis
                 raf.seek(0);
-                long lastCheckPoint = raf.readLong();
+                long checkpoint = raf.readLong();
+                HashMap<PageId, Long> dirtyPages = new HashMap<>();
+                long start = segments.firstKey();
+                if (checkpoint != NO_CHECKPOINT_ID) {
+                    // the transactions running at the checkpoint may have
+                    // updates before it, which undo needs, and the dirty
+                    // pages updates before it, which redo needs
+                    start = checkpoint;
+                    Record cp = readCheckpoint(checkpoint);
+                    for (Map.Entry<Long, Long> e : cp.firstLsns.entrySet()) {
+                        lastLsns.put(e.getKey(), e.getValue());
+                        tidToFirstLogRecord.put(e.getKey(), e.getValue());
+                        start = Math.min(start, e.getValue());
+                    }
+                    for (Map.Entry<PageId, Long> e : cp.recLsns.entrySet()) {
+                        dirtyPages.put(e.getKey(), e.getValue());
+                        start = Math.min(start, e.getValue());
+                    }
+                }
+                ArrayList<Record> log = readRecords(start);
+
+                // lastLsns ends up holding the transactions that never finished
+                for (Record r : log) {
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        lastLsns.put(r.tid, r.lsn);
+                        tidToFirstLogRecord.put(r.tid, r.lsn);
+                        break;
+                    case UPDATE_RECORD:
+                    case CLR_RECORD:
+                        lastLsns.put(r.tid, r.lsn);
+                        if (r.lsn > checkpoint) {
+                            // pages not in the dirty page table of the
+                            // checkpoint were on disk then
+                            dirtyPages.putIfAbsent(r.update.pid, r.lsn);
+                        }
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        lastLsns.remove(r.tid);
+                        tidToFirstLogRecord.remove(r.tid);
+                        break;
+                    }
+                }
 
-                if (lastCheckPoint == NO_CHECKPOINT_ID) {   // If no check point, set it to start of log file.
-                    lastCheckPoint = LONG_SIZE;
+                // redo
+                HashMap<PageId, ArrayList<Action>> work = new HashMap<>();
+                long redoLsn = Long.MAX_VALUE;
+                for (long recLsn : dirtyPages.values()) {
+                    redoLsn = Math.min(redoLsn, recLsn);
+                }
+                for (Record r : log) {
+                    if (r.lsn < redoLsn || r.update == null) {
+                        continue;
+                    }
+                    Long recLsn = dirtyPages.get(r.update.pid);
+                    if (recLsn != null && r.lsn >= recLsn) {
+                        addAction(work, r, true, r.lsn);
+                    }
                 }
 
-                // scan from lastCheckPoint
-                Stack<Long> offsets = getFileOffsets(lastCheckPoint, currentOffset);
-
-                HashSet<Long> transactions = new HashSet<>();
-
-                while (!offsets.empty()) {      // redo updates and build the set of loser transactions
-                    long cur = offsets.pop();
-                    raf.seek(cur);
-                    int recordType = raf.readInt();
-                    long recordTid = raf.readLong();
-                    switch (recordType) {
-                        case ABORT_RECORD:
-                            rollBack(recordTid);
-                            transactions.remove(recordTid);
-                            break;
-                        case COMMIT_RECORD:
-                            tidToFirstLogRecord.remove(recordTid);
-                            transactions.remove(recordTid);
-                            break;
-                        case BEGIN_RECORD:
-                            tidToFirstLogRecord.put(recordTid, cur);
-                            transactions.add(recordTid);
-                            break;
-                        case UPDATE_RECORD:     // redo
-                            readPageData(raf);  // before
-                            Page afterImg = readPageData(raf);
-                            Database.getCatalog().getDatabaseFile(afterImg.getId().getTableId()).writePage(afterImg);
-                            break;
-                        case CHECKPOINT_RECORD:
-                            // This checkpoint may contain dirty data
-                            // Eg: t1 starts and updates data before checkpoint, never commit or abort before crash
-                            int transactionNum = raf.readInt();
-                            for (int i = 0; i < transactionNum; ++i) {
-                                recordTid = raf.readLong();
-                                long pos = raf.readLong();
-                                transactions.add(recordTid);
-                                tidToFirstLogRecord.put(recordTid, pos);
-                            }
-                            break;
-                        default:
-                            throw new IOException("Wrong record type");
+                // undo: the newest record of any loser first, following
+                // the undo chains and logging a CLR for every update undone
+                HashMap<Long, Record> byLsn = new HashMap<>();
+                for (Record r : log) {
+                    byLsn.put(r.lsn, r);
+                }
+                ArrayList<Long> losers = new ArrayList<>(lastLsns.keySet());
+                TreeMap<Long, Long> toUndo = new TreeMap<>();
+                for (Map.Entry<Long, Long> e : lastLsns.entrySet()) {
+                    toUndo.put(e.getValue(), e.getKey());
+                }
+                while (!toUndo.isEmpty()) {
+                    Map.Entry<Long, Long> next = toUndo.pollLastEntry();
+                    Record r = byLsn.get(next.getKey());
+                    if (r == null) {
+                        throw new IOException("undo chain of transaction " + next.getValue()
+                                              + " leaves the log at LSN " + next.getKey());
+                    }
+                    if (r.type == UPDATE_RECORD) {
+                        addAction(work, r, false, logClr(r));
+                    }
+                    long prev = r.type == CLR_RECORD ? r.undoNext : r.prev;
+                    if (prev != 0) {
+                        toUndo.put(prev, r.tid);
                     }
                 }
+                // write-ahead: the CLRs go to disk before the pages
+                force();
 
-                // undo the updates of loser transaction
-                // loser: only appears in BEGIN_RECORD but not in COMMIT_RECORD or ABORT_RECORD
-                for (long tid : transactions) {
-                    rollBack(tid);
+                applyActions(work);
+
+                for (long tid : losers) {
+                    preAppend();
+                    beginRecord(tid);
+                    endRecord(ABORT_RECORD);
+                    tidToFirstLogRecord.remove(tid);
+                    lastLsns.remove(tid);
                 }
+                force();
             }
          }
     }
 
-    private Stack<Long> getFileOffsets(long start, long end) throws IOException {
-        raf.seek(raf.length() - LONG_SIZE);
-        long cur = raf.readLong();
-        Stack<Long> res = new Stack<>();
-        while (cur >= start) {
-            res.push(cur);
-            if (cur <= LONG_SIZE) {
-                break;
+    /** A log record read back by recovery. */
+    private static class Record {
+        final int type;
+        final long tid;
+        final long lsn;
+        final long prev; // LSN of the previous record of the transaction
+        final Update update; // of UPDATE and CLR records
+        long undoNext; // of CLR records
+        // of CHECKPOINT records: the first LSNs of the running transactions
+        // and the recLSNs of the dirty pages
+        HashMap<Long, Long> firstLsns;
+        HashMap<PageId, Long> recLsns;
+
+        Record(int type, long tid, long prev, long lsn, Update update) {
+            this.type = type;
+            this.tid = tid;
+            this.prev = prev;
+            this.lsn = lsn;
+            this.update = update;
+        }
+    }
+
+    /** Redo or undo of an update by recovery. */
+    private static class Action {
+        final Record record;
+        final boolean redo;
+        final long lsn; // of the record itself for redo, of its CLR for undo
+
+        Action(Record record, boolean redo, long lsn) {
+            this.record = record;
+            this.redo = redo;
+            this.lsn = lsn;
+        }
+    }
+
+    private static void addAction(HashMap<PageId, ArrayList<Action>> work, Record r, boolean redo,
+                                  long lsn) {
+        work.computeIfAbsent(r.update.pid, k -> new ArrayList<Action>()).add(new Action(r, redo, lsn));
+    }
+
+    /** Read the records of the log from the given LSN to its end.  A
+        record that a crash left incomplete at the end of the log is
+        discarded.
+    */
+    private ArrayList<Record> readRecords(long start) throws IOException {
+        writeBuffer();
+        ArrayList<Record> records = new ArrayList<>();
+        Long first = segments.floorKey(start);
+        if (first == null) {
+            throw new IOException("log truncated before LSN " + start);
+        }
+        for (Map.Entry<Long, File> e : segments.tailMap(first, true).entrySet()) {
+            long from = Math.max(start, e.getKey());
+            long end = e.getKey() + (e.getKey() == segmentStart ? fileOffset : e.getValue().length());
+            try (CountingInputStream counter = new CountingInputStream(openAt(from), from)) {
+                DataInputStream in = new DataInputStream(counter);
+                while (counter.position() < end) {
+                    long lsn = counter.position();
+                    Record r = readRecord(in, lsn, end - lsn);
+                    if (r == null) {
+                        if (e.getKey() != segmentStart) {
+                            throw new IOException("corrupt log record at LSN " + lsn);
+                        }
+                        Debug.log("DISCARDING TORN LOG RECORD AT " + lsn);
+                        fileOffset = lsn - segmentStart;
+                        segment.setLength(fileOffset);
+                        currentOffset = tail();
+                        break;
+                    }
+                    records.add(r);
+                }
+            }
+        }
+        return records;
+    }
+
+    /** Read the record that starts at the given LSN, or return null if it
+        is incomplete or its checksum doesn't match.
+        @param limit The number of bytes left in the segment
+    */
+    private Record readRecord(DataInput in, long lsn, long limit) throws IOException {
+        byte[] data;
+        int type;
+        try {
+            type = in.readUnsignedByte();
+            long len = Varint.read(in);
+            if (len < 0 || len > limit || len > Integer.MAX_VALUE) {
+                return null;
+            }
+            data = new byte[(int) len];
+            in.readFully(data);
+            if (in.readInt() != checksum(type, data, data.length)) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+
+        DataInputStream rec = new DataInputStream(new ByteArrayInputStream(data));
+        long tid = Varint.readSigned(rec);
+        long prev = Varint.read(rec);
+        Record r;
+        switch (type) {
+        case UPDATE_RECORD:
+            r = new Record(type, tid, prev, lsn, readUpdate(rec));
+            break;
+        case CLR_RECORD:
+            r = new Record(type, tid, prev, lsn, readUpdate(rec));
+            r.undoNext = Varint.read(rec);
+            break;
+        case CHECKPOINT_RECORD:
+            r = new Record(type, tid, prev, lsn, null);
+            r.firstLsns = new HashMap<>();
+            for (int n = Varint.readInt(rec); n > 0; --n) {
+                long xid = Varint.readSigned(rec);
+                r.firstLsns.put(xid, Varint.read(rec));
             }
-            raf.seek(cur - LONG_SIZE);
-            cur = raf.readLong();
+            r.recLsns = new HashMap<>();
+            for (int n = Varint.readInt(rec); n > 0; --n) {
+                PageId pid = PageIdCodec.read(rec);
+                r.recLsns.put(pid, Varint.read(rec));
+            }
+            break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            r = new Record(type, tid, prev, lsn, null);
+            break;
+        default:
+            throw new IOException("Wrong record type");
+        }
+        return r;
+    }
+
+    private Record readRecordAt(long lsn) throws IOException {
+        writeBuffer();
+        Map.Entry<Long, File> e = segments.floorEntry(lsn);
+        if (e == null) {
+            throw new IOException("log truncated before LSN " + lsn);
+        }
+        if (e.getKey() == segmentStart) {
+            segment.seek(lsn - segmentStart);
+            return readRecordAt(segment, lsn, fileOffset - (lsn - segmentStart));
+        }
+        try (RandomAccessFile f = new RandomAccessFile(e.getValue(), "r")) {
+            f.seek(lsn - e.getKey());
+            return readRecordAt(f, lsn, f.length() - (lsn - e.getKey()));
         }
-        return res;
+    }
+
+    private Record readRecordAt(RandomAccessFile f, long lsn, long limit) throws IOException {
+        Record r = readRecord(f, lsn, limit);
+        if (r == null) {
+            throw new IOException("corrupt log record at LSN " + lsn);
+        }
+        return r;
+    }
+
+    private Record readCheckpoint(long lsn) throws IOException {
+        writeBuffer();
+        try (DataInputStream in = new DataInputStream(openAt(lsn))) {
+            Record r = readRecord(in, lsn, Long.MAX_VALUE);
+            if (r == null || r.type != CHECKPOINT_RECORD) {
+                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+            }
+            return r;
+        }
+    }
+
+    // the CRC32 of the type and the body of a record
+    private int checksum(int type, byte[] data, int len) {
+        crc.reset();
+        crc.update(type);
+        crc.update(data, 0, len);
+        return (int) crc.getValue();
+    }
+
+    /** @return a stream over the segment of the log that holds the given
+        LSN, from that LSN on
+    */
+    private InputStream openAt(long lsn) throws IOException {
+        Map.Entry<Long, File> e = segments.floorEntry(lsn);
+        if (e == null) {
+            throw new IOException("log truncated before LSN " + lsn);
+        }
+        FileInputStream in = new FileInputStream(e.getValue());
+        in.getChannel().position(lsn - e.getKey());
+        return new BufferedInputStream(in);
+    }
+
+    /** An input stream that knows its LSN. */
+    private static class CountingInputStream extends FilterInputStream {
+        private long position;
+
+        CountingInputStream(InputStream in, long position) {
+            super(in);
+            this.position = position;
+        }
+
+        long position() {
+            return position;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            position += skipped;
+            return skipped;
+        }
+    }
+
+    /** Set the number of threads recover() applies redo and undo with.
+        Defaults to the number of processors.
+    */
+    public void setRecoveryThreads(int threads) {
+        recoveryThreads = threads;
+    }
+
+    /** Apply the redo and undo work of recovery, partitioned by page
+        over the recovery threads.
+    */
+    private void applyActions(HashMap<PageId, ArrayList<Action>> work) throws IOException {
+        int threads = Math.max(1, Math.min(recoveryThreads, work.size()));
+        ArrayList<ArrayList<PageId>> partitions = new ArrayList<>();
+        for (int i = 0; i < threads; ++i) {
+            partitions.add(new ArrayList<PageId>());
+        }
+        for (PageId pid : work.keySet()) {
+            partitions.get(Math.floorMod(pid.hashCode(), threads)).add(pid);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<?>> done = new ArrayList<>();
+            for (ArrayList<PageId> partition : partitions) {
+                done.add(pool.submit(() -> {
+                    for (PageId pid : partition) {
+                        applyActions(pid, work.get(pid));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted during recovery");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("recovery failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void applyActions(PageId pid, ArrayList<Action> actions) throws IOException {
+        PageImage image = readImage(pid);
+        for (Action a : actions) {
+            if (a.redo && a.record.lsn <= image.getLsn()) {
+                // the page was flushed with this update already
+                continue;
+            }
+            a.record.update.delta.apply(image.getPageData(), a.redo);
+            image.setLsn(a.lsn);
+        }
+        writeImage(image);
     }
 
     /** Print out a human readable represenation of the log */
@@ -606,8 +1355,111 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force every record appended so far to disk. */
+    public void force() throws IOException {
+        long lsn;
+        synchronized (this) {
+            lsn = tail() - 1;
+        }
+        flushUpTo(lsn);
+    }
+
+    /** Force the log to disk up to and including the record with the
+        given LSN, as part of a commit group (see the class comment.)
+        Returns right away if that record is on disk already.
+
+        @param lsn The LSN of the record that has to be durable
+    */
+    public void flushUpTo(long lsn) throws IOException {
+        synchronized (groupLock) {
+            if (durableLsn > lsn) {
+                return;
+            }
+        }
+        if (Thread.holdsLock(this)) {
+            // a leader would wait for our monitor to collect its group
+            synchronized (this) {
+                writeBuffer();
+                segment.getChannel().force(true);
+                markDurable(segmentStart + fileOffset);
+            }
+            return;
+        }
+        synchronized (groupLock) {
+            while (durableLsn <= lsn && forcing) {
+                try {
+                    groupLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted waiting for log force");
+                }
+            }
+            if (durableLsn > lsn) {
+                return;
+            }
+            forcing = true;
+        }
+
+        // this thread leads the group
+        try {
+            long delay = groupCommitDelayMicros;
+            boolean others;
+            synchronized (this) {
+                others = tidToFirstLogRecord.size() > 1;
+            }
+            if (delay > 0 && others) {
+                LockSupport.parkNanos(delay * 1000);
+            }
+            long end;
+            FileChannel channel;
+            synchronized (this) {
+                writeBuffer();
+                end = segmentStart + fileOffset;
+                channel = segment.getChannel();
+            }
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // the segment filled up, and was forced before the next one was started
+            }
+            markDurable(end);
+        } finally {
+            synchronized (groupLock) {
+                forcing = false;
+                groupLock.notifyAll();
+            }
+        }
+    }
+
+    private void markDurable(long lsn) {
+        synchronized (groupLock) {
+            forces++;
+            if (lsn > durableLsn) {
+                durableLsn = lsn;
+                groupLock.notifyAll();
+            }
+        }
+    }
+
+    /** The log buffer, which hands its contents to the file without
+        copying them first.
+    */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer() {
+            super(64 * 1024);
+        }
+
+        // the buffered bytes, valid up to size()
+        byte[] buf() {
+            return buf;
+        }
+
+        // write the buffered bytes to f and empty the buffer
+        int drainTo(RandomAccessFile f) throws IOException {
+            int n = count;
+            f.write(buf, 0, n);
+            reset();
+            return n;
+        }
     }
 
 }
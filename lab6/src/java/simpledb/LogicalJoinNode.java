@@ -23,6 +23,14 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** True if the join looks the tuples of t1 up in an index of t2 instead
+     * of reading t2, see {@link IndexNestedLoopJoin}.  Set by the JoinOptimizer. */
+    public boolean indexProbe;
+
+    /** True if the join is a {@link SortMergeJoin}, because it costs no more
+     * than hashing, usually since its sides come sorted.  Set by the JoinOptimizer. */
+    public boolean sortMerge;
+
     public LogicalJoinNode() {
     }
 
@@ -20,6 +20,16 @@ import java.util.NoSuchElementException;
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
  * best implementations for joins.
+ * <p>
+ * A query over a single large HeapFile without joins is run on the threads
+ * of an {@link Exchange}: the table is scanned and filtered in partitions
+ * of its pages, one per thread, and aggregates that can be combined from
+ * partial results (min, max, sum and count) are computed per partition
+ * before the exchange.
+ * <p>
+ * A LIMIT is planned as a {@link Limit} at the top of the plan, which
+ * stops reading its child once it has the tuples it needs; under an
+ * ORDER BY, a {@link TopN} sorts only the tuples the limit keeps.
  */
 public class LogicalPlan {
     private Vector<LogicalJoinNode> joins;
@@ -33,11 +43,16 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> oByFields;
+    private Vector<Boolean> oByAsc;
+    private int limit = -1, offset = 0;
     private String query;
+    private boolean parallelScans = true;
 //    private Query owner;
 
+    /** The number of pages a table needs before it is scanned in parallel. */
+    public static final int MIN_PARALLEL_PAGES = 100;
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
@@ -47,6 +62,8 @@ public class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        oByFields = new Vector<String>();
+        oByAsc = new Vector<Boolean>();
         this.query = "";
     }
 
@@ -66,6 +83,14 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Let the physical plan scan a large table on parallel threads, the
+        default.  Plans whose output is written to the database, like those
+        of INSERT ... SELECT and DELETE, are run on the calling thread.
+    */
+    public void setParallelScans(boolean parallelScans) {
+        this.parallelScans = parallelScans;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -203,17 +228,26 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Called once per
+        ORDER BY field, most significant first.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.addElement(field);
+        oByAsc.addElement(asc);
+    }
+
+    /** Add a LIMIT and an OFFSET: hand out at most limit tuples of the result, after skipping
+        the first offset ones.
+        @param limit the number of tuples to return at most, or -1 for all of them
+        @param offset the number of tuples to skip
+    */
+    public void setLimit(int limit, int offset) {
+        this.limit = limit;
+        this.offset = offset;
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -271,6 +305,46 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return the number of partitions to scan the table of this plan in,
+     *     one per thread of the exchanges, or 1 to scan it on the calling
+     *     thread.  Only plans over a single HeapFile of at least
+     *     MIN_PARALLEL_PAGES pages, without joins, are split.
+     */
+    private int scanPartitions() {
+        int threads = Exchange.getParallelism();
+        if (!parallelScans || threads < 2 || tables.size() != 1 || !joins.isEmpty()) {
+            return 1;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tables.get(0).t);
+        if (!(file instanceof HeapFile) || ((HeapFile) file).numPages() < MIN_PARALLEL_PAGES) {
+            return 1;
+        }
+        return threads;
+    }
+
+    /**
+     * Aggregate the partitions of a parallel scan: every worker aggregates
+     * its partition, and an Aggregate above the exchange combines their
+     * partial results.  The exchange names the partial results after the
+     * input fields, so that the output is named like that of an Aggregate
+     * over the whole table.
+     */
+    private static Aggregate parallelAggregate(OpIterator[] parts, int afield, int gfield, Aggregator.Op op) {
+        TupleDesc td = parts[0].getTupleDesc();
+        OpIterator[] partials = new OpIterator[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            partials[i] = new Aggregate(parts[i], afield, gfield, op);
+        }
+        if (gfield == Aggregator.NO_GROUPING) {
+            TupleDesc ptd = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{td.getFieldName(afield)});
+            return new Aggregate(new Exchange(partials, ptd), 0, Aggregator.NO_GROUPING, op, true);
+        }
+        TupleDesc ptd = new TupleDesc(new Type[]{td.getFieldType(gfield), Type.INT_TYPE},
+                new String[]{td.getFieldName(gfield), td.getFieldName(afield)});
+        return new Aggregate(new Exchange(partials, ptd), 1, 0, op, true);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -289,6 +363,7 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        ArrayList<Predicate> predicates = new ArrayList<Predicate>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -335,6 +410,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            predicates.add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -345,6 +421,7 @@ public class LogicalPlan {
         }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
+        jo.setSnapshotReads(Database.getBufferPool().readsSnapshot(t));
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
@@ -408,6 +485,20 @@ public class LogicalPlan {
         
         OpIterator node =  (OpIterator)(subplanMap.entrySet().iterator().next().getValue());
 
+        // the scans and filters of the partitions of a parallel scan
+        OpIterator[] parts = null;
+        int partitions = scanPartitions();
+        if (partitions > 1) {
+            LogicalScanNode table = tables.get(0);
+            parts = new OpIterator[partitions];
+            for (int i = 0; i < partitions; i++) {
+                parts[i] = new SeqScan(t, table.t, table.alias, i, partitions);
+                for (Predicate p : predicates) {
+                    parts[i] = new Filter(p, parts[i]);
+                }
+            }
+        }
+
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
         ArrayList<Type> outTypes = new ArrayList<Type>();
@@ -462,20 +553,40 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int afield = td.fieldNameToIndex(aggField);
+                int gfield = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                Aggregator.Op op = getAggOp(aggOp);
+                if (parts != null && op != Aggregator.Op.AVG && td.getFieldType(afield) == Type.INT_TYPE) {
+                    aggNode = parallelAggregate(parts, afield, gfield, op);
+                } else {
+                    aggNode = new Aggregate(parts != null ? new Exchange(parts) : node, afield, gfield, op);
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
+        } else if (parts != null) {
+            node = new Exchange(parts);
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                asc[i] = oByAsc.elementAt(i);
+            }
+            if (limit >= 0) {
+                // only the first offset + limit tuples of the sort are needed
+                node = new TopN(fields, asc, offset + limit, node);
+            } else {
+                node = new OrderBy(fields, asc, node);
+            }
+        }
+        if (limit >= 0 || offset > 0) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
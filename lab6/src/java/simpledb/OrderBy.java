@@ -3,22 +3,45 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, on one or
+ * more fields, each ascending or descending.  It reads its child and hands
+ * out the sorted tuples a batch at a time.
+ * <p>
+ * OrderBy is an external merge sort.  It holds at most its memory budget
+ * of tuples: when the child has more, every budget's worth of tuples is
+ * sorted and written to a SpillFile as a sorted run, and the runs are
+ * merged with a loser tree, MERGE_FAN_IN runs at a time, while the sorted
+ * tuples are handed out.  A child that fits in the budget is sorted in
+ * memory.  The sort is stable: tuples with equal keys keep the order of
+ * the child.
  */
-public class OrderBy extends Operator {
+public class OrderBy extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default memory budget, in tuples. */
+    public final static int SORT_MEMORY = 100000;
+
+    /** The number of runs merged at a time. */
+    public final static int MERGE_FAN_IN = 64;
+
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final TupleComparator comparator;
+    private int memoryTuples = SORT_MEMORY;
+    private int pos;
+    private transient TupleBatch out;
+
+    // the sorted runs of a child that didn't fit in memory, and their merge
+    private transient ArrayList<SpillFile> runs;
+    private transient LoserTree merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,65 +50,218 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts the tuples from the iterator on
+     * several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for every field, true if its order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need a sort order for every field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        comparator = new TupleComparator(this.orderByFields, this.asc);
     }
-    
+
+    /** @return true if the first field is sorted in ascending order */
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
-    
+
+    /** @return the first field the tuples are sorted on */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(orderByFields[0]);
+    }
+
+    /** @return the fields the tuples are sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for every field the tuples are sorted on, true if ascending */
+    public boolean[] getAscOrders() {
+        return asc.clone();
+    }
+
+    /**
+     * Set the number of tuples the sort may hold in memory, SORT_MEMORY by
+     * default.  Takes effect when the operator is next opened.
+     */
+    public void setMemoryBudget(int tuples) {
+        memoryTuples = tuples;
+    }
+
+    public int getMemoryBudget() {
+        return memoryTuples;
     }
-    
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        deleteRuns();
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // load the tuples a budget at a time, and sort them
+        childTups.clear();
+        BatchOpIterator input = BatchOpIterator.of(child);
+        TupleBatch batch;
+        while ((batch = input.nextBatch()) != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (childTups.size() >= memoryTuples)
+                    spillRun();
+                childTups.add(batch.getTuple(i));
+            }
+        }
+        if (runs != null) {
+            if (!childTups.isEmpty())
+                spillRun();
+            mergeRuns();
+        } else {
+            sort();
+        }
+        pos = 0;
         super.open();
     }
 
+    private void sort() {
+        if (orderByFields.length == 1 && td.getFieldType(orderByFields[0]) == Type.INT_TYPE)
+            sortByInt();
+        else
+            Collections.sort(childTups, comparator);
+    }
+
+    /**
+     * Sort the tuples by an int field without comparing Fields: every key
+     * is packed with the position of its tuple into a long, with the key
+     * in the high half (inverted for a descending sort), and the longs are
+     * sorted as primitives.  Equal keys keep their order.
+     */
+    private void sortByInt() {
+        int n = childTups.size();
+        int field = orderByFields[0];
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int key = ((IntField) childTups.get(i).getField(field)).getValue();
+            keys[i] = ((long) (asc[0] ? key : ~key) << 32) | i;
+        }
+        Arrays.sort(keys);
+        ArrayList<Tuple> sorted = new ArrayList<Tuple>(n);
+        for (long k : keys)
+            sorted.add(childTups.get((int) k));
+        childTups = sorted;
+    }
+
+    /** Sort the tuples in memory and write them out as a run. */
+    private void spillRun() throws DbException {
+        if (runs == null)
+            runs = new ArrayList<SpillFile>();
+        sort();
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : childTups)
+            run.add(t);
+        runs.add(run);
+        childTups.clear();
+    }
+
+    /**
+     * Merge the runs into longer ones, MERGE_FAN_IN at a time, until they
+     * can all be merged at once, and start that last merge.  Runs are
+     * merged in the order they were written, so the sort stays stable.
+     */
+    private void mergeRuns() throws DbException, TransactionAbortedException {
+        while (runs.size() > MERGE_FAN_IN) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+                List<SpillFile> group = runs.subList(i, Math.min(i + MERGE_FAN_IN, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                LoserTree tree = new LoserTree(group);
+                SpillFile run = new SpillFile(td);
+                Tuple t;
+                while ((t = tree.next()) != null)
+                    run.add(t);
+                tree.close();
+                for (SpillFile f : group)
+                    f.delete();
+                merged.add(run);
+            }
+            runs = merged;
+        }
+        merge = new LoserTree(runs);
+    }
+
+    private void deleteRuns() {
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        if (runs != null) {
+            for (SpillFile f : runs)
+                f.delete();
+            runs = null;
+        }
+    }
+
     public void close() {
         super.close();
-        it = null;
+        pos = childTups.size();
+        deleteRuns();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        super.rewind();
+        pos = 0;
+        if (merge != null) {
+            merge.close();
+            merge = new LoserTree(runs);
+        }
     }
 
     /**
-     * Operator.fetchNext implementation. Returns tuples from the child operator
-     * in order
-     * 
-     * @return The next tuple in the ordering, or null if there are no more
+     * BatchOperator.fetchNextBatch implementation. Returns tuples from the
+     * child operator in order
+     *
+     * @return The next batch in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException,
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+        if (out == null)
+            out = new TupleBatch(td, TupleBatch.DEFAULT_SIZE);
+        out.clear();
+        if (merge != null) {
+            Tuple t;
+            while (!out.isFull() && (t = merge.next()) != null)
+                out.addTuple(t);
+        } else {
+            while (!out.isFull() && pos < childTups.size())
+                out.addTuple(childTups.get(pos++));
+        }
+        return out.size() == 0 ? null : out;
     }
 
     @Override
@@ -98,26 +274,80 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * A loser tree over the heads of sorted runs, which hands out their
+     * tuples in order.  Every internal node keeps the run that lost the
+     * match played there, and node 0 the overall winner, so replacing the
+     * winner by the next tuple of its run replays only the matches on its
+     * path to the root: log2(k) comparisons a tuple for k runs.  Ties go
+     * to the earlier run.
+     */
+    private class LoserTree {
+        private final OpIterator[] readers;
+        private final Tuple[] heads;
+        private final int[] tree;
+        private final int k;
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        LoserTree(List<SpillFile> runs) throws DbException, TransactionAbortedException {
+            k = runs.size();
+            readers = new OpIterator[k];
+            heads = new Tuple[k];
+            tree = new int[Math.max(k, 1)];
+            for (int i = 0; i < k; i++) {
+                readers[i] = runs.get(i).iterator();
+                readers[i].open();
+                heads[i] = readers[i].hasNext() ? readers[i].next() : null;
+            }
+            // k stands for a run that beats every other one, until the
+            // matches of all the runs are played
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--)
+                replay(i);
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+        /** @return true if run a's head comes before run b's */
+        private boolean beats(int a, int b) {
+            if (a == k)
+                return true;
+            if (b == k)
+                return false;
+            if (heads[a] == null)
+                return false;
+            if (heads[b] == null)
+                return true;
+            int c = comparator.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        /** Play the matches on the path of run s to the root. */
+        private void replay(int s) {
+            for (int t = (s + k) / 2; t > 0; t /= 2) {
+                if (beats(tree[t], s)) {
+                    int loser = s;
+                    s = tree[t];
+                    tree[t] = loser;
+                }
+            }
+            tree[0] = s;
+        }
+
+        /** @return the next tuple of the merge, or null if there are no more */
+        Tuple next() throws DbException, TransactionAbortedException {
+            if (k == 0)
+                return null;
+            int w = tree[0];
+            Tuple t = heads[w];
+            if (t == null)
+                return null;
+            heads[w] = readers[w].hasNext() ? readers[w].next() : null;
+            replay(w);
+            return t;
+        }
+
+        void close() {
+            for (OpIterator r : readers)
+                r.close();
+        }
     }
-    
+
 }
@@ -12,6 +12,14 @@ package simpledb;
  */
 public interface Page {
 
+    /**
+     * The number of bytes at the start of every page format on disk that
+     * hold the LSN of the page (see getLsn), as a long.  Since it is at the
+     * same place on every page, recovery reads and stamps it without
+     * knowing the type of the page.
+     */
+    public static final int LSN_SIZE = 8;
+
     /**
      * Return the id of this page.  The id is a unique identifier for a page
      * that can be used to look up the page on disk or determine if the page
@@ -56,4 +64,18 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record that describes a change of this
+     * page. Before the page is written to disk, the log has to be flushed up
+     * to this LSN (see LogFile.flushUpTo). The LSN is written to disk with
+     * the page, in its first LSN_SIZE bytes, so a page read from disk has
+     * the LSN it was written with; a page that was never logged has LSN 0.
+     */
+    public long getLsn();
+
+    /**
+     * Stamp this page with the LSN of a log record that describes a change of it.
+     */
+    public void setLsn(long lsn);
 }
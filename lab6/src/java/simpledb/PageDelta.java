@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * PageDelta describes a change of a page as the byte ranges that differ
+ * between two images of it, with the old and the new bytes of each range.
+ * UPDATE records of the log store a delta instead of the two page images.
+ * Since every page type lays its slots out at fixed offsets, the ranges of
+ * a HeapPage delta are the header bytes and the tuple slots that were
+ * inserted, deleted or updated, and those of a B+ tree page the slots of
+ * its entries and its pointers.
+ * <p>
+ * Writing the new bytes of a delta into a page redoes the change, writing
+ * the old bytes undoes it. Both are idempotent, so they may be applied to
+ * a page that already holds the change (or doesn't hold it yet).
+ */
+public class PageDelta {
+
+    // ranges closer than this are merged, since every range costs two ints
+    private static final int MERGE_GAP = 8;
+
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int[] offsets, byte[][] before, byte[][] after) {
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the delta that turns page image before into page image after
+     */
+    public static PageDelta diff(byte[] before, byte[] after) {
+        return diff(before, after, 0);
+    }
+
+    /**
+     * @return the delta that turns page image before into page image after,
+     *         leaving out the changes of their first from bytes
+     */
+    public static PageDelta diff(byte[] before, byte[] after, int from) {
+        if (before.length != after.length) {
+            throw new IllegalArgumentException("page images differ in size");
+        }
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = from;
+        while (i < before.length) {
+            if (before[i] == after[i]) {
+                ++i;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range over short runs of equal bytes
+            for (int j = end; j < before.length && j < end + MERGE_GAP; ++j) {
+                if (before[j] != after[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] old = new byte[ranges.size()][];
+        byte[][] changed = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); ++r) {
+            int start = ranges.get(r)[0];
+            int len = ranges.get(r)[1] - start;
+            offsets[r] = start;
+            old[r] = new byte[len];
+            changed[r] = new byte[len];
+            System.arraycopy(before, start, old[r], 0, len);
+            System.arraycopy(after, start, changed[r], 0, len);
+        }
+        return new PageDelta(offsets, old, changed);
+    }
+
+    /**
+     * @return the number of changed byte ranges
+     */
+    public int numRanges() {
+        return offsets.length;
+    }
+
+    /**
+     * @return the number of bytes the delta changes
+     */
+    public int numBytes() {
+        int n = 0;
+        for (byte[] b : after) {
+            n += b.length;
+        }
+        return n;
+    }
+
+    /**
+     * @return the delta that undoes this one
+     */
+    public PageDelta invert() {
+        return new PageDelta(offsets, after, before);
+    }
+
+    /**
+     * Apply the change to the page image data, in place.
+     * @param redo true to write the new bytes, false to write the old ones
+     */
+    public void apply(byte[] data, boolean redo) {
+        byte[][] bytes = redo ? after : before;
+        for (int r = 0; r < offsets.length; ++r) {
+            System.arraycopy(bytes[r], 0, data, offsets[r], bytes[r].length);
+        }
+    }
+
+    /**
+     * Write the delta with varint lengths, and each offset relative to the
+     * end of the previous range.
+     */
+    public void write(DataOutput out) throws IOException {
+        Varint.write(out, offsets.length);
+        int end = 0;
+        for (int r = 0; r < offsets.length; ++r) {
+            Varint.write(out, offsets[r] - end);
+            Varint.write(out, after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+            end = offsets[r] + after[r].length;
+        }
+    }
+
+    public static PageDelta read(DataInput in) throws IOException {
+        int n = Varint.readInt(in);
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        int end = 0;
+        for (int r = 0; r < n; ++r) {
+            offsets[r] = end + Varint.readInt(in);
+            int len = Varint.readInt(in);
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+            end = offsets[r] + len;
+        }
+        return new PageDelta(offsets, before, after);
+    }
+}
@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * PageIdCodec writes page ids to the log as a one byte code for their
+ * class followed by their serialized ints (see PageId.serialize()) as
+ * varints, and reads them back through a registry that maps every code to
+ * the constructor of its class. Every kind of PageId is registered once,
+ * so a page id in the log takes a few bytes instead of its class name,
+ * and decoding it doesn't need reflection.
+ */
+public class PageIdCodec {
+
+    /** Builds a page id from its serialized ints. */
+    public interface Factory {
+        PageId create(int[] data);
+    }
+
+    private static final ConcurrentHashMap<Class<? extends PageId>, Integer> codes = new ConcurrentHashMap<>();
+    private static final AtomicReferenceArray<Factory> factories = new AtomicReferenceArray<>(256);
+
+    static {
+        register(1, HeapPageId.class, d -> new HeapPageId(d[0], d[1]));
+        register(2, BTreePageId.class, d -> new BTreePageId(d[0], d[1], d[2]));
+        register(3, BLinkPageId.class, d -> new BLinkPageId(d[0], d[1]));
+    }
+
+    private PageIdCodec() {
+    }
+
+    /**
+     * Register a kind of page id.
+     * @param code the code of the kind in the log, from 1 to 255
+     * @param kind the class of the page ids
+     * @param factory builds a page id of the class from its serialized ints
+     */
+    public static synchronized void register(int code, Class<? extends PageId> kind, Factory factory) {
+        if (code < 1 || code >= factories.length() || factories.get(code) != null) {
+            throw new IllegalArgumentException("page id code " + code + " is invalid or taken");
+        }
+        factories.set(code, factory);
+        codes.put(kind, code);
+    }
+
+    public static void write(DataOutput out, PageId pid) throws IOException {
+        Integer code = codes.get(pid.getClass());
+        if (code == null) {
+            throw new IOException("no code for page id " + pid.getClass().getName());
+        }
+        int[] data = pid.serialize();
+        out.writeByte(code);
+        Varint.write(out, data.length);
+        for (int d : data) {
+            Varint.writeSigned(out, d);
+        }
+    }
+
+    public static PageId read(DataInput in) throws IOException {
+        int code = in.readUnsignedByte();
+        Factory factory = factories.get(code);
+        if (factory == null) {
+            throw new IOException("unknown page id code " + code);
+        }
+        int[] data = new int[Varint.readInt(in)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (int) Varint.readSigned(in);
+        }
+        return factory.create(data);
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -253,18 +255,15 @@ public class Parser {
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -272,6 +271,17 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    private boolean synchronousCommit = true;
+    // the LIMIT and OFFSET of the statement being processed, see stripLimit
+    private int limit = -1, offset = 0;
+
+    private static final Pattern SET_SYNCHRONOUS_COMMIT = Pattern.compile(
+            "\\s*SET\\s+SYNCHRONOUS_COMMIT\\s*(?:=|TO)\\s*'?(ON|OFF)'?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern LIMIT_OFFSET = Pattern.compile(
+            "(.*?)(?:\\s+LIMIT\\s+(\\d{1,9}))?(?:\\s+OFFSET\\s+(\\d{1,9}))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
@@ -279,6 +289,7 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setLimit(limit, offset);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -387,6 +398,7 @@ public class Parser {
         } else {
             ZQuery zq = (ZQuery) s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            lp.setParallelScans(false);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -418,6 +430,7 @@ public class Parser {
         if (s.getWhere() != null)
             processExpression(tid, (ZExpression) s.getWhere(), lp);
         lp.addProjectField("null.*", null);
+        lp.setParallelScans(false);
 
         OpIterator op = new Delete(tid, lp.physicalPlan(tid,
                 TableStats.getStatsMap(), false));
@@ -453,11 +466,11 @@ public class Parser {
             if (curtrans != null)
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
-            curtrans = new Transaction();
-            curtrans.start();
+            // SET TRANSACTION READ ONLY starts a read-only transaction
+            curtrans = newTransaction(s.isReadOnly());
             inUserTrans = true;
-            System.out.println("Started a new transaction tid = "
-                    + curtrans.getId().getId());
+            System.out.println("Started a new " + (s.isReadOnly() ? "read-only " : "")
+                    + "transaction tid = " + curtrans.getId().getId());
         } else {
             throw new simpledb.ParsingException("Unsupported operation");
         }
@@ -465,12 +478,13 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                lp.setLimit(limit, offset);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -478,12 +492,63 @@ public class Parser {
                     "Invalid SQL expression: \n \t " + e);
         } catch (IOException e) {
             throw new simpledb.ParsingException(e);
+        } finally {
+            limit = -1;
+            offset = 0;
         }
 
         throw new simpledb.ParsingException(
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    private Transaction newTransaction(boolean readOnly) {
+        Transaction t = new Transaction(readOnly);
+        t.setSynchronousCommit(synchronousCommit);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Handle SET synchronous_commit = on | off, which Zql doesn't parse.
+     * With it off, the transactions of the session commit asynchronously
+     * (see Transaction.setSynchronousCommit()).
+     *
+     * @return true if the statement was a SET synchronous_commit
+     */
+    public boolean processSetStatement(String s) {
+        Matcher m = SET_SYNCHRONOUS_COMMIT.matcher(s);
+        if (!m.matches()) {
+            return false;
+        }
+        synchronousCommit = m.group(1).equalsIgnoreCase("ON");
+        System.out.println("synchronous_commit is "
+                + (synchronousCommit ? "on" : "off") + ".");
+        return true;
+    }
+
+    /**
+     * Take a trailing LIMIT n, OFFSET m or both, which Zql doesn't parse,
+     * off a statement, and keep them for the plan of the query (see
+     * LogicalPlan.setLimit()).
+     *
+     * @return the statement without them
+     */
+    String stripLimit(String s) {
+        limit = -1;
+        offset = 0;
+        Matcher m = LIMIT_OFFSET.matcher(s);
+        if (!m.matches() || (m.group(2) == null && m.group(3) == null)) {
+            return s;
+        }
+        if (m.group(2) != null) {
+            limit = Integer.parseInt(m.group(2));
+        }
+        if (m.group(3) != null) {
+            offset = Integer.parseInt(m.group(3));
+        }
+        return m.group(1) + ";";
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -493,11 +558,17 @@ public class Parser {
     }
 
     public void processNextStatement(String s) {
+        if (processSetStatement(s)) {
+            return;
+        }
         try {
-            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
+            processNextStatement(new ByteArrayInputStream(stripLimit(s).getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
+        } finally {
+            limit = -1;
+            offset = 0;
         }
     }
 
@@ -511,12 +582,15 @@ public class Parser {
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
-                    curtrans.start();
+                    // a single SELECT can't write, so read it from a snapshot
+                    curtrans = newTransaction(s instanceof ZQuery);
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
                 }
                 try {
+                    if (curtrans.isReadOnly() && !(s instanceof ZQuery))
+                        throw new simpledb.ParsingException(
+                                "Can't insert or delete in a read-only transaction");
                     if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
@@ -581,7 +655,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit", "offset" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -674,7 +748,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -682,9 +755,14 @@ public class Parser {
                         break;
                     }
 
+                    if (processSetStatement(cmd)) {
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
+
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -107,6 +107,78 @@ public class Predicate implements Serializable {
         return t.getField(idx).compare(op, operand);
     }
 
+    /**
+     * Narrows the selection of a batch down to the rows that pass the
+     * predicate.  An int column is compared against an int operand in a
+     * loop per operator, without a Field per row; other columns go through
+     * Field.compare like filter(Tuple).
+     *
+     * @param batch
+     *            The batch to filter, in place
+     */
+    public void filter(TupleBatch batch) {
+        int[] sel = batch.selection();
+        int n = batch.size();
+        int m = 0;
+        int[] col = batch.intColumn(idx);
+        if (col == null || !(operand instanceof IntField)) {
+            for (int i = 0; i < n; i++) {
+                int r = sel[i];
+                if (batch.getField(idx, r).compare(op, operand))
+                    sel[m++] = r;
+            }
+            batch.setSize(m);
+            return;
+        }
+        int v = ((IntField) operand).getValue();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            for (int i = 0; i < n; i++) {
+                int r = sel[i];
+                if (col[r] == v)
+                    sel[m++] = r;
+            }
+            break;
+        case NOT_EQUALS:
+            for (int i = 0; i < n; i++) {
+                int r = sel[i];
+                if (col[r] != v)
+                    sel[m++] = r;
+            }
+            break;
+        case GREATER_THAN:
+            for (int i = 0; i < n; i++) {
+                int r = sel[i];
+                if (col[r] > v)
+                    sel[m++] = r;
+            }
+            break;
+        case GREATER_THAN_OR_EQ:
+            for (int i = 0; i < n; i++) {
+                int r = sel[i];
+                if (col[r] >= v)
+                    sel[m++] = r;
+            }
+            break;
+        case LESS_THAN:
+            for (int i = 0; i < n; i++) {
+                int r = sel[i];
+                if (col[r] < v)
+                    sel[m++] = r;
+            }
+            break;
+        case LESS_THAN_OR_EQ:
+            for (int i = 0; i < n; i++) {
+                int r = sel[i];
+                if (col[r] <= v)
+                    sel[m++] = r;
+            }
+            break;
+        }
+        batch.setSize(m);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -3,14 +3,17 @@ package simpledb;
 import java.util.*;
 
 /**
- * Project is an operator that implements a relational projection.
+ * Project is an operator that implements a relational projection.  A batch
+ * of its child is projected to a view of some of its columns, without
+ * copying any values.
  */
-public class Project extends Operator {
+public class Project extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Integer> outFieldIds;
+    private int[] fields;
+    private transient BatchOpIterator input;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -31,7 +34,6 @@ public class Project extends Operator {
     public Project(ArrayList<Integer> fieldList, Type[] types,
             OpIterator child) {
         this.child = child;
-        outFieldIds = fieldList;
         String[] fieldAr = new String[fieldList.size()];
         TupleDesc childtd = child.getTupleDesc();
 
@@ -39,6 +41,10 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        fields = new int[fieldList.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = fieldList.get(i);
+        }
     }
 
     public TupleDesc getTupleDesc() {
@@ -48,6 +54,7 @@ public class Project extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
+        input = BatchOpIterator.of(child);
         super.open();
     }
 
@@ -57,27 +64,20 @@ public class Project extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
         child.rewind();
     }
 
     /**
-     * Operator.fetchNext implementation. Iterates over tuples from the child
-     * operator, projecting out the fields from the tuple
+     * BatchOperator.fetchNextBatch implementation. Reads a batch from the
+     * child operator, and projects out the fields of its tuples
      * 
-     * @return The next tuple, or null if there are no more tuples
+     * @return The next batch, or null if there are no more tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException,
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
-            newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
-            return newTuple;
-        }
-        return null;
+        TupleBatch batch = input.nextBatch();
+        return batch == null ? null : batch.project(td, fields);
     }
 
     @Override
@@ -5,16 +5,23 @@ import java.util.*;
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
- * disk).
+ * disk).  It hands out its tuples one at a time or, to the batch operators
+ * above it, a TupleBatch at a time.
+ * <p>
+ * A scan can also read just one of several partitions of a HeapFile, a
+ * contiguous range of its pages, so that an {@link Exchange} can run the
+ * partitions of a table on parallel threads.
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 
     private final TransactionId tid;
     private int tableid;
     private String tableAlias;
+    private final int partition, partitions;
     private DbFileIterator iter;
+    private transient TupleBatch batch;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -34,9 +41,57 @@ public class SeqScan implements OpIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // done
+        this(tid, tableid, tableAlias, 0, 1);
+    }
+
+    /**
+     * Creates a sequential scan over one partition of the specified table.
+     * The pages of a HeapFile are split into partitions contiguous ranges
+     * of about the same size when the scan is opened; other files are not
+     * split, partition 0 reads the whole file and the others nothing.
+     *
+     * @param partition
+     *            the partition to read, from 0 to partitions - 1
+     * @param partitions
+     *            the number of partitions the table is split into
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int partition, int partitions) {
+        if (partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException("no partition " + partition + " of " + partitions);
+        }
         this.tid = tid;
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.partition = partition;
+        this.partitions = partitions;
+    }
+
+    /**
+     * @return the partition of the table this scan reads
+     */
+    public int getPartition() {
+        return partition;
+    }
+
+    /**
+     * @return the number of partitions the table is split into
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the transaction the scan runs as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
     }
 
     /**
@@ -74,6 +129,7 @@ public class SeqScan implements OpIterator {
         // done
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        batch = null;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -82,7 +138,26 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // done
-        iter = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (partitions == 1) {
+            iter = file.iterator(tid);
+        } else if (file instanceof HeapFile) {
+            long pages = ((HeapFile) file).numPages();
+            iter = ((HeapFile) file).iterator(tid, (int) (pages * partition / partitions),
+                    (int) (pages * (partition + 1) / partitions));
+        } else {
+            iter = partition == 0 ? file.iterator(tid) : new AbstractDbFileIterator() {
+                public void open() {
+                }
+
+                public void rewind() {
+                }
+
+                protected Tuple readNext() {
+                    return null;
+                }
+            };
+        }
         iter.open();
     }
 
@@ -128,6 +203,20 @@ public class SeqScan implements OpIterator {
         return iter.next();
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (iter == null) {
+            throw new IllegalStateException("SeqScan not yet open");
+        }
+        if (batch == null) {
+            batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+        }
+        batch.clear();
+        while (!batch.isFull() && iter.hasNext()) {
+            batch.addTuple(iter.next());
+        }
+        return batch.size() == 0 ? null : batch;
+    }
+
     public void close() {
         // done
         iter.close();
@@ -0,0 +1,328 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two relations sorted on their join fields by reading
+ * each of them once, side by side.  A child that is not known to be sorted
+ * ascending on its join field (see isSorted) is sorted by an OrderBy put
+ * below the join; scans of a BTreeFile on the join field and the output of
+ * another SortMergeJoin on it are used as they are.
+ * <p>
+ * For an equality join, the tuples of the right relation with the key the
+ * two sides have in common are kept in memory as a group, and every tuple
+ * of the left relation with that key is joined with the whole group, so
+ * duplicate keys on both sides give all their pairs.
+ * <p>
+ * A band join (<, <=, > or >=) reads the side with the larger keys tuple by
+ * tuple and keeps the tuples of the other side with smaller keys in memory,
+ * a prefix of that side that only grows; every tuple read is joined with
+ * all of the prefix.  Each tuple kept is part of a result for the tuple
+ * read, so the memory used never exceeds the output of a single tuple.
+ */
+public class SortMergeJoin extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on.  Children that are not sorted on their join fields are
+     * sorted first.
+     *
+     * @param p
+     *            The predicate to use to join the children, with any
+     *            operator but NOT_EQUALS and LIKE
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("can't merge join on " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = sorted(child1, p.getField1());
+        this.child2 = sorted(child2, p.getField2());
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if a SortMergeJoin can join on the given operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return true if the tuples of the given iterator are known to come in
+     *         ascending order of a field: they are sorted by an OrderBy or
+     *         read from a BTreeFile keyed on it, or joined on it by an
+     *         equality SortMergeJoin, possibly with Filters in between.
+     */
+    public static boolean isSorted(OpIterator it, int field) {
+        if (it instanceof Filter) {
+            return isSorted(((Filter) it).getChildren()[0], field);
+        } else if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        } else if (it instanceof BTreeScan) {
+            DbFile f = Database.getCatalog().getDatabaseFile(((BTreeScan) it).getTableId());
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        } else if (it instanceof SeqScan) {
+            // a BTreeFile iterates over its leaves in key order
+            DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId());
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        } else if (it instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) it;
+            JoinPredicate p = j.getJoinPredicate();
+            return p.getOperator() == Predicate.Op.EQUALS
+                    && (field == p.getField1()
+                    || field == p.getField2() + j.child1.getTupleDesc().numFields());
+        }
+        return false;
+    }
+
+    private static OpIterator sorted(OpIterator child, int field) {
+        return isSorted(child, field) ? child : new OrderBy(field, true, child);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * A position in the sorted tuples of a child.
+     */
+    private static class Cursor {
+        private final BatchOpIterator input;
+        private final int field;
+        private TupleBatch batch;
+        private int pos;
+        private boolean done;
+
+        Cursor(OpIterator child, int field) {
+            this.input = BatchOpIterator.of(child);
+            this.field = field;
+        }
+
+        /** @return false if there are no more tuples */
+        boolean valid() throws DbException, TransactionAbortedException {
+            while (!done && (batch == null || pos == batch.size())) {
+                batch = input.nextBatch();
+                pos = 0;
+                done = batch == null;
+            }
+            return !done;
+        }
+
+        /** @return the join field of the current tuple */
+        Field key() {
+            return batch.getField(field, batch.row(pos));
+        }
+
+        /** @return a copy of the current tuple */
+        Tuple tuple() {
+            return batch.getTuple(pos);
+        }
+
+        void advance() {
+            pos++;
+        }
+    }
+
+    // the side a band join reads tuple by tuple, and the one it keeps
+    private transient Cursor left, right, stream, buffered;
+    // true if a band join keeps the tuples with keys equal to the one read
+    private transient boolean inclusive;
+    // the right tuples with key groupKey, or the buffered prefix of a band join
+    private transient ArrayList<Tuple> group;
+    private transient Field groupKey;
+    private transient Tuple current;
+    private transient int groupPos;
+    private transient TupleBatch out;
+
+    private static int compare(Field a, Field b) {
+        if (a.getType() == Type.INT_TYPE) {
+            return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+        }
+        return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+    }
+
+    private void start() {
+        left = new Cursor(child1, pred.getField1());
+        right = new Cursor(child2, pred.getField2());
+        switch (pred.getOperator()) {
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            stream = right;
+            buffered = left;
+            break;
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            stream = left;
+            buffered = right;
+            break;
+        default:
+            stream = buffered = null;
+        }
+        Predicate.Op op = pred.getOperator();
+        inclusive = op == Predicate.Op.LESS_THAN_OR_EQ || op == Predicate.Op.GREATER_THAN_OR_EQ;
+        group = new ArrayList<Tuple>();
+        groupKey = null;
+        current = null;
+        groupPos = 0;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        start();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        group = null;
+        current = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        child1.rewind();
+        child2.rewind();
+        start();
+    }
+
+    private void emit(Tuple t1, Tuple t2) {
+        int row = out.addRow();
+        out.copyRow(row, 0, t1);
+        out.copyRow(row, t1.getTupleDesc().numFields(), t2);
+    }
+
+    /**
+     * Fill the output batch with the next pairs of an equality join.
+     */
+    private void mergeEquals() throws DbException, TransactionAbortedException {
+        while (!out.isFull()) {
+            if (current != null && groupPos < group.size()) {
+                emit(current, group.get(groupPos++));
+            } else if (current != null) {
+                // the next left tuple joins with the same group, if it has the key
+                current = null;
+                left.advance();
+                if (left.valid() && compare(left.key(), groupKey) == 0) {
+                    current = left.tuple();
+                    groupPos = 0;
+                }
+            } else if (!left.valid() || !right.valid() && groupKey == null) {
+                return;
+            } else if (groupKey != null && compare(left.key(), groupKey) == 0) {
+                current = left.tuple();
+                groupPos = 0;
+            } else if (!right.valid()) {
+                return;
+            } else {
+                groupKey = null;
+                int c = compare(left.key(), right.key());
+                if (c < 0) {
+                    left.advance();
+                } else if (c > 0) {
+                    right.advance();
+                } else {
+                    // load all right tuples with the key
+                    group.clear();
+                    groupKey = right.key();
+                    do {
+                        group.add(right.tuple());
+                        right.advance();
+                    } while (right.valid() && compare(right.key(), groupKey) == 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill the output batch with the next pairs of a band join.
+     */
+    private void mergeBand() throws DbException, TransactionAbortedException {
+        while (!out.isFull()) {
+            if (current != null && groupPos < group.size()) {
+                if (stream == right) {
+                    emit(group.get(groupPos++), current);
+                } else {
+                    emit(current, group.get(groupPos++));
+                }
+            } else if (current != null) {
+                current = null;
+                stream.advance();
+            } else if (!stream.valid()) {
+                return;
+            } else {
+                // keep the tuples with keys below the one read
+                Field key = stream.key();
+                while (buffered.valid()) {
+                    int c = compare(buffered.key(), key);
+                    if (c > 0 || c == 0 && !inclusive) {
+                        break;
+                    }
+                    group.add(buffered.tuple());
+                    buffered.advance();
+                }
+                current = stream.tuple();
+                groupPos = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the next batch of tuples generated by the join, or null if
+     * there are no more tuples.  Like the other joins, the tuples are the
+     * concatenation of the joining tuples of the left and right relation.
+     *
+     * @return The next batch of matching tuples.
+     * @see JoinPredicate#filter
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        if (out == null) {
+            out = new TupleBatch(comboTD, TupleBatch.DEFAULT_SIZE);
+        }
+        out.clear();
+        if (stream == null) {
+            mergeEquals();
+        } else {
+            mergeBand();
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
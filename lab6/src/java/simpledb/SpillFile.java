@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples, for operators whose input does
+ * not fit in the memory they may use.  Tuples are appended with add(), and
+ * once they are all written, iterator() reads them back in the same order,
+ * as many times as needed.
+ * <p>
+ * The tuples are stored compactly, unlike on a HeapPage: an int field
+ * takes four bytes and a string field its length and its characters, with
+ * no header or padding.  The file is removed by delete(), or when the JVM
+ * exits.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    /**
+     * Create an empty spill file for tuples of the given TupleDesc.
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        } catch (IOException e) {
+            throw new DbException("can't create spill file: " + e);
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples in the file */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append a tuple.  Tuples can only be added before the file is read.
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null) {
+            throw new IllegalStateException("spill file is being read");
+        }
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (f.getType() == Type.INT_TYPE) {
+                    out.writeInt(((IntField) f).getValue());
+                } else {
+                    out.writeUTF(((StringField) f).getValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("can't write spill file: " + e);
+        }
+        size++;
+    }
+
+    private void finish() throws DbException {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new DbException("can't write spill file: " + e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * @return an iterator over the tuples of the file, in the order they
+     *         were added.  No more tuples can be added afterwards.
+     */
+    public OpIterator iterator() throws DbException {
+        finish();
+        return new Reader();
+    }
+
+    /** Close and remove the file. */
+    public void delete() {
+        try {
+            finish();
+        } catch (DbException e) {
+            // removed anyway
+        }
+        file.delete();
+    }
+
+    private class Reader implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient DataInputStream in;
+        private int read;
+
+        public void open() throws DbException {
+            close();
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (IOException e) {
+                throw new DbException("can't read spill file: " + e);
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            if (in == null) {
+                throw new IllegalStateException("Operator not yet open");
+            }
+            return read < size;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        t.setField(i, new IntField(in.readInt()));
+                    } else {
+                        t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                    }
+                }
+            } catch (IOException e) {
+                throw new DbException("can't read spill file: " + e);
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to lose, the file is only read
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -202,8 +202,14 @@ public class TableStats {
      * expected selectivity. You may estimate this value from the histograms.
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+        // only equality is estimated, from the histogram
+        if (op != Predicate.Op.EQUALS) {
+            return 1.0;
+        }
+        if (td.getFieldType(field) == Type.INT_TYPE) {
+            return ((IntHistogram) histograms[field]).avgSelectivity();
+        }
+        return ((StringHistogram) histograms[field]).avgSelectivity();
     }
 
     /**
@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN implements an ORDER BY with a LIMIT: it hands out the first n
+ * tuples of its child in the order an OrderBy on the same fields would,
+ * without sorting the whole child.
+ * <p>
+ * TopN keeps the best n tuples seen so far in a heap with the worst of
+ * them on top.  A row of the child that doesn't beat the top is rejected
+ * by comparing its columns in the batch, without making a Tuple; one that
+ * does replaces the top.  That takes O(log n) a row and memory for n
+ * tuples, however large the child is.  Like OrderBy, TopN is stable: of
+ * tuples with equal keys, the ones the child returned first win.
+ */
+public class TopN extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final int n;
+    private final TupleComparator comparator;
+
+    private transient ArrayList<Tuple> top;
+    // the position of every tuple of the heap in the child, for ties
+    private transient int[] seq;
+    private transient int pos;
+    private transient TupleBatch out;
+
+    /**
+     * Constructor.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for every field, true if its order is ascending.
+     * @param n
+     *            the number of tuples to hand out at most.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int n, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need a sort order for every field");
+        }
+        if (n < 0) {
+            throw new IllegalArgumentException("negative limit " + n);
+        }
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.n = n;
+        comparator = new TupleComparator(this.orderByFields, this.asc);
+    }
+
+    /** @return the fields the tuples are sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for every field the tuples are sorted on, true if ascending */
+    public boolean[] getAscOrders() {
+        return asc.clone();
+    }
+
+    /** @return the number of tuples handed out at most */
+    public int getLimit() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Compare a row of a batch with a tuple, like the comparator.
+     */
+    private int compareRow(TupleBatch b, int row, Tuple t) {
+        for (int i = 0; i < orderByFields.length; i++) {
+            int f = orderByFields[i];
+            int c;
+            if (td.getFieldType(f) == Type.INT_TYPE)
+                c = Integer.compare(b.intColumn(f)[row], ((IntField) t.getField(f)).getValue());
+            else
+                c = b.stringColumn(f)[row].compareTo(((StringField) t.getField(f)).getValue());
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    /**
+     * Move top[i] down the first count tuples of the heap to its place.
+     * The heap has the worst tuple at 0, and the later one of equal tuples
+     * above the earlier.
+     */
+    private void siftDown(int i, int count) {
+        while (true) {
+            int worst = i;
+            for (int c = 2 * i + 1; c <= 2 * i + 2 && c < count; c++) {
+                int cmp = comparator.compare(top.get(c), top.get(worst));
+                if (cmp > 0 || (cmp == 0 && seq[c] > seq[worst]))
+                    worst = c;
+            }
+            if (worst == i)
+                return;
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            int cmp = comparator.compare(top.get(i), top.get(parent));
+            if (cmp < 0 || (cmp == 0 && seq[i] < seq[parent]))
+                return;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void swap(int i, int j) {
+        top.set(i, top.set(j, top.get(i)));
+        int s = seq[i];
+        seq[i] = seq[j];
+        seq[j] = s;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        // the heap grows with the child up to n tuples, a limit far beyond
+        // the size of the child costs nothing
+        top = new ArrayList<Tuple>(Math.min(n, TupleBatch.DEFAULT_SIZE));
+        seq = new int[Math.min(n, TupleBatch.DEFAULT_SIZE)];
+        int read = 0;
+        BatchOpIterator input = BatchOpIterator.of(child);
+        TupleBatch batch;
+        while (n > 0 && (batch = input.nextBatch()) != null) {
+            for (int i = 0; i < batch.size(); i++, read++) {
+                int row = batch.row(i);
+                int count = top.size();
+                if (count < n) {
+                    if (count == seq.length)
+                        seq = Arrays.copyOf(seq, (int) Math.min(n, 2L * count));
+                    top.add(batch.getTuple(i));
+                    seq[count] = read;
+                    siftUp(count);
+                } else if (compareRow(batch, row, top.get(0)) < 0) {
+                    top.set(0, batch.getTuple(i));
+                    seq[0] = read;
+                    siftDown(0, count);
+                }
+            }
+        }
+        // take the worst off the heap until it's sorted, best first
+        for (int last = top.size() - 1; last > 0; last--) {
+            swap(0, last);
+            siftDown(0, last);
+        }
+        seq = null;
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        top = null;
+        seq = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        pos = 0;
+    }
+
+    /**
+     * BatchOperator.fetchNextBatch implementation. Returns the best
+     * tuples of the child in order.
+     *
+     * @return The next batch in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (out == null)
+            out = new TupleBatch(td, TupleBatch.DEFAULT_SIZE);
+        out.clear();
+        while (!out.isFull() && pos < top.size())
+            out.addTuple(top.get(pos++));
+        return out.size() == 0 ? null : out;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
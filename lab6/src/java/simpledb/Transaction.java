@@ -5,19 +5,60 @@ import java.io.*;
 /**
  * Transaction encapsulates information about the state of
  * a transaction and manages transaction commit / abort.
+ * <p>
+ * A read-only transaction reads a snapshot of the database (see
+ * {@link BufferPool#beginSnapshot(TransactionId)}): it takes no locks, and
+ * since it changes nothing, it writes no log records and has no pages to
+ * flush when it finishes.
+ * <p>
+ * A transaction that commits asynchronously (see
+ * {@link #setSynchronousCommit(boolean)}) doesn't wait for its COMMIT record
+ * to reach the disk: a crash shortly after may roll it back, but never
+ * leaves part of it in the database.
  */
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
+    private Boolean synchronousCommit = null; // null: the default of the log
 
     public Transaction() {
-        tid = new TransactionId();
+        this(false);
+    }
+
+    public Transaction(boolean readOnly) {
+        this(readOnly, new TransactionId());
+    }
+
+    private Transaction(boolean readOnly, TransactionId tid) {
+        this.tid = tid;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * @return a new transaction, not started yet, that retries this one
+     * after it aborted.  It keeps the start timestamp of this one (see
+     * TransactionId), so the deadlock policies let it win over the
+     * transactions that started after it.
+     */
+    public Transaction restart() {
+        Transaction t = new Transaction(readOnly, new TransactionId(tid));
+        t.synchronousCommit = synchronousCommit;
+        return t;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -25,6 +66,13 @@ public class Transaction {
         }
     }
 
+    /** Set whether commit() waits for the COMMIT record to be forced to
+        disk, instead of the default of the log (see
+        LogFile.setSynchronousCommit()). */
+    public void setSynchronousCommit(boolean synchronous) {
+        synchronousCommit = synchronous;
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -42,14 +90,22 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            // nothing to log or flush, just release the snapshot
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
                 //write all the dirty pages for this transaction out
                 Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
+                if (synchronousCommit == null) {
+                    Database.getLogFile().logCommit(tid);
+                } else {
+                    Database.getLogFile().logCommit(tid, synchronousCommit);
+                }
             }
 
             try {
@@ -5,6 +5,11 @@ import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TransactionId is a class that contains the identifier of a transaction.
+ * <p>
+ * It also carries the start timestamp the deadlock policies order
+ * transactions by (see LockManager.DeadlockPolicy).  A transaction that
+ * restarts one that aborted gets a new id, but keeps the timestamp of the
+ * first try, so it grows older with every restart and can't starve.
  */
 public class TransactionId implements Serializable {
 
@@ -12,15 +17,39 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final long timestamp;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        timestamp = myid;
+    }
+
+    /**
+     * A new TransactionId for a restart of the aborted transaction first,
+     * with the timestamp of first.
+     */
+    public TransactionId(TransactionId first) {
+        myid = counter.getAndIncrement();
+        timestamp = first.timestamp;
     }
 
     public long getId() {
         return myid;
     }
 
+    /** @return the start timestamp of the transaction, kept across restarts */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return true if this transaction started before other; of a
+     * transaction and a restart of it, the restart counts as younger
+     */
+    public boolean isOlderThan(TransactionId other) {
+        return timestamp < other.timestamp || (timestamp == other.timestamp && myid < other.myid);
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
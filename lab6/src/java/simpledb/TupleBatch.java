@@ -0,0 +1,264 @@
+package simpledb;
+
+/**
+ * TupleBatch holds up to a fixed number of rows of a TupleDesc column by
+ * column: every INT_TYPE column is an int[], every STRING_TYPE column a
+ * String[], so operators that work on batches (see BatchOpIterator) can
+ * loop over the values of a column without a Tuple or a Field per row.
+ * <p>
+ * Rows are appended with addRow() or addTuple().  A selection vector
+ * narrows a batch down to some of its rows without moving them: size()
+ * is the number of selected rows, and row(i) the index of the i-th one in
+ * the columns.  Filters narrow the selection in place (see
+ * Predicate.filter(TupleBatch)), and project() makes a view of some of the
+ * columns that shares their arrays, so neither copies any values.
+ */
+public class TupleBatch {
+
+    /** The number of rows the operators put in a batch. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] ints; // by column, null but for INT_TYPE columns
+    private final String[][] strings; // by column, null but for STRING_TYPE columns
+    private final RecordId[] rids;
+
+    private int rows = 0; // rows in the columns
+    private int[] sel = null; // the selected rows, or null for all of them
+    private int size = 0; // selected rows
+    private int[] selBuffer = null;
+
+    /**
+     * Create an empty batch.
+     * @param td the TupleDesc of the rows
+     * @param capacity the number of rows it holds
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        ints = new int[n][];
+        strings = new String[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[capacity];
+            } else {
+                strings[i] = new String[capacity];
+            }
+        }
+        rids = new RecordId[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, int capacity, int[][] ints, String[][] strings, RecordId[] rids) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.strings = strings;
+        this.rids = rids;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of selected rows */
+    public int size() {
+        return size;
+    }
+
+    /** @return the index in the columns of the i-th selected row */
+    public int row(int i) {
+        return sel == null ? i : sel[i];
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return rows == capacity;
+    }
+
+    /** Remove all rows and the selection. */
+    public void clear() {
+        rows = 0;
+        size = 0;
+        sel = null;
+    }
+
+    /**
+     * Append a row, and select it.  Rows can only be appended while all
+     * rows are selected.
+     * @return the index of the row in the columns
+     */
+    public int addRow() {
+        if (sel != null) {
+            throw new IllegalStateException("can't add rows to a batch with a selection");
+        }
+        if (rows == capacity) {
+            throw new IllegalStateException("batch is full");
+        }
+        rids[rows] = null;
+        size++;
+        return rows++;
+    }
+
+    /** Append the fields and the record id of a tuple as a row. */
+    public void addTuple(Tuple t) {
+        int row = addRow();
+        for (int col = 0; col < ints.length; col++) {
+            Field f = t.getField(col);
+            if (ints[col] != null) {
+                ints[col][row] = ((IntField) f).getValue();
+            } else {
+                strings[col][row] = ((StringField) f).getValue();
+            }
+        }
+        rids[row] = t.getRecordId();
+    }
+
+    /**
+     * @return the selection vector, the indexes of the selected rows in its
+     *         first size() entries.  A filter overwrites it with the rows
+     *         that pass and calls setSize() with their number.
+     */
+    public int[] selection() {
+        if (sel == null) {
+            if (selBuffer == null) {
+                selBuffer = new int[capacity];
+            }
+            for (int i = 0; i < rows; i++) {
+                selBuffer[i] = i;
+            }
+            sel = selBuffer;
+        }
+        return sel;
+    }
+
+    /** Keep the first n entries of the selection vector. */
+    public void setSize(int n) {
+        if (sel == null && n != size) {
+            throw new IllegalStateException("no selection vector");
+        }
+        size = n;
+    }
+
+    /** @return the values of an INT_TYPE column, by row index */
+    public int[] intColumn(int col) {
+        return ints[col];
+    }
+
+    /** @return the values of a STRING_TYPE column, by row index */
+    public String[] stringColumn(int col) {
+        return strings[col];
+    }
+
+    public int getInt(int col, int row) {
+        return ints[col][row];
+    }
+
+    public String getString(int col, int row) {
+        return strings[col][row];
+    }
+
+    public Field getField(int col, int row) {
+        if (ints[col] != null) {
+            return new IntField(ints[col][row]);
+        }
+        return new StringField(strings[col][row], Type.STRING_LEN);
+    }
+
+    public void setField(int col, int row, Field f) {
+        if (ints[col] != null) {
+            ints[col][row] = ((IntField) f).getValue();
+        } else {
+            strings[col][row] = ((StringField) f).getValue();
+        }
+    }
+
+    public RecordId getRecordId(int row) {
+        return rids[row];
+    }
+
+    /**
+     * @return the i-th selected row as a new Tuple, that the caller may
+     *         keep
+     */
+    public Tuple getTuple(int i) {
+        return readTuple(i, new Tuple(td));
+    }
+
+    /**
+     * Overwrite the fields and the record id of a tuple with the i-th
+     * selected row, for callers that are done with a row before they read
+     * the next one and can reuse one Tuple for all of them.
+     * @param t a tuple with the TupleDesc of this batch
+     * @return t
+     */
+    public Tuple readTuple(int i, Tuple t) {
+        int row = row(i);
+        for (int col = 0; col < ints.length; col++) {
+            t.setField(col, getField(col, row));
+        }
+        t.setRecordId(rids[row]);
+        return t;
+    }
+
+    /**
+     * Copy all the columns of a row of another batch into this one.
+     * @param row the row to copy into
+     * @param col the column of this batch the first column of src goes to
+     * @param src the batch to copy from
+     * @param srcRow the row of src, an index into its columns
+     */
+    public void copyRow(int row, int col, TupleBatch src, int srcRow) {
+        for (int i = 0; i < src.ints.length; i++, col++) {
+            if (src.ints[i] != null) {
+                ints[col][row] = src.ints[i][srcRow];
+            } else {
+                strings[col][row] = src.strings[i][srcRow];
+            }
+        }
+    }
+
+    /** Copy all the fields of a tuple into a row, starting at column col. */
+    public void copyRow(int row, int col, Tuple t) {
+        int n = t.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++) {
+            setField(col + i, row, t.getField(i));
+        }
+    }
+
+    /**
+     * @param td the TupleDesc of the copy, with the same types as this one
+     * @return a new batch with just the selected rows of this one, that
+     *         shares nothing with it and can be handed to another thread
+     */
+    public TupleBatch copy(TupleDesc td) {
+        TupleBatch b = new TupleBatch(td, Math.max(size, 1));
+        for (int i = 0; i < size; i++) {
+            int row = b.addRow();
+            b.copyRow(row, 0, this, row(i));
+            b.rids[row] = rids[row(i)];
+        }
+        return b;
+    }
+
+    /**
+     * Make a view of some of the columns, with the same rows and selection.
+     * The view shares the columns with this batch.
+     * @param td the TupleDesc of the view
+     * @param fields the columns of this batch that make up the view
+     */
+    public TupleBatch project(TupleDesc td, int[] fields) {
+        int[][] vInts = new int[fields.length][];
+        String[][] vStrings = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            vInts[i] = ints[fields[i]];
+            vStrings[i] = strings[fields[i]];
+        }
+        TupleBatch view = new TupleBatch(td, capacity, vInts, vStrings, rids);
+        view.rows = rows;
+        view.size = size;
+        view.sel = sel;
+        return view;
+    }
+}
@@ -0,0 +1,38 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Compares tuples on one or more fields, each in ascending or descending
+ * order, most significant first.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    int[] fields;
+    boolean[] asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = o1.getField(fields[i]);
+            Field t2 = o2.getField(fields[i]);
+            int c;
+            if (t1 instanceof IntField)
+                c = Integer.compare(((IntField) t1).getValue(), ((IntField) t2).getValue());
+            else if (t1.compare(Predicate.Op.EQUALS, t2))
+                c = 0;
+            else
+                c = t1.compare(Predicate.Op.GREATER_THAN, t2) ? 1 : -1;
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * Variable length encoding of integers, 7 bits per byte with the high bit
+ * set on every byte but the last. Small values, like the lengths and
+ * offsets in log records, take one or two bytes instead of four or eight.
+ * Signed values are zigzag encoded first, so that small negative numbers
+ * are short as well.
+ */
+public class Varint {
+
+    private Varint() {
+    }
+
+    /**
+     * Write a value that is not negative.
+     */
+    public static void write(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    public static long read(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    public static int readInt(DataInput in) throws IOException {
+        long v = read(in);
+        if (v > Integer.MAX_VALUE) {
+            throw new IOException("varint out of range: " + v);
+        }
+        return (int) v;
+    }
+
+    /**
+     * Write a value of either sign.
+     */
+    public static void writeSigned(DataOutput out, long v) throws IOException {
+        write(out, (v << 1) ^ (v >> 63));
+    }
+
+    public static long readSigned(DataInput in) throws IOException {
+        long v = read(in);
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
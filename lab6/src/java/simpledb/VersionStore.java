@@ -0,0 +1,202 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps old committed versions of pages for snapshot reads
+ * (multi-version concurrency control).
+ * <p>
+ * Every commit gets a commit timestamp from a logical clock. A snapshot is
+ * taken at a timestamp s and sees exactly the commits with a timestamp
+ * <= s. When a transaction commits at timestamp c, the committed image each
+ * of its pages had before (its before-image) is saved as a version that was
+ * valid until c, so a snapshot s < c reads that version instead of the
+ * current page. Versions are only saved while there is a snapshot that may
+ * need them, and are dropped once no snapshot older than their end is left.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /**
+     * inner class, the committed image of a page that was replaced by the
+     * commit with timestamp endTs.
+     */
+    private static class Version {
+        final long endTs;
+        final Page page;
+
+        Version(long endTs, Page page) {
+            this.endTs = endTs;
+            this.page = page;
+        }
+    }
+
+    // the logical clock, the last commit timestamp handed out
+    private long clock;
+    // commits that started but have not published all their pages yet
+    private final HashSet<Long> inFlight = new HashSet<>();
+    // active snapshot timestamps -> number of snapshots taken at that time
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    // versions of each page, ordered by endTs. Each list is protected by its own monitor.
+    private final ConcurrentHashMap<PageId, ArrayList<Version>> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Start a commit.
+     * @return the commit timestamp
+     */
+    public synchronized long beginCommit() {
+        long ts = ++clock;
+        inFlight.add(ts);
+        return ts;
+    }
+
+    /**
+     * Finish the commit with timestamp ts: all its pages are written and
+     * their before-images reset, so snapshots taken from now on see it.
+     */
+    public synchronized void endCommit(long ts) {
+        if (inFlight.remove(ts)) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Take a snapshot of the latest commit. Waits for commits that are
+     * being published, so that a snapshot never sees half of a commit.
+     * @return the snapshot timestamp
+     */
+    public synchronized long beginSnapshot() {
+        long ts = clock;
+        boolean waiting = true;
+        while (waiting) {
+            waiting = false;
+            for (long c : inFlight) {
+                if (c <= ts) {
+                    waiting = true;
+                    break;
+                }
+            }
+            if (waiting) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        snapshots.merge(ts, 1, Integer::sum);
+        return ts;
+    }
+
+    /**
+     * Forget the snapshot taken at ts and drop the versions no snapshot needs any more.
+     */
+    public void endSnapshot(long ts) {
+        synchronized (this) {
+            Integer n = snapshots.get(ts);
+            if (n == null) {
+                return;
+            }
+            if (n == 1) {
+                snapshots.remove(ts);
+            } else {
+                snapshots.put(ts, n - 1);
+            }
+        }
+        collectGarbage();
+    }
+
+    /**
+     * @return the timestamp of the oldest active snapshot, or Long.MAX_VALUE if there is none
+     */
+    private synchronized long oldestSnapshot() {
+        return snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+    }
+
+    /**
+     * @return if the commit with timestamp ts has to save the images it replaces
+     */
+    public boolean isNeeded(long ts) {
+        return oldestSnapshot() < ts;
+    }
+
+    /**
+     * Save the committed image of a page that the commit with timestamp ts
+     * is about to replace. Must be called before the new image becomes
+     * visible, i.e. before the page is written and its before-image is reset.
+     * Nothing is saved if no active snapshot is older than ts: snapshots
+     * taken later wait for the commit and read the new image.
+     */
+    public void addVersion(PageId pid, Page before, long ts) {
+        if (!isNeeded(ts)) {
+            return;
+        }
+        while (true) {
+            ArrayList<Version> list = versions.computeIfAbsent(pid, k -> new ArrayList<>(2));
+            synchronized (list) {
+                if (versions.get(pid) == list) {    // not dropped by collectGarbage meanwhile
+                    list.add(new Version(ts, before));
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the image of the page seen by the snapshot taken at ts, or null
+     * if the page has not been committed since, in which case the current
+     * committed image is the one to read
+     */
+    public Page getVersion(PageId pid, long ts) {
+        ArrayList<Version> list = versions.get(pid);
+        if (list == null) {
+            return null;
+        }
+        synchronized (list) {
+            // the first version that was still valid at ts
+            for (Version v : list) {
+                if (v.endTs > ts) {
+                    return v.page;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop the versions that ended before the oldest active snapshot was taken.
+     */
+    public void collectGarbage() {
+        long oldest = oldestSnapshot();
+        for (PageId pid : versions.keySet()) {
+            ArrayList<Version> list = versions.get(pid);
+            if (list == null) {
+                continue;
+            }
+            synchronized (list) {
+                list.removeIf(v -> v.endTs <= oldest);
+                if (list.isEmpty()) {
+                    versions.remove(pid, list);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of page versions kept
+     */
+    public int size() {
+        int n = 0;
+        for (ArrayList<Version> list : versions.values()) {
+            synchronized (list) {
+                n += list.size();
+            }
+        }
+        return n;
+    }
+}
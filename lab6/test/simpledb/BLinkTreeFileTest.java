@@ -0,0 +1,319 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BLinkTreeFileTest extends SimpleDbTestBase {
+	private BLinkTreeFile f;
+	private BufferPool bp;
+
+	/**
+	 * Set up initial resources for each unit test: an empty tree with small
+	 * pages, so that a few thousand tuples make it three levels high.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(256);
+		Database.reset();
+		bp = Database.resetBufferPool(500);
+		File file = File.createTempFile("blink", ".dat");
+		file.deleteOnExit();
+		file.delete();
+		f = new BLinkTreeFile(file, 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(f, UUID.randomUUID().toString());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private ArrayList<Integer> insert(TransactionId tid, int n, int from, int step) throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < n; ++i) {
+			int key = from + i * step;
+			bp.insertTuple(tid, f.getId(), Utility.getTuple(new int[] { key, i }, 2));
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	private ArrayList<Integer> scan(DbFileIterator it) throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		it.open();
+		while (it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	private int rootLevel() throws Exception {
+		BLinkPage meta = (BLinkPage) bp.fetchPage(f.getMetaPageId());
+		BLinkPageId rootId = new BLinkPageId(f.getId(), meta.getRootPageNo());
+		return ((BLinkPage) bp.fetchPage(rootId)).getLevel();
+	}
+
+	/**
+	 * @return the number of leaves that have an entry in their parent
+	 */
+	private int indexedLeaves() throws Exception {
+		int n = 0;
+		for (BLinkPageId pid = f.descend(null, 1); pid != null; ) {
+			BLinkPage page = (BLinkPage) bp.fetchPage(pid);
+			n += page.getNumEntries() + 1;
+			pid = page.getRightLink();
+		}
+		return n;
+	}
+
+	/**
+	 * Tuples come back in key order after the tree grew a few levels.
+	 */
+	@Test
+	public void insertAndScan() throws Exception {
+		// insert the keys out of order so that splits happen all over the tree
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < 2000; ++i) {
+			keys.add(i * 1919 % 2000);
+		}
+		for (int i = 0; i < keys.size(); i += 100) {
+			TransactionId tid = new TransactionId();
+			for (int key : keys.subList(i, i + 100)) {
+				bp.insertTuple(tid, f.getId(), Utility.getTuple(new int[] { key, 0 }, 2));
+			}
+			bp.transactionComplete(tid);
+		}
+		assertTrue(rootLevel() >= 2);
+
+		Collections.sort(keys);
+		TransactionId reader = new TransactionId();
+		assertEquals(keys, scan(f.iterator(reader)));
+		assertEquals(Arrays.asList(1500), scan(f.indexIterator(reader,
+				new IndexPredicate(Op.EQUALS, new IntField(1500)))));
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * The leaves a transaction split get their parent entries when it
+	 * commits, even if they were evicted from the buffer pool before.
+	 */
+	@Test
+	public void splitsOfEvictedLeaves() throws Exception {
+		TransactionId tid = new TransactionId();
+		insert(tid, 500, 0, 1);
+		bp.flushPages(tid);
+		for (BLinkPageId pid = f.descend(null, 0); pid != null; ) {
+			BLinkPage leaf = (BLinkPage) bp.fetchPage(pid);
+			pid = leaf.getRightLink();
+			bp.discardPage(leaf.getId());
+		}
+		bp.transactionComplete(tid);
+
+		int leaves = 0;
+		for (BLinkPageId pid = f.descend(null, 0); pid != null; ++leaves) {
+			pid = ((BLinkPage) bp.fetchPage(pid)).getRightLink();
+		}
+		assertTrue(leaves > 1);
+		assertEquals(leaves, indexedLeaves());
+	}
+
+	/**
+	 * Index scans find all duplicates, even when they are spread over several leaves.
+	 */
+	@Test
+	public void indexIterator() throws Exception {
+		TransactionId tid = new TransactionId();
+		insert(tid, 500, 0, 1);
+		insert(tid, 100, 250, 0);
+		bp.transactionComplete(tid);
+
+		TransactionId reader = new TransactionId();
+		assertEquals(101, scan(f.indexIterator(reader, new IndexPredicate(Op.EQUALS, new IntField(250)))).size());
+		assertEquals(249, scan(f.indexIterator(reader, new IndexPredicate(Op.GREATER_THAN, new IntField(250)))).size());
+		ArrayList<Integer> less = scan(f.indexIterator(reader, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(10))));
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10), less);
+		bp.transactionComplete(reader);
+	}
+
+	@Test
+	public void deleteTuple() throws Exception {
+		TransactionId tid = new TransactionId();
+		insert(tid, 300, 0, 1);
+		bp.transactionComplete(tid);
+
+		TransactionId deleter = new TransactionId();
+		DbFileIterator it = f.indexIterator(deleter, new IndexPredicate(Op.LESS_THAN, new IntField(100)));
+		it.open();
+		ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+		while (it.hasNext()) {
+			doomed.add(it.next());
+		}
+		it.close();
+		for (Tuple t : doomed) {
+			bp.deleteTuple(deleter, t);
+		}
+		bp.transactionComplete(deleter);
+
+		TransactionId reader = new TransactionId();
+		ArrayList<Integer> keys = scan(f.iterator(reader));
+		assertEquals(200, keys.size());
+		assertEquals(100, (int) keys.get(0));
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * An abort discards the inserts, deletes and splits of the transaction.
+	 */
+	@Test
+	public void abort() throws Exception {
+		TransactionId tid = new TransactionId();
+		insert(tid, 100, 0, 2);
+		bp.transactionComplete(tid);
+
+		int level = rootLevel();
+		TransactionId aborted = new TransactionId();
+		insert(aborted, 500, 1, 2);
+		DbFileIterator it = f.indexIterator(aborted, new IndexPredicate(Op.EQUALS, new IntField(40)));
+		it.open();
+		bp.deleteTuple(aborted, it.next());
+		it.close();
+		bp.transactionComplete(aborted, false);
+		assertEquals(level, rootLevel());
+
+		TransactionId reader = new TransactionId();
+		ArrayList<Integer> keys = scan(f.iterator(reader));
+		assertEquals(100, keys.size());
+		for (int i = 0; i < keys.size(); ++i) {
+			assertEquals(2 * i, (int) keys.get(i));
+		}
+		bp.transactionComplete(reader);
+
+		// the tree still grows after the abort
+		tid = new TransactionId();
+		insert(tid, 500, 1, 2);
+		bp.transactionComplete(tid);
+		assertTrue(rootLevel() > level);
+		reader = new TransactionId();
+		assertEquals(600, scan(f.iterator(reader)).size());
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * A reader is not held up by the uncommitted splits of a writer in
+	 * another part of the tree, and never locks an internal page.
+	 */
+	@Test
+	public void readerDoesNotBlockOnSplits() throws Exception {
+		TransactionId tid = new TransactionId();
+		insert(tid, 1000, 0, 1);
+		bp.transactionComplete(tid);
+
+		int leaves = indexedLeaves();
+		TransactionId writer = new TransactionId();
+		insert(writer, 1000, 100000, 1);
+		// the new leaves are not in the index until the writer commits
+		assertEquals(leaves, indexedLeaves());
+
+		TransactionId reader = new TransactionId();
+		assertEquals(10, scan(f.indexIterator(reader, new IndexPredicate(Op.LESS_THAN, new IntField(10)))).size());
+		for (int pgNo = 0; pgNo < f.numPages(); ++pgNo) {
+			BLinkPageId pid = new BLinkPageId(f.getId(), pgNo);
+			BLinkPage page = (BLinkPage) bp.fetchPage(pid);
+			if (pgNo == 0 || !page.isLeaf()) {
+				assertFalse(bp.holdsLock(reader, pid));
+			}
+		}
+		bp.transactionComplete(reader);
+		bp.transactionComplete(writer);
+		assertTrue(indexedLeaves() > leaves);
+
+		reader = new TransactionId();
+		assertEquals(2000, scan(f.iterator(reader)).size());
+		assertEquals(1000, scan(f.indexIterator(reader,
+				new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(100000)))).size());
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * Writers split pages while readers scan the tree.
+	 */
+	@Test
+	public void concurrentInsertsAndScans() throws Exception {
+		final int writers = 4;
+		final int perWriter = 400;
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		final AtomicBoolean done = new AtomicBoolean();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int w = 0; w < writers; ++w) {
+			final int offset = w;
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < perWriter; ++i) {
+						TransactionId tid = new TransactionId();
+						bp.insertTuple(tid, f.getId(), Utility.getTuple(new int[] { i * writers + offset, 0 }, 2));
+						bp.transactionComplete(tid);
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+		for (int r = 0; r < 2; ++r) {
+			threads.add(new Thread(() -> {
+				try {
+					while (!done.get()) {
+						Transaction t = new Transaction(true);
+						t.start();
+						ArrayList<Integer> keys = scan(f.iterator(t.getId()));
+						t.commit();
+						ArrayList<Integer> sorted = new ArrayList<Integer>(keys);
+						Collections.sort(sorted);
+						assertEquals(sorted, keys);
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (int i = 0; i < writers; ++i) {
+			threads.get(i).join();
+		}
+		done.set(true);
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(Collections.emptyList(), errors);
+
+		TransactionId reader = new TransactionId();
+		ArrayList<Integer> keys = scan(f.iterator(reader));
+		assertEquals(writers * perWriter, keys.size());
+		for (int i = 0; i < keys.size(); ++i) {
+			assertEquals(i, (int) keys.get(i));
+		}
+		bp.transactionComplete(reader);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BLinkTreeFileTest.class);
+	}
+}
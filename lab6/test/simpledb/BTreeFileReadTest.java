@@ -78,7 +78,7 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 		// NOTE(ghuo): we try not to dig too deeply into the Page API here; we
 		// rely on BTreePageTest for that. perform some basic checks.
-		assertEquals(482, page.getNumEmptySlots());
+		assertEquals(481, page.getNumEmptySlots());
 		assertTrue(page.isSlotUsed(1));
 		assertFalse(page.isSlotUsed(20));
 	}
@@ -130,6 +130,45 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		it.close();
 	}
 
+	/**
+	 * The search only latches the internal pages it passes: once the
+	 * iterator is open, the leaf page is locked but the root pointer and
+	 * the root are not, and another transaction can split a leaf and add
+	 * an entry to the root without waiting for the reader.
+	 */
+	@Test public void latchCrabbing() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(twoLeafPageFile.getId());
+		TransactionId reader = new TransactionId();
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(reader, rootPtrId,
+				Permissions.READ_ONLY)).getRootId();
+		bp.transactionComplete(reader);
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		DbFileIterator it = twoLeafPageFile.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, new IntField(5)));
+		it.open();
+		assertTrue(it.hasNext());
+		BTreeLeafPage leaf = twoLeafPageFile.findLeafPage(tid,
+				Permissions.READ_ONLY, new IntField(5));
+		assertTrue(bp.holdsLock(tid, leaf.getId()));
+		assertFalse(bp.holdsLock(tid, rootId));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+
+		TransactionId writer = new TransactionId();
+		int pages = twoLeafPageFile.numPages();
+		for (int i = 0; twoLeafPageFile.numPages() == pages; ++i) {
+			bp.insertTuple(writer, twoLeafPageFile.getId(),
+					BTreeUtility.getBTreeTuple(1000 + i, 2));
+		}
+		assertTrue(bp.holdsLock(writer, rootId));
+		bp.transactionComplete(writer);
+		assertTrue(it.hasNext());
+		it.close();
+	}
+
 	/**
 	 * Unit test for BTreeFile.indexIterator()
 	 */
@@ -166,12 +166,40 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() over a page with empty
+	 * slots between its entries
+	 */
+	@Test public void reverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		it.next();
+		page.deleteKeyAndRightChild(it.next());
+
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext()) {
+			entries.add(0, it.next());
+		}
+
+		int row = 0;
+		it = page.reverseIterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(entries.get(row).getKey(), e.getKey());
+			assertEquals(entries.get(row).getLeftChild(), e.getLeftChild());
+			assertEquals(entries.get(row).getRightChild(), e.getRightChild());
+			row++;
+		}
+		assertEquals(entries.size(), row);
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
 	@Test public void getNumEmptySlots() throws Exception {
 		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
-		assertEquals(483, page.getNumEmptySlots());
+		assertEquals(482, page.getNumEmptySlots());
 	}
 
 	/**
@@ -184,7 +212,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		for (int i = 0; i < 21; ++i)
 			assertTrue(page.isSlotUsed(i));
 
-		for (int i = 21; i < 504; ++i)
+		for (int i = 21; i < 503; ++i)
 			assertFalse(page.isSlotUsed(i));
 	}
 
@@ -238,7 +266,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		int free = page.getNumEmptySlots();
 
 		// NOTE(ghuo): this nested loop existence check is slow, but it
-		// shouldn't make a difference for n = 503 slots.
+		// shouldn't make a difference for n = 502 slots.
 
 		for (int i = 0; i < free; ++i) {
 			BTreeEntry addition = BTreeUtility.getBTreeEntry(i+21, 70000+i, pid.getTableId());
@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Throughput of query plans over an in-memory table. Two plans are run in
+ * read-only transactions, so that no locks are taken: a scan that filters
+ * half of the rows, projects one column and sums it, and a hash join of a
+ * small table with the big one. The root of each plan is read a tuple at a
+ * time, like Query does, so the benchmark runs against operators that move
+ * tuples or batches between them alike. A third plan, a filter that keeps
+ * half of the rows, is read both ways: the difference is what the Tuple
+ * and Fields BatchOperator makes for every row it hands out cost. Reports
+ * the rows of the big table each plan gets through per second.
+ * <p>
+ * Run with: ant runbench -Dbench=BatchBenchmark [-Dargs="rows rounds"]
+ */
+public class BatchBenchmark {
+
+    private static final int DEFAULT_ROWS = 200000;
+    private static final int DEFAULT_ROUNDS = 10;
+    private static final int MAX_VALUE = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, rows, MAX_VALUE, null, null);
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, MAX_VALUE / 10, MAX_VALUE, null, null);
+        // keep the whole table in memory
+        int pages = big.numPages() + small.numPages() + 10;
+        Database.resetBufferPool(pages);
+
+        System.out.printf("rows=%d%n", rows);
+        for (int round = 0; round < rounds; ++round) {
+            double scan = run(rows, scan(big));
+            double join = run(rows, join(small, big));
+            double tuples = run(rows, filter(big));
+            double batches = runBatches(rows, filter(big));
+            System.out.printf("filter-project-sum %10.0f rows/sec   hash join %10.0f rows/sec"
+                    + "   filter by tuple %10.0f rows/sec   by batch %10.0f rows/sec%n",
+                    scan, join, tuples, batches);
+        }
+    }
+
+    private interface Plan {
+        OpIterator build(TransactionId tid);
+    }
+
+    private static Plan scan(HeapFile big) {
+        return tid -> {
+            OpIterator filter = new Filter(
+                    new Predicate(0, Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 2)),
+                    new SeqScan(tid, big.getId(), "big"));
+            OpIterator project = new Project(new ArrayList<Integer>(Arrays.asList(1)),
+                    new Type[] { Type.INT_TYPE }, filter);
+            return new Aggregate(project, 0, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+        };
+    }
+
+    private static Plan filter(HeapFile big) {
+        return tid -> new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 2)),
+                new SeqScan(tid, big.getId(), "big"));
+    }
+
+    private static Plan join(HeapFile small, HeapFile big) {
+        return tid -> new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, small.getId(), "small"), new SeqScan(tid, big.getId(), "big"));
+    }
+
+    private static double run(int rows, Plan plan) throws Exception {
+        Transaction t = new Transaction(true);
+        t.start();
+        long begin = System.nanoTime();
+        OpIterator root = plan.build(t.getId());
+        root.open();
+        long out = 0;
+        while (root.hasNext()) {
+            root.next();
+            ++out;
+        }
+        root.close();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        t.commit();
+        if (out == 0) {
+            throw new IllegalStateException("plan returned no rows");
+        }
+        return rows / elapsed;
+    }
+
+    private static double runBatches(int rows, Plan plan) throws Exception {
+        Transaction t = new Transaction(true);
+        t.start();
+        long begin = System.nanoTime();
+        BatchOpIterator root = (BatchOpIterator) plan.build(t.getId());
+        root.open();
+        long out = 0;
+        TupleBatch batch;
+        while ((batch = root.nextBatch()) != null) {
+            out += batch.size();
+        }
+        root.close();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        t.commit();
+        if (out == 0) {
+            throw new IllegalStateException("plan returned no rows");
+        }
+        return rows / elapsed;
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Contention benchmark for the deadlock policies of the LockManager.
+ * Like DeadlockTest, every transaction reads two pages of a small heap file
+ * and then upgrades its lock on one of them, so transactions that share a
+ * page deadlock unless one of them gives up. An aborted transaction is
+ * retried with a new TransactionId that keeps the timestamp of the first
+ * try, so it keeps its age under the timestamp based policies. Reports commits/sec and the abort rate of
+ * each policy.
+ * <p>
+ * Run with: ant runbench -Dbench=DeadlockPolicyBenchmark [-Dargs="threads pages seconds"]
+ */
+public class DeadlockPolicyBenchmark {
+
+    private static final int DEFAULT_THREADS = 16;
+    private static final int DEFAULT_PAGES = 8;
+    private static final int DEFAULT_SECONDS = 3;
+    private static final int MAX_BACKOFF_NANOS = 200_000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        int numPages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PAGES;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+
+        File f = File.createTempFile("deadlock", ".dat");
+        f.deleteOnExit();
+        HeapFile table = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        for (int i = 1; i < numPages; ++i) {
+            table.writePage(new HeapPage(new HeapPageId(table.getId(), i), HeapPage.createEmptyPageData()));
+        }
+        PageId[] pages = new PageId[numPages];
+        for (int i = 0; i < numPages; ++i) {
+            pages[i] = new HeapPageId(table.getId(), i);
+        }
+
+        System.out.printf("threads=%d pages=%d seconds=%d%n", threads, numPages, seconds);
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+            BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            bp.setDeadlockPolicy(policy);
+            run(bp, policy, pages, threads, seconds);
+        }
+    }
+
+    private static void run(BufferPool bp, LockManager.DeadlockPolicy policy, PageId[] pages,
+                            int threads, int seconds) throws Exception {
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long end = System.currentTimeMillis() + 1000L * seconds;
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Thread(() -> {
+                ThreadLocalRandom rand = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.currentTimeMillis() < end) {
+                    TransactionId tid = new TransactionId();
+                    PageId first = pages[rand.nextInt(pages.length)];
+                    PageId second = pages[rand.nextInt(pages.length)];
+                    while (System.currentTimeMillis() < end) {
+                        try {
+                            bp.getPage(tid, first, Permissions.READ_ONLY);
+                            bp.getPage(tid, second, Permissions.READ_ONLY);
+                            bp.getPage(tid, first, Permissions.READ_WRITE);
+                            bp.transactionComplete(tid, true);
+                            commits.incrementAndGet();
+                            break;
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                            try {
+                                bp.transactionComplete(tid, false);
+                            } catch (Exception ex) {
+                                throw new RuntimeException(ex);
+                            }
+                            tid = new TransactionId(tid);
+                            // back off a little before the retry, or the same
+                            // transactions keep running into each other
+                            LockSupport.parkNanos(rand.nextInt(MAX_BACKOFF_NANOS));
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            });
+            workers[i].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        long attempts = commits.get() + aborts.get();
+        System.out.printf("%-10s %9.0f commits/sec  abort rate %5.1f%%%n", policy,
+                commits.get() / elapsed, attempts == 0 ? 0.0 : 100.0 * aborts.get() / attempts);
+    }
+}
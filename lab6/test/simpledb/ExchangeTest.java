@@ -0,0 +1,166 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+  private static final int ROWS = 60000;
+  private static final int PARTS = 4;
+
+  private int parallelism;
+  private HeapFile hf;
+  private ArrayList<ArrayList<Integer>> tuples;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    parallelism = Exchange.getParallelism();
+    tuples = new ArrayList<ArrayList<Integer>>();
+    hf = SystemTestUtil.createRandomHeapFile(2, ROWS, 10, null, tuples, "c");
+    assertTrue(hf.numPages() >= LogicalPlan.MIN_PARALLEL_PAGES);
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Exchange.setParallelism(parallelism);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private OpIterator[] partitions(Predicate p) {
+    OpIterator[] parts = new OpIterator[PARTS];
+    for (int i = 0; i < PARTS; ++i) {
+      parts[i] = new SeqScan(tid, hf.getId(), "t", i, PARTS);
+      if (p != null) {
+        parts[i] = new Filter(p, parts[i]);
+      }
+    }
+    return parts;
+  }
+
+  private static ArrayList<ArrayList<Integer>> drain(OpIterator it) throws Exception {
+    ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+    while (it.hasNext()) {
+      out.add(SystemTestUtil.tupleToList(it.next()));
+    }
+    return out;
+  }
+
+  private static void sort(ArrayList<ArrayList<Integer>> rows) {
+    Collections.sort(rows, (a, b) -> a.toString().compareTo(b.toString()));
+  }
+
+  /**
+   * The partitions of a scan read every tuple of the table exactly once.
+   */
+  @Test public void partitionedScan() throws Exception {
+    ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>();
+    for (OpIterator part : partitions(null)) {
+      part.open();
+      ArrayList<ArrayList<Integer>> rows = drain(part);
+      part.close();
+      assertTrue(rows.size() > 0);
+      all.addAll(rows);
+    }
+    sort(all);
+    sort(tuples);
+    assertEquals(tuples, all);
+  }
+
+  /**
+   * An exchange gathers the tuples of its children, starts over on rewind,
+   * and can be closed before it is done.
+   */
+  @Test public void gather() throws Exception {
+    Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(5));
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t : tuples) {
+      if (t.get(0) < 5) {
+        expected.add(t);
+      }
+    }
+    sort(expected);
+
+    Exchange ex = new Exchange(partitions(p));
+    ex.open();
+    for (int pass = 0; pass < 2; ++pass) {
+      ArrayList<ArrayList<Integer>> rows = drain(ex);
+      sort(rows);
+      assertEquals(expected, rows);
+      ex.rewind();
+    }
+    ex.next();
+    ex.close();
+  }
+
+  /**
+   * An exception thrown by a child is rethrown to the consumer.
+   */
+  @Test public void workerError() throws Exception {
+    OpIterator[] parts = partitions(null);
+    parts[PARTS - 1] = new SeqScan(tid, -1, "missing");
+    Exchange ex = new Exchange(parts, hf.getTupleDesc());
+    ex.open();
+    try {
+      drain(ex);
+      fail("expected the error of the worker");
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+    ex.close();
+  }
+
+  private ArrayList<ArrayList<Integer>> query(String op, boolean parallel) throws Exception {
+    String name = Database.getCatalog().getTableName(hf.getId());
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(hf.getId(), "t");
+    lp.addFilter("t.c1", Predicate.Op.GREATER_THAN, "2");
+    lp.addAggregate(op, "t.c1", "t.c0");
+    lp.addProjectField("t.c0", null);
+    lp.addProjectField("t.c1", op);
+    lp.setParallelScans(parallel);
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put(name, new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+    OpIterator plan = lp.physicalPlan(tid, stats, false);
+    Operator agg = (Operator) ((Operator) plan).getChildren()[0];
+    assertEquals(parallel, agg.getChildren()[0] instanceof Exchange);
+    plan.open();
+    ArrayList<ArrayList<Integer>> rows = drain(plan);
+    plan.close();
+    sort(rows);
+    return rows;
+  }
+
+  /**
+   * A grouped aggregate over partial aggregates per worker gives the same
+   * groups and values as one over the whole table, for every aggregate
+   * that can be combined, and AVG runs above the exchange.
+   */
+  @Test public void parallelAggregates() throws Exception {
+    Exchange.setParallelism(PARTS);
+    for (String op : new String[] { "count", "sum", "min", "max", "avg" }) {
+      ArrayList<ArrayList<Integer>> serial = query(op, false);
+      assertEquals(10, serial.size());
+      assertEquals(op, serial, query(op, true));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
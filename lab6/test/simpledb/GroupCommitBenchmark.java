@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Commit throughput of the log as the number of committing threads grows.
+ * Every thread inserts one tuple per transaction into a heap file of its
+ * own, so the transactions never wait for each other's locks and the
+ * commit rate is bounded by the log forces. With group commit the
+ * committers share forces, so commits/sec keeps growing with the number
+ * of threads as long as there are cores to run them. Each thread count is
+ * measured with no group commit delay and with the given delay, and
+ * with asynchronous commit, where the committers don't wait for the log
+ * force at all and the background flusher shares one force among all the
+ * commits of its interval. Reports commits/sec and the average number of
+ * commits per log force.
+ * <p>
+ * Run with: ant runbench -Dbench=GroupCommitBenchmark [-Dargs="maxThreads seconds delayMicros"]
+ */
+public class GroupCommitBenchmark {
+
+    private static final int DEFAULT_MAX_THREADS = 16;
+    private static final int DEFAULT_SECONDS = 3;
+    private static final long DEFAULT_DELAY_MICROS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_THREADS;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+        long delay = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_DELAY_MICROS;
+
+        System.out.printf("seconds=%d%n", seconds);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads, seconds, 0, true);
+            run(threads, seconds, delay, true);
+            run(threads, seconds, 0, false);
+        }
+    }
+
+    private static void run(int threads, int seconds, long delay, boolean synchronous) throws Exception {
+        Database.reset();
+        Database.getLogFile().setGroupCommitDelay(delay);
+        Database.getLogFile().setSynchronousCommit(synchronous);
+        final HeapFile[] tables = new HeapFile[threads];
+        for (int i = 0; i < threads; ++i) {
+            File f = File.createTempFile("groupcommit", ".dat");
+            f.deleteOnExit();
+            tables[i] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+
+        final AtomicLong commits = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long end = System.currentTimeMillis() + 1000L * seconds;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            final HeapFile table = tables[i];
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int n = 0; System.currentTimeMillis() < end; ++n) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                Utility.getHeapTuple(new int[] { n, n }));
+                        t.commit();
+                        commits.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[i].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        long forces = Database.getLogFile().getForceCount();
+        System.out.printf("threads=%-3d delay=%-5d commit=%-5s %9.0f commits/sec %6.2f commits/force%n",
+                threads, delay, synchronous ? "sync" : "async",
+                commits.get() / elapsed, forces == 0 ? 0.0 : (double) commits.get() / forces);
+    }
+}
@@ -174,4 +174,22 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+
+	/**
+	 * The average equality selectivity is about one over the number of
+	 * distinct values when they are spread evenly, and grows with skew.
+	 */
+	@Test public void avgSelectivityTest() {
+		IntHistogram h = new IntHistogram(100, 0, 999);
+		for (int c = 0; c < 1000; c++) {
+			h.addValue(c);
+			h.addValue(c);
+		}
+		Assert.assertEquals(0.001, h.avgSelectivity(), 0.0002);
+
+		for (int c = 0; c < 2000; c++) {
+			h.addValue(7);
+		}
+		Assert.assertTrue(h.avgSelectivity() > 0.01);
+	}
 }
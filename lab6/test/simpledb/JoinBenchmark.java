@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Time the join operators take for the same joins of in-memory tables, in
+ * read-only transactions. An equality join of two tables of the given
+ * number of rows, with about one match per row, is run as a hash join and
+ * as a sort-merge join that sorts both sides. A band join (a.c0 < b.c0)
+ * of two tables of a fiftieth of the rows, which outputs about half of
+ * their cross product, is run as a block nested loops join and as a
+ * sort-merge join. Reports the best time of each plan over the rounds.
+ * <p>
+ * Run with: ant runbench -Dbench=JoinBenchmark [-Dargs="rows rounds"]
+ */
+public class JoinBenchmark {
+
+    private static final int DEFAULT_ROWS = 100000;
+    private static final int DEFAULT_ROUNDS = 5;
+    private static final int BAND_FRACTION = 50;
+
+    private interface Plan {
+        OpIterator build(TransactionId tid);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, rows, rows, null, null);
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, rows, rows, null, null);
+        int bandRows = rows / BAND_FRACTION;
+        HeapFile c = SystemTestUtil.createRandomHeapFile(2, bandRows, rows, null, null);
+        HeapFile d = SystemTestUtil.createRandomHeapFile(2, bandRows, rows, null, null);
+        // keep all tables in memory
+        Database.resetBufferPool(a.numPages() + b.numPages() + c.numPages() + d.numPages() + 10);
+
+        JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        JoinPredicate lt = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        Map<String, Plan> plans = new LinkedHashMap<String, Plan>();
+        plans.put("equality, hash", tid -> new HashEquiJoin(eq, scan(tid, a), scan(tid, b)));
+        plans.put("equality, sort-merge", tid -> new SortMergeJoin(eq, scan(tid, a), scan(tid, b)));
+        plans.put("band, block nested loops", tid -> new Join(lt, scan(tid, c), scan(tid, d)));
+        plans.put("band, sort-merge", tid -> new SortMergeJoin(lt, scan(tid, c), scan(tid, d)));
+
+        System.out.printf("rows=%d band rows=%d%n", rows, bandRows);
+        for (Map.Entry<String, Plan> e : plans.entrySet()) {
+            double best = Double.MAX_VALUE;
+            long out = 0;
+            for (int round = 0; round < rounds; ++round) {
+                long begin = System.nanoTime();
+                out = run(e.getValue());
+                best = Math.min(best, (System.nanoTime() - begin) / 1e9);
+            }
+            System.out.printf("%-28s %10d rows %8.3f sec%n", e.getKey(), out, best);
+        }
+    }
+
+    private static OpIterator scan(TransactionId tid, HeapFile f) {
+        return new SeqScan(tid, f.getId(), "t" + f.getId());
+    }
+
+    /** @return the number of rows the plan returned */
+    private static long run(Plan plan) throws Exception {
+        Transaction t = new Transaction(true);
+        t.start();
+        OpIterator root = plan.build(t.getId());
+        root.open();
+        long out = 0;
+        while (root.hasNext()) {
+            root.next();
+            ++out;
+        }
+        root.close();
+        t.commit();
+        return out;
+    }
+}
@@ -621,4 +621,110 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * A join of a small table with a large one that has a B+ tree on the
+     * join field looks the tuples of the small table up in the tree, and
+     * applies the filters on the large table to the output.
+     */
+    @Test
+    public void indexJoinForSmallOuterTest() throws Exception {
+        ArrayList<ArrayList<Integer>> smallTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, 2000, null,
+                smallTuples, "c");
+        ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile tree = BTreeUtility.createRandomBTreeFile(2, 20000, 2000, null,
+                bigTuples, 0);
+        BTreeFile big = new BTreeFile(tree.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(small, "small");
+        Database.getCatalog().addTable(big, "big");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("small", new TableStats(small.getId(), 1000));
+        stats.put("big", new TableStats(big.getId(), 1000));
+
+        int expected = 0;
+        for (ArrayList<Integer> s : smallTuples) {
+            for (ArrayList<Integer> b : bigTuples) {
+                if (s.get(0).equals(b.get(0)) && b.get(1) < 1000) {
+                    expected++;
+                }
+            }
+        }
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(small.getId(), "s");
+        lp.addScan(big.getId(), "b");
+        lp.addFilter("b.c1", Predicate.Op.LESS_THAN, "1000");
+        lp.addJoin("s.c0", "b.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("s.c1", null);
+        lp.addProjectField("b.c1", null);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        Operator filter = (Operator) ((Operator) plan).getChildren()[0];
+        Assert.assertTrue(filter instanceof Filter);
+        Assert.assertTrue(filter.getChildren()[0] instanceof IndexNestedLoopJoin);
+
+        int count = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            Assert.assertTrue(((IntField) plan.next().getField(1)).getValue() < 1000);
+            count++;
+        }
+        plan.close();
+        Assert.assertEquals(expected, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A join of two tables with B+ trees on the join fields merges the
+     * scans of the trees, which come sorted, instead of hashing one side.
+     */
+    @Test
+    public void sortMergeJoinForSortedTablesTest() throws Exception {
+        ArrayList<ArrayList<Integer>> leftTuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile leftTree = BTreeUtility.createRandomBTreeFile(2, 5000, 2000, null,
+                leftTuples, 0);
+        ArrayList<ArrayList<Integer>> rightTuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile rightTree = BTreeUtility.createRandomBTreeFile(2, 5000, 2000, null,
+                rightTuples, 0);
+        BTreeFile left = new BTreeFile(leftTree.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        BTreeFile right = new BTreeFile(rightTree.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(left, "sortedleft");
+        Database.getCatalog().addTable(right, "sortedright");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("sortedleft", new TableStats(left.getId(), 1000));
+        stats.put("sortedright", new TableStats(right.getId(), 1000));
+
+        HashMap<Integer, Integer> rightKeys = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> t : rightTuples) {
+            rightKeys.merge(t.get(0), 1, Integer::sum);
+        }
+        int expected = 0;
+        for (ArrayList<Integer> t : leftTuples) {
+            expected += rightKeys.getOrDefault(t.get(0), 0);
+        }
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(left.getId(), "l");
+        lp.addScan(right.getId(), "r");
+        lp.addJoin("l.c0", "r.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("l.c1", null);
+        lp.addProjectField("r.c1", null);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        Operator join = (Operator) ((Operator) plan).getChildren()[0];
+        Assert.assertTrue(join instanceof SortMergeJoin);
+        Assert.assertTrue(join.getChildren()[0] instanceof SeqScan);
+        Assert.assertTrue(join.getChildren()[1] instanceof SeqScan);
+
+        int count = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        Assert.assertEquals(expected, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
 }
@@ -5,6 +5,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import java.util.ArrayList;
+import java.util.Collections;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -105,6 +108,188 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  private static ArrayList<String> sortedRows(OpIterator op) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    op.open();
+    while (op.hasNext()) {
+      rows.add(op.next().toString());
+    }
+    op.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  private static OpIterator keys(int n, int distinct, int skewed) {
+    int[] data = new int[2 * n];
+    for (int i = 0; i < n; ++i) {
+      data[2 * i] = i % skewed == 0 ? -1 : i % distinct;
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * A hash join whose left relation exceeds its memory budget spills
+   * partitions, partitions the spilled ones again, and loads the ones a
+   * single hot key keeps too large a budget at a time, and still returns
+   * what a nested loops join does.
+   */
+  @Test public void hashJoinSpills() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    ArrayList<String> expected = sortedRows(new Join(pred, keys(2000, 700, 9), keys(1500, 1000, 13)));
+    assertTrue(expected.size() > 2000 / 9 * 1500 / 13);
+
+    HashEquiJoin op = new HashEquiJoin(pred, keys(2000, 700, 9), keys(1500, 1000, 13));
+    op.setMemoryBudget(100);
+    assertEquals(expected, sortedRows(op));
+
+    // again after a rewind, halfway through the spilled partitions
+    op.open();
+    for (int i = 0; i < expected.size() / 2; ++i) {
+      op.next();
+    }
+    op.rewind();
+    ArrayList<String> rows = new ArrayList<String>();
+    while (op.hasNext()) {
+      rows.add(op.next().toString());
+    }
+    op.close();
+    Collections.sort(rows);
+    assertEquals(expected, rows);
+  }
+
+  /**
+   * A sort-merge join returns what a nested loops join does for every
+   * operator it supports, with duplicate keys on both sides, and again
+   * after a rewind.
+   */
+  @Test public void sortMergeJoin() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+    for (Predicate.Op o : ops) {
+      JoinPredicate pred = new JoinPredicate(0, o, 0);
+      ArrayList<String> expected = sortedRows(new Join(pred, keys(300, 40, 7), keys(200, 50, 11)));
+      assertTrue(expected.size() > 0);
+
+      SortMergeJoin op = new SortMergeJoin(pred, keys(300, 40, 7), keys(200, 50, 11));
+      assertEquals(o.toString(), expected, sortedRows(op));
+      op.open();
+      for (int i = 0; i < expected.size() / 2; ++i) {
+        op.next();
+      }
+      op.rewind();
+      ArrayList<String> rows = new ArrayList<String>();
+      while (op.hasNext()) {
+        rows.add(op.next().toString());
+      }
+      op.close();
+      Collections.sort(rows);
+      assertEquals(o.toString(), expected, rows);
+    }
+  }
+
+  /**
+   * A sort-merge join sorts only the children that are not sorted on
+   * their join fields yet.
+   */
+  @Test public void sortMergeJoinSortedInputs() throws Exception {
+    OpIterator sorted = new OrderBy(0, true, keys(100, 10, 100));
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, sorted, keys(100, 10, 100));
+    assertTrue(op.getChildren()[0] == sorted);
+    assertTrue(op.getChildren()[1] instanceof OrderBy);
+    assertTrue(SortMergeJoin.isSorted(op, 0));
+    assertTrue(SortMergeJoin.isSorted(op, 2));
+    assertTrue(!SortMergeJoin.isSorted(op, 1));
+    assertTrue(!SortMergeJoin.isSorted(new OrderBy(0, false, keys(10, 10, 10)), 0));
+  }
+
+  /**
+   * A TupleIterator that counts how often it is rewound.
+   */
+  private static class CountingIterator extends TupleIterator {
+    private static final long serialVersionUID = 1L;
+    int rewinds = 0;
+
+    CountingIterator(OpIterator it) throws Exception {
+      super(it.getTupleDesc(), drain(it));
+    }
+
+    private static ArrayList<Tuple> drain(OpIterator it) throws Exception {
+      ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+      it.open();
+      while (it.hasNext()) {
+        tuples.add(it.next());
+      }
+      it.close();
+      return tuples;
+    }
+
+    @Override public void rewind() {
+      rewinds++;
+      super.rewind();
+    }
+  }
+
+  /**
+   * A block nested loops join with an outer relation of several blocks
+   * reads the inner relation once per block, and returns what the other
+   * joins do.
+   */
+  @Test public void blockJoin() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN };
+    for (Predicate.Op o : ops) {
+      JoinPredicate pred = new JoinPredicate(0, o, 0);
+      ArrayList<String> expected = sortedRows(new SortMergeJoin(pred, keys(5000, 300, 7), keys(40, 300, 11)));
+      assertTrue(expected.size() > 0);
+
+      CountingIterator inner = new CountingIterator(keys(40, 300, 11));
+      Join op = new Join(pred, keys(5000, 300, 7), inner);
+      op.setMemoryBudget(2 * TupleBatch.DEFAULT_SIZE);
+      assertEquals(o.toString(), expected, sortedRows(op));
+      // blocks of two batches of 1024 tuples of the 5000
+      assertEquals(2, inner.rewinds);
+    }
+
+    JoinPredicate ne = new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0);
+    JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Join op = new Join(ne, keys(3000, 300, 7), keys(40, 300, 11));
+    op.setMemoryBudget(100);
+    assertEquals(3000 * 40 - sortedRows(new Join(eq, keys(3000, 300, 7), keys(40, 300, 11))).size(),
+        sortedRows(op).size());
+  }
+
+  /**
+   * An index nested loops join looks the outer tuples up in a B+ tree,
+   * including duplicate keys on both sides and keys that aren't there, and
+   * returns what a hash join of a scan of the tree does.
+   */
+  @Test public void indexNestedLoopJoin() throws Exception {
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 3000, 500, null, null, 0);
+    Database.getCatalog().addTable(bf, "inlj");
+    TransactionId tid = new TransactionId();
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    ArrayList<String> expected = sortedRows(
+        new HashEquiJoin(pred, keys(2000, 700, 9), new SeqScan(tid, bf.getId(), "inlj")));
+    assertTrue(expected.size() > 2000);
+
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, keys(2000, 700, 9), tid, bf.getId(), "inlj");
+    assertEquals(expected, sortedRows(op));
+    op.open();
+    for (int i = 0; i < expected.size() / 2; ++i) {
+      op.next();
+    }
+    op.rewind();
+    ArrayList<String> rows = new ArrayList<String>();
+    while (op.hasNext()) {
+      rows.add(op.next().toString());
+    }
+    op.close();
+    Collections.sort(rows);
+    assertEquals(expected, rows);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
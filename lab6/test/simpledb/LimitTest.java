@@ -0,0 +1,197 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  /**
+   * A TupleIterator that counts the tuples read from it, and knows if it
+   * is open.
+   */
+  private static class CountingIterator extends TupleIterator {
+    private static final long serialVersionUID = 1L;
+    int read = 0;
+    boolean open = false;
+
+    CountingIterator(TupleDesc td, ArrayList<Tuple> tuples) {
+      super(td, tuples);
+    }
+
+    @Override public void open() {
+      super.open();
+      open = true;
+    }
+
+    @Override public Tuple next() {
+      read++;
+      return super.next();
+    }
+
+    @Override public void close() {
+      super.close();
+      open = false;
+    }
+  }
+
+  /** The values 0 to n - 1 in c0, and c1 random with many duplicates. */
+  private static CountingIterator rows(int n) {
+    Random r = new Random(7);
+    TupleDesc td = Utility.getTupleDesc(2);
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < n; ++i) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i));
+      t.setField(1, new IntField(r.nextInt(50)));
+      tuples.add(t);
+    }
+    return new CountingIterator(td, tuples);
+  }
+
+  private static ArrayList<Integer> column(OpIterator op, int field) throws Exception {
+    ArrayList<Integer> values = new ArrayList<Integer>();
+    while (op.hasNext()) {
+      values.add(((IntField) op.next().getField(field)).getValue());
+    }
+    return values;
+  }
+
+  /**
+   * Unit test for Limit with limits and offsets across batches, and
+   * rewind() after the limit closed the child.
+   */
+  @Test public void limitOffset() throws Exception {
+    Limit op = new Limit(1500, 1000, rows(3000));
+    op.open();
+    ArrayList<Integer> values = column(op, 0);
+    assertEquals(1500, values.size());
+    for (int i = 0; i < values.size(); ++i) {
+      assertEquals(1000 + i, (int) values.get(i));
+    }
+    op.rewind();
+    assertEquals(values, column(op, 0));
+    op.close();
+
+    op = new Limit(-1, 2990, rows(3000));
+    op.open();
+    assertEquals(10, column(op, 0).size());
+    op.close();
+
+    op = new Limit(0, 0, rows(3000));
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * Once its limit is reached, Limit reads no more than the batch it is in
+   * from its child, and closes it.
+   */
+  @Test public void stopsEarly() throws Exception {
+    CountingIterator child = rows(100000);
+    Limit op = new Limit(10, 5, child);
+    op.open();
+    assertEquals(10, column(op, 0).size());
+    assertTrue(child.read <= TupleBatch.DEFAULT_SIZE);
+    assertTrue(!child.open);
+    op.close();
+  }
+
+  /**
+   * TopN returns the first tuples OrderBy does, on several fields in mixed
+   * orders, with ties kept in the order of the child.
+   */
+  @Test public void topN() throws Exception {
+    int[] fields = { 1, 0 };
+    boolean[][] orders = { { false, true }, { true, false } };
+    for (boolean[] asc : orders) {
+      OrderBy sort = new OrderBy(fields, asc, rows(5000));
+      sort.open();
+      ArrayList<Integer> sorted = column(sort, 0);
+      sort.close();
+      OrderBy byFirst = new OrderBy(new int[] { 1 }, new boolean[] { asc[0] }, rows(5000));
+      byFirst.open();
+      ArrayList<Integer> stable = column(byFirst, 0);
+      byFirst.close();
+
+      for (int n : new int[] { 0, 1, 7, 2000, 6000 }) {
+        TopN op = new TopN(fields, asc, n, rows(5000));
+        op.open();
+        assertEquals(sorted.subList(0, Math.min(n, 5000)), column(op, 0));
+        op.rewind();
+        assertEquals(Math.min(n, 5000), column(op, 0).size());
+        op.close();
+
+        op = new TopN(new int[] { 1 }, new boolean[] { asc[0] }, n, rows(5000));
+        op.open();
+        assertEquals(stable.subList(0, Math.min(n, 5000)), column(op, 0));
+        op.close();
+      }
+    }
+  }
+
+  /**
+   * The heap of a TopN grows with its child, so a limit far beyond the size
+   * of the child doesn't allocate room for the limit.
+   */
+  @Test public void topNHugeLimit() throws Exception {
+    TopN op = new TopN(new int[] { 1 }, new boolean[] { true }, 500000000, rows(10));
+    op.open();
+    assertEquals(10, column(op, 0).size());
+    op.close();
+  }
+
+  /**
+   * The parser takes LIMIT and OFFSET off a query, and the plan applies
+   * them with a TopN under an ORDER BY.
+   */
+  @Test public void parseLimit() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 200, 1000, null, tuples, "c");
+    Database.getCatalog().addTable(f, "limited");
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("limited", new TableStats(f.getId(), 1000));
+    ArrayList<Integer> expected = new ArrayList<Integer>();
+    for (ArrayList<Integer> t : tuples) {
+      expected.add(t.get(0));
+    }
+    Collections.sort(expected, Collections.reverseOrder());
+
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT l.c0 FROM limited l ORDER BY l.c0 DESC LIMIT 5 OFFSET 3;");
+    OpIterator plan = lp.physicalPlan(tid, stats, false);
+    Operator limit = (Operator) ((Operator) plan).getChildren()[0];
+    assertTrue(limit instanceof Limit);
+    assertTrue(limit.getChildren()[0] instanceof TopN);
+    plan.open();
+    assertEquals(expected.subList(3, 8), column(plan, 0));
+    plan.close();
+
+    lp = p.generateLogicalPlan(tid, "SELECT l.c0 FROM limited l limit 7");
+    plan = lp.physicalPlan(tid, stats, false);
+    plan.open();
+    assertEquals(7, column(plan, 0).size());
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput benchmark for the LockManager: many threads run short
+ * transactions that lock a few pages out of a small set of hot pages, mostly
+ * in shared mode, and then release everything. Every lock request is for a
+ * new PageId instance, the way the access methods ask for pages.
+ * <p>
+ * Run with: ant runbench -Dbench=LockManagerBenchmark [-Dargs="threads hotPages seconds"]
+ */
+public class LockManagerBenchmark {
+
+    private static final int DEFAULT_THREADS = 64;
+    private static final int DEFAULT_HOT_PAGES = 16;
+    private static final int DEFAULT_SECONDS = 5;
+
+    /** one out of WRITE_RATIO lock requests asks for an exclusive lock */
+    private static final int WRITE_RATIO = 10;
+    private static final int LOCKS_PER_XACTION = 2;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        int hotPages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_HOT_PAGES;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+
+        final LockManager lm = new LockManager();
+        final PageId[] pages = new PageId[hotPages];
+        for (int i = 0; i < hotPages; ++i) {
+            pages[i] = new HeapPageId(1, i);
+        }
+
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final AtomicLong requests = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long end = System.currentTimeMillis() + 1000L * seconds;
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Thread(() -> {
+                ThreadLocalRandom rand = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.currentTimeMillis() < end) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        // lock pages in ascending order so that the benchmark measures
+                        // the lock table rather than deadlock timeouts
+                        int next = 0;
+                        for (int j = 0; j < LOCKS_PER_XACTION && next < pages.length; ++j) {
+                            int pgNo = next + rand.nextInt(pages.length - next);
+                            next = pgNo + 1;
+                            PageId pid = new HeapPageId(pages[pgNo].getTableId(), pgNo);
+                            Permissions perm = rand.nextInt(WRITE_RATIO) == 0
+                                    ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                            requests.incrementAndGet();
+                            lm.acquireLock(tid, pid, perm);
+                        }
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        aborts.incrementAndGet();
+                    } finally {
+                        lm.releaseLock(tid);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+
+        System.out.printf("threads=%d hotPages=%d seconds=%.2f%n", threads, hotPages, elapsed);
+        System.out.printf("committed %d transactions (%.0f xactions/sec), %d aborted%n",
+                commits.get(), commits.get() / elapsed, aborts.get());
+        System.out.printf("%.0f lock requests/sec%n", requests.get() / elapsed);
+    }
+}
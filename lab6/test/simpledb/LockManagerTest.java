@@ -0,0 +1,316 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+  private LockManager lm;
+  private TransactionId tid1, tid2, tid3;
+
+  @Before public void setUp() {
+    lm = new LockManager();
+    tid1 = new TransactionId();
+    tid2 = new TransactionId();
+    tid3 = new TransactionId();
+  }
+
+  /**
+   * Distinct pages must pack to distinct keys, equal pages to the same key.
+   */
+  @Test public void pack() {
+    assertEquals(LockManager.pack(new HeapPageId(7, 3)), LockManager.pack(new HeapPageId(7, 3)));
+    assertFalse(LockManager.pack(new HeapPageId(7, 3)) == LockManager.pack(new HeapPageId(3, 7)));
+    assertFalse(LockManager.pack(new HeapPageId(-1, 3)) == LockManager.pack(new HeapPageId(0, 3)));
+    assertFalse(LockManager.pack(new BTreePageId(7, 3, BTreePageId.LEAF))
+        == LockManager.pack(new BTreePageId(7, 3, BTreePageId.INTERNAL)));
+  }
+
+  /**
+   * The lock map of a stripe finds what a HashMap would, through growing
+   * and removals in the middle of probe runs.
+   */
+  @Test public void lockMap() {
+    LockManager.LockMap map = new LockManager.LockMap();
+    java.util.HashMap<Long, LockManager.Lock> expected = new java.util.HashMap<>();
+    java.util.Random r = new java.util.Random(3);
+    for (int i = 0; i < 20000; ++i) {
+      // few distinct keys, packed like page ids, so runs collide often
+      long key = ((long) r.nextInt(4) << 32) | r.nextInt(300);
+      if (r.nextInt(3) == 0) {
+        map.remove(key);
+        expected.remove(key);
+      } else if (map.get(key) == null) {
+        LockManager.Lock lock = new LockManager.Lock(tid1, LockManager.LockType.SLock);
+        map.put(key, lock);
+        expected.put(key, lock);
+      }
+      assertTrue(map.get(key) == expected.get(key));
+    }
+    assertEquals(expected.size(), map.size());
+    for (int t = 0; t < 4; ++t) {
+      for (int p = 0; p < 300; ++p) {
+        long key = ((long) t << 32) | p;
+        assertTrue(map.get(key) == expected.get(key));
+      }
+    }
+  }
+
+  /**
+   * Locks are keyed by page identity, not by PageId instance.
+   */
+  @Test public void differentInstancesSamePage() throws Exception {
+    lm.acquireLock(tid1, new HeapPageId(1, 0), Permissions.READ_WRITE);
+    assertTrue(lm.ifHoldsLock(tid1, new HeapPageId(1, 0)));
+    assertEquals(LockManager.LockType.XLock, lm.getLockType(new HeapPageId(1, 0)));
+    try {
+      lm.acquireLock(tid2, new HeapPageId(1, 0), Permissions.READ_ONLY);
+      fail("expected the conflicting request to time out");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+  }
+
+  /**
+   * A shared lock goes from one holder to several and back.
+   */
+  @Test public void sharedHolders() throws Exception {
+    PageId pid = new HeapPageId(1, 0);
+    lm.acquireLock(tid1, pid, Permissions.READ_ONLY);
+    lm.acquireLock(tid2, pid, Permissions.READ_ONLY);
+    lm.acquireLock(tid3, pid, Permissions.READ_ONLY);
+    assertTrue(lm.ifHoldsLock(tid1, pid));
+    assertTrue(lm.ifHoldsLock(tid2, pid));
+    assertTrue(lm.ifHoldsLock(tid3, pid));
+
+    lm.releaseLock(tid1, pid);
+    lm.releaseLock(tid3);
+    assertFalse(lm.ifHoldsLock(tid1, pid));
+    assertFalse(lm.ifHoldsLock(tid3, pid));
+    assertTrue(lm.ifHoldsLock(tid2, pid));
+
+    // tid2 is the only holder left, so it may upgrade
+    lm.acquireLock(tid2, pid, Permissions.READ_WRITE);
+    assertEquals(LockManager.LockType.XLock, lm.getLockType(pid));
+
+    lm.releaseLock(tid2);
+    assertEquals(LockManager.LockType.NoLock, lm.getLockType(pid));
+    assertNull(lm.getLockedPage(tid2));
+  }
+
+  /**
+   * A waiter is granted the lock as soon as the holder releases it.
+   */
+  @Test public void waiterIsWokenUp() throws Exception {
+    PageId pid = new HeapPageId(1, 0);
+    lm.acquireLock(tid1, pid, Permissions.READ_WRITE);
+
+    Thread waiter = new Thread(() -> {
+      try {
+        lm.acquireLock(tid2, pid, Permissions.READ_WRITE);
+      } catch (TransactionAbortedException e) {
+        // leave tid2 without the lock
+      }
+    });
+    waiter.start();
+    Thread.sleep(50);
+    lm.releaseLock(tid1);
+    waiter.join();
+
+    assertTrue(lm.ifHoldsLock(tid2, pid));
+    assertFalse(lm.ifHoldsLock(tid1, pid));
+  }
+
+  /**
+   * The multi-granularity compatibility matrix and mode combination.
+   */
+  @Test public void tableModes() {
+    LockManager.LockType IS = LockManager.LockType.ISLock, IX = LockManager.LockType.IXLock,
+        S = LockManager.LockType.SLock, SIX = LockManager.LockType.SIXLock, X = LockManager.LockType.XLock;
+    assertTrue(IS.compatibleWith(SIX));
+    assertTrue(IX.compatibleWith(IX));
+    assertFalse(IX.compatibleWith(S));
+    assertTrue(S.compatibleWith(S));
+    assertFalse(SIX.compatibleWith(IX));
+    assertFalse(X.compatibleWith(IS));
+    assertEquals(SIX, S.combine(IX));
+    assertEquals(S, IS.combine(S));
+    assertEquals(X, SIX.combine(X));
+    assertTrue(SIX.covers(S));
+    assertFalse(S.covers(IX));
+  }
+
+  /**
+   * A table S lock covers the pages of the table, and keeps writers out.
+   */
+  @Test public void tableLockCoversPages() throws Exception {
+    assertTrue(lm.acquireTableLock(tid1, 1, Permissions.READ_ONLY, true));
+    lm.acquireLock(tid1, new HeapPageId(1, 5), Permissions.READ_ONLY);
+    assertTrue(lm.ifHoldsLock(tid1, new HeapPageId(1, 5)));
+    assertNull(lm.getLockedPage(tid1));
+
+    // readers of other pages are fine, writers are not
+    lm.acquireLock(tid2, new HeapPageId(1, 6), Permissions.READ_ONLY);
+    assertEquals(LockManager.LockType.ISLock, lm.getTableLockType(tid2, 1));
+    try {
+      lm.acquireLock(tid3, new HeapPageId(1, 7), Permissions.READ_WRITE);
+      fail("expected the writer to time out");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+
+    lm.releaseLock(tid1);
+    lm.acquireLock(tid3, new HeapPageId(1, 7), Permissions.READ_WRITE);
+    assertEquals(LockManager.LockType.IXLock, lm.getTableLockType(tid3, 1));
+  }
+
+  /**
+   * Page locks beyond the threshold are traded for one table lock.
+   */
+  @Test public void escalation() throws Exception {
+    lm.setEscalationThreshold(4);
+    for (int i = 0; i < 4; ++i) {
+      lm.acquireLock(tid1, new HeapPageId(1, i), Permissions.READ_ONLY);
+    }
+    assertEquals(LockManager.LockType.ISLock, lm.getTableLockType(tid1, 1));
+    assertEquals(4, lm.getLockedPage(tid1).size());
+
+    lm.acquireLock(tid1, new HeapPageId(1, 4), Permissions.READ_ONLY);
+    assertEquals(LockManager.LockType.SLock, lm.getTableLockType(tid1, 1));
+    assertTrue(lm.getLockedPage(tid1).isEmpty());
+    assertTrue(lm.ifHoldsLock(tid1, new HeapPageId(1, 100)));
+
+    // a writer of the table blocks escalation, so tid2 keeps its page locks
+    lm.acquireLock(tid3, new HeapPageId(2, 100), Permissions.READ_WRITE);
+    for (int i = 0; i < 5; ++i) {
+      lm.acquireLock(tid2, new HeapPageId(2, i), Permissions.READ_WRITE);
+    }
+    assertEquals(LockManager.LockType.IXLock, lm.getTableLockType(tid2, 2));
+    assertEquals(5, lm.getLockedPage(tid2).size());
+
+    lm.releaseLock(tid3);
+    for (int i = 5; i < 11; ++i) {
+      lm.acquireLock(tid2, new HeapPageId(2, i), Permissions.READ_WRITE);
+    }
+    assertEquals(LockManager.LockType.XLock, lm.getTableLockType(tid2, 2));
+    assertTrue(lm.getLockedPage(tid2).isEmpty());
+  }
+
+  /**
+   * NO_WAIT aborts a conflicting request right away.
+   */
+  @Test public void noWait() throws Exception {
+    lm.setDeadlockPolicy(LockManager.DeadlockPolicy.NO_WAIT);
+    PageId pid = new HeapPageId(1, 0);
+    lm.acquireLock(tid1, pid, Permissions.READ_WRITE);
+    long start = System.currentTimeMillis();
+    try {
+      lm.acquireLock(tid2, pid, Permissions.READ_ONLY);
+      fail("expected the request to abort");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertTrue(System.currentTimeMillis() - start < 100);
+  }
+
+  /**
+   * WAIT_DIE: an older requester waits, a younger one dies.
+   */
+  @Test public void waitDie() throws Exception {
+    lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+    PageId pid = new HeapPageId(1, 0);
+    lm.acquireLock(tid2, pid, Permissions.READ_WRITE);
+    try {
+      lm.acquireLock(tid3, pid, Permissions.READ_WRITE);
+      fail("expected the younger transaction to die");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+
+    Thread older = new Thread(() -> {
+      try {
+        lm.acquireLock(tid1, pid, Permissions.READ_WRITE);
+      } catch (TransactionAbortedException e) {
+        // leave tid1 without the lock
+      }
+    });
+    older.start();
+    Thread.sleep(50);
+    lm.releaseLock(tid2);
+    older.join();
+    assertTrue(lm.ifHoldsLock(tid1, pid));
+  }
+
+  /**
+   * WAIT_DIE: a restart of an aborted transaction has a new id, but keeps
+   * the age of the first try, so it waits for a holder that started after
+   * it instead of dying again.
+   */
+  @Test public void restartKeepsAge() throws Exception {
+    lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+    PageId pid = new HeapPageId(1, 0);
+    TransactionId restarted = new TransactionId(tid1);
+    assertTrue(restarted.getId() > tid2.getId());
+    assertTrue(restarted.isOlderThan(tid2));
+    assertTrue(tid1.isOlderThan(restarted));
+    lm.acquireLock(tid2, pid, Permissions.READ_WRITE);
+
+    final boolean[] died = new boolean[1];
+    Thread older = new Thread(() -> {
+      try {
+        lm.acquireLock(restarted, pid, Permissions.READ_WRITE);
+      } catch (TransactionAbortedException e) {
+        died[0] = true;
+      }
+    });
+    older.start();
+    Thread.sleep(50);
+    lm.releaseLock(tid2);
+    older.join();
+    assertTrue(!died[0]);
+    assertTrue(lm.ifHoldsLock(restarted, pid));
+  }
+
+  /**
+   * WOUND_WAIT: an older requester wounds the younger holder, which aborts
+   * when it waits or asks for its next lock.
+   */
+  @Test public void woundWait() throws Exception {
+    lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+    PageId p0 = new HeapPageId(1, 0);
+    PageId p1 = new HeapPageId(1, 1);
+    lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+    lm.acquireLock(tid2, p1, Permissions.READ_WRITE);
+
+    // the younger tid2 waits for tid1
+    final boolean[] aborted = new boolean[1];
+    Thread younger = new Thread(() -> {
+      try {
+        lm.acquireLock(tid2, p0, Permissions.READ_WRITE);
+      } catch (TransactionAbortedException e) {
+        aborted[0] = true;
+        lm.releaseLock(tid2);
+      }
+    });
+    younger.start();
+    Thread.sleep(50);
+
+    // the older tid1 wounds tid2, which gives up its locks
+    lm.acquireLock(tid1, p1, Permissions.READ_WRITE);
+    younger.join();
+    assertTrue(aborted[0]);
+    assertTrue(lm.ifHoldsLock(tid1, p1));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockManagerTest.class);
+  }
+}
@@ -0,0 +1,348 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest extends TestUtil.CreateHeapFile {
+  private BufferPool bp;
+  private LogFile log;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    log = Database.getLogFile();
+  }
+
+  private Transaction insert(int value) throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(value, 2));
+    return t;
+  }
+
+  /**
+   * Records are buffered until the log is flushed up to their LSN.
+   */
+  @Test public void flushUpTo() throws Exception {
+    Transaction t = insert(1);
+    long before = log.getNextLsn();
+    HeapPage page = (HeapPage) bp.getPage(t.getId(), new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+    long lsn = log.logWrite(t.getId(), page.getBeforeImage(), page);
+    assertEquals(before, lsn);
+    assertTrue(log.getNextLsn() > lsn);
+    assertTrue(log.getFlushedLsn() <= lsn);
+
+    log.flushUpTo(lsn);
+    assertTrue(log.getFlushedLsn() > lsn);
+    t.commit();
+  }
+
+  /**
+   * Flushing the pages of a transaction stamps them with the LSN of their
+   * update record, and the log is on disk up to it before they are written.
+   * The page on disk keeps the LSN, and a rollback stamps it with the LSN of
+   * the CLR that undid the update.
+   */
+  @Test public void pageLsn() throws Exception {
+    Transaction t = insert(1);
+    HeapPageId pid = new HeapPageId(empty.getId(), 0);
+    HeapPage page = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_ONLY);
+    assertEquals(0, page.getLsn());
+    long next = log.getNextLsn();
+    bp.flushPages(t.getId());
+    assertTrue(page.getLsn() >= next);
+    assertTrue(log.getFlushedLsn() > page.getLsn());
+    assertEquals(page.getLsn(), empty.readPage(pid).getLsn());
+    t.commit();
+
+    Transaction u = insert(2);
+    bp.flushPages(u.getId());
+    assertTrue(page.getLsn() > next);
+    long updated = page.getLsn();
+    assertEquals(updated, empty.readPage(pid).getLsn());
+    u.abort();
+    assertTrue(empty.readPage(pid).getLsn() > updated);
+  }
+
+  /**
+   * LSNs keep growing when a checkpoint truncates the log.
+   */
+  @Test public void lsnsSurviveTruncation() throws Exception {
+    insert(1).commit();
+    long lsn = log.getNextLsn();
+    log.logCheckpoint();
+    assertTrue(log.getNextLsn() > lsn);
+    assertTrue(log.getFlushedLsn() >= log.getNextLsn());
+
+    Transaction t = insert(2);
+    t.commit();
+    assertTrue(log.getFlushedLsn() > lsn);
+  }
+
+  /**
+   * A checkpoint leaves the pages in the buffer pool, and recovery redoes
+   * an update from before the checkpoint that was logged but never written.
+   */
+  @Test public void fuzzyCheckpoint() throws Exception {
+    Transaction t = insert(1);
+    HeapPageId pid = new HeapPageId(empty.getId(), 0);
+    HeapPage page = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_ONLY);
+    log.logCheckpoint();
+    assertEquals(t.getId(), page.isDirty());
+
+    // commit without writing the page
+    log.logWrite(t.getId(), page.getBeforeImage(), page);
+    log.logCommit(t.getId());
+    log.logCheckpoint();
+
+    // crash
+    Database.reset();
+    HeapFile hf = Utility.openHeapFile(2, empty.getFile());
+    Database.getLogFile().recover();
+    assertEquals(1, count(hf));
+  }
+
+  /**
+   * Background checkpoints keep the log short.
+   */
+  @Test public void checkpointInterval() throws Exception {
+    log.setSegmentSize(1024);
+    log.setCheckpointInterval(4096);
+    for (int i = 0; i < 200; ++i) {
+      insert(i).commit();
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (log.getLogSize() > 8192 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    log.setCheckpointInterval(0);
+    assertTrue(log.getLogSize() <= 8192);
+  }
+
+  /**
+   * The log moves on to a new segment when one fills up, a checkpoint
+   * deletes the segments recovery doesn't need anymore, and recovery
+   * reads the log across the remaining ones.
+   */
+  @Test public void segments() throws Exception {
+    log.setSegmentSize(1024);
+    for (int i = 0; i < 100; ++i) {
+      insert(i).commit();
+    }
+    int segments = log.getSegmentCount();
+    assertTrue(segments > 2);
+
+    Transaction loser = insert(-1);
+    bp.flushPages(loser.getId());
+    log.logCheckpoint();
+    assertTrue(log.getSegmentCount() < segments);
+
+    // crash
+    Database.reset();
+    HeapFile hf = Utility.openHeapFile(2, empty.getFile());
+    Database.getLogFile().recover();
+    assertEquals(100, count(hf));
+  }
+
+  /**
+   * Recovery ends the log at a record that a crash left incomplete.
+   */
+  @Test public void tornRecord() throws Exception {
+    insert(1).commit();
+    insert(2).commit();
+
+    // crash while the last commit record is written
+    File tail = null;
+    for (File f : log.logFile.getAbsoluteFile().getParentFile().listFiles()) {
+      if (f.getName().startsWith(log.logFile.getName() + ".")
+          && (tail == null || f.getName().compareTo(tail.getName()) > 0)) {
+        tail = f;
+      }
+    }
+    Database.reset();
+    RandomAccessFile raf = new RandomAccessFile(tail, "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+
+    HeapFile hf = Utility.openHeapFile(2, empty.getFile());
+    Database.getLogFile().recover();
+    assertEquals(1, count(hf));
+    // the log goes on after the last complete record
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(3, 2));
+    t.commit();
+    assertEquals(2, count(hf));
+  }
+
+  /**
+   * An abort follows the undo chain of its transaction past the records
+   * of others, and the CLRs it logs keep recovery from undoing it again,
+   * also when recovery itself is interrupted by a crash.
+   */
+  @Test public void undoChains() throws Exception {
+    log.setSegmentSize(1024);
+    File file = File.createTempFile("other", ".dat");
+    file.deleteOnExit();
+    HeapFile other = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    insert(1).commit();
+    Transaction aborted = insert(-1);
+    bp.flushPages(aborted.getId());
+    for (int i = 0; i < 50; ++i) {
+      Transaction t = new Transaction();
+      t.start();
+      bp.insertTuple(t.getId(), other.getId(), Utility.getHeapTuple(i, 2));
+      t.commit();
+    }
+    bp.insertTuple(aborted.getId(), empty.getId(), Utility.getHeapTuple(-1, 2));
+    bp.flushPages(aborted.getId());
+    aborted.abort();
+    assertEquals(1, count(empty));
+
+    Transaction loser = insert(-2);
+    bp.flushPages(loser.getId());
+
+    // crash, and crash again right after recovery
+    for (int i = 0; i < 2; ++i) {
+      Database.reset();
+      HeapFile hf = Utility.openHeapFile(2, empty.getFile());
+      other = Utility.openHeapFile(2, file);
+      Database.getLogFile().recover();
+      assertEquals(1, count(hf));
+      assertEquals(50, count(other));
+    }
+  }
+
+  /**
+   * An asynchronous commit returns before its COMMIT record is on disk,
+   * and the background flusher forces it within the delay.
+   */
+  @Test public void asyncCommit() throws Exception {
+    log.setAsyncCommitDelay(20);
+    Transaction t = insert(1);
+    t.setSynchronousCommit(false);
+    t.commit();
+    assertTrue(log.getFlushedLsn() < log.getNextLsn());
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (log.getFlushedLsn() < log.getNextLsn() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(log.getFlushedLsn() >= log.getNextLsn());
+
+    // crash
+    Database.reset();
+    HeapFile hf = Utility.openHeapFile(2, empty.getFile());
+    Database.getLogFile().recover();
+    assertEquals(1, count(hf));
+  }
+
+  /**
+   * A crash before the flusher forced an asynchronous COMMIT record rolls
+   * the transaction back as a whole.
+   */
+  @Test public void asyncCommitLost() throws Exception {
+    insert(1).commit();
+    log.setSynchronousCommit(false);
+    log.setAsyncCommitDelay(60000);
+    Transaction t = insert(2);
+    bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(3, 2));
+    t.commit();
+    assertEquals(3, count(empty));
+
+    // crash
+    Database.reset();
+    HeapFile hf = Utility.openHeapFile(2, empty.getFile());
+    Database.getLogFile().recover();
+    assertEquals(1, count(hf));
+  }
+
+  private int count(HeapFile hf) throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    DbFileIterator it = hf.iterator(t.getId());
+    it.open();
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      ++n;
+    }
+    it.close();
+    t.commit();
+    return n;
+  }
+
+  /**
+   * Recovery redoes committed and aborted transactions and rolls back
+   * the one that never finished, with the pages spread over threads.
+   */
+  @Test public void recoverInParallel() throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    for (int i = 0; i < 2000; ++i) {
+      bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+    }
+    t.commit();
+
+    Transaction aborted = new Transaction();
+    aborted.start();
+    for (int i = 0; i < 10; ++i) {
+      bp.insertTuple(aborted.getId(), empty.getId(), Utility.getHeapTuple(-1, 2));
+    }
+    bp.flushAllPages();
+    aborted.abort();
+
+    Transaction loser = new Transaction();
+    loser.start();
+    for (int i = 0; i < 600; ++i) {
+      bp.insertTuple(loser.getId(), empty.getId(), Utility.getHeapTuple(-2, 2));
+    }
+    bp.flushAllPages();
+
+    // crash
+    Database.reset();
+    HeapFile hf = Utility.openHeapFile(2, empty.getFile());
+    Database.getLogFile().setRecoveryThreads(4);
+    Database.getLogFile().recover();
+    assertEquals(2000, count(hf));
+  }
+
+  /**
+   * Redo skips the updates a page on disk already has: a page whose LSN is
+   * at or beyond an update record is left as it was flushed.
+   */
+  @Test public void redoSkipsFlushedUpdates() throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    for (int i = 0; i < 10; ++i) {
+      bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+    }
+    t.commit();
+
+    // change the page behind the log's back, keeping its LSN
+    HeapPageId pid = new HeapPageId(empty.getId(), 0);
+    HeapPage page = (HeapPage) empty.readPage(pid);
+    assertTrue(page.getLsn() > 0);
+    page.deleteTuple(page.iterator().next());
+    empty.writePage(page);
+
+    // crash
+    Database.reset();
+    HeapFile hf = Utility.openHeapFile(2, empty.getFile());
+    Database.getLogFile().recover();
+    assertEquals(9, count(hf));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogFileTest.class);
+  }
+}
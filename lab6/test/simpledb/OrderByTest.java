@@ -0,0 +1,105 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  /**
+   * Rows of three ints: two keys with many duplicates, and the position of
+   * the row, to check that equal keys keep their order.
+   */
+  private static OpIterator rows(int n) {
+    Random r = new Random(42);
+    int[] data = new int[3 * n];
+    for (int i = 0; i < n; ++i) {
+      data[3 * i] = r.nextInt(20) - 10;
+      data[3 * i + 1] = r.nextInt(30);
+      data[3 * i + 2] = i;
+    }
+    return TestUtil.createTupleList(3, data);
+  }
+
+  private static ArrayList<Tuple> drain(OpIterator op) throws Exception {
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    while (op.hasNext()) {
+      tuples.add(op.next());
+    }
+    return tuples;
+  }
+
+  /** Check the tuples are sorted on c0 ascending, then c1 descending, stably. */
+  private static void checkSorted(ArrayList<Tuple> tuples, int n) {
+    assertEquals(n, tuples.size());
+    for (int i = 1; i < tuples.size(); ++i) {
+      int[] a = new int[3], b = new int[3];
+      for (int f = 0; f < 3; ++f) {
+        a[f] = ((IntField) tuples.get(i - 1).getField(f)).getValue();
+        b[f] = ((IntField) tuples.get(i).getField(f)).getValue();
+      }
+      assertTrue(a[0] < b[0] || (a[0] == b[0] && (a[1] > b[1] || (a[1] == b[1] && a[2] < b[2]))));
+    }
+  }
+
+  /**
+   * Unit test for OrderBy on several fields in mixed orders, in memory.
+   */
+  @Test public void multiColumnInMemory() throws Exception {
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false }, rows(3000));
+    op.open();
+    checkSorted(drain(op), 3000);
+    op.close();
+  }
+
+  /**
+   * An OrderBy whose child exceeds its memory budget writes more sorted
+   * runs than it merges at a time, and merges them into the same order as
+   * an in-memory sort, also after a rewind.
+   */
+  @Test public void externalSort() throws Exception {
+    int n = 20000;
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false }, rows(n));
+    op.setMemoryBudget(n / (3 * OrderBy.MERGE_FAN_IN));
+    op.open();
+    ArrayList<Tuple> sorted = drain(op);
+    checkSorted(sorted, n);
+
+    op.rewind();
+    for (int i = 0; i < n / 2; ++i) {
+      op.next();
+    }
+    op.rewind();
+    ArrayList<Tuple> again = drain(op);
+    op.close();
+    assertEquals(n, again.size());
+    for (int i = 0; i < n; ++i) {
+      assertTrue(TestUtil.compareTuples(sorted.get(i), again.get(i)));
+    }
+
+    // a single int key, descending
+    op = new OrderBy(2, false, rows(5000));
+    op.setMemoryBudget(700);
+    op.open();
+    ArrayList<Tuple> desc = drain(op);
+    op.close();
+    assertEquals(5000, desc.size());
+    for (int i = 0; i < desc.size(); ++i) {
+      assertEquals(4999 - i, ((IntField) desc.get(i).getField(2)).getValue());
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
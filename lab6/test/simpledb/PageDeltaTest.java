@@ -0,0 +1,79 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Inserting a tuple changes a header byte and one slot.
+     */
+    @Test public void insertTuple() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(new int[] { 7, 8 }));
+        byte[] after = page.getPageData();
+
+        PageDelta delta = PageDelta.diff(before, after);
+        assertEquals(2, delta.numRanges());
+        assertTrue(delta.numBytes() <= 1 + Utility.getTupleDesc(2).getSize());
+
+        byte[] data = before.clone();
+        delta.apply(data, true);
+        assertArrayEquals(after, data);
+        // redo is idempotent
+        delta.apply(data, true);
+        assertArrayEquals(after, data);
+        delta.apply(data, false);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * Nearby changes share a range, and a delta survives serialization.
+     */
+    @Test public void serialize() throws Exception {
+        byte[] before = new byte[64];
+        byte[] after = before.clone();
+        after[3] = 1;
+        after[6] = 2;
+        after[40] = 3;
+        PageDelta delta = PageDelta.diff(before, after);
+        assertEquals(2, delta.numRanges());
+        assertEquals(5, delta.numBytes());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(baos));
+        PageDelta read = PageDelta.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        byte[] data = before.clone();
+        read.apply(data, true);
+        assertArrayEquals(after, data);
+
+        assertEquals(0, PageDelta.diff(before, before).numRanges());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
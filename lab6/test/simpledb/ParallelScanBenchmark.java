@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.util.HashMap;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Scaling of a scan-filter-aggregate query over the number of threads its
+ * exchange runs on. The query, a grouped sum over the rows that pass a
+ * filter, is planned by LogicalPlan like one typed into the parser, so
+ * with more than one thread the table is scanned in partitions and every
+ * worker sums its own partition. The table is kept in memory and read in
+ * read-only transactions. Reports the rows per second for each number of
+ * threads, and the speedup over one thread.
+ * <p>
+ * Run with: ant runbench -Dbench=ParallelScanBenchmark [-Dargs="rows rounds maxThreads"]
+ */
+public class ParallelScanBenchmark {
+
+    private static final int DEFAULT_ROWS = 500000;
+    private static final int DEFAULT_ROUNDS = 5;
+    private static final int DEFAULT_MAX_THREADS = 8;
+    private static final int MAX_VALUE = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_THREADS;
+
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, MAX_VALUE, null, null, "c");
+        // keep the whole table in memory
+        Database.resetBufferPool(hf.numPages() + 10);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(Database.getCatalog().getTableName(hf.getId()),
+                new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.LESS_THAN, Integer.toString(MAX_VALUE / 2));
+        lp.addAggregate("sum", "t.c1", "t.c0");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", "sum");
+
+        System.out.printf("rows=%d pages=%d cpus=%d%n", rows, hf.numPages(),
+                Runtime.getRuntime().availableProcessors());
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Exchange.setParallelism(threads);
+            run(lp, stats); // warm up
+            double best = 0;
+            for (int round = 0; round < rounds; ++round) {
+                best = Math.max(best, rows / run(lp, stats));
+            }
+            if (threads == 1) {
+                base = best;
+            }
+            System.out.printf("threads=%-3d %10.0f rows/sec  speedup %5.2f%n", threads, best, best / base);
+        }
+    }
+
+    /** @return the seconds the query took */
+    private static double run(LogicalPlan lp, HashMap<String, TableStats> stats) throws Exception {
+        Transaction t = new Transaction(true);
+        t.start();
+        long begin = System.nanoTime();
+        OpIterator plan = lp.physicalPlan(t.getId(), stats, false);
+        plan.open();
+        int groups = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            ++groups;
+        }
+        plan.close();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        t.commit();
+        if (groups == 0) {
+            throw new IllegalStateException("query returned no groups");
+        }
+        return elapsed;
+    }
+}
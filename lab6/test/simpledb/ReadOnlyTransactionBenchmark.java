@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.io.File;
+
+/**
+ * Per-query overhead of short SELECT transactions: the same small scan is
+ * run in a regular transaction (page locks, BEGIN and COMMIT log records,
+ * log force on commit) and in a read-only transaction (snapshot read, no
+ * locks, no log records), and the queries per second of each are reported.
+ * <p>
+ * Run with: ant runbench -Dbench=ReadOnlyTransactionBenchmark [-Dargs="rows seconds"]
+ */
+public class ReadOnlyTransactionBenchmark {
+
+    private static final int DEFAULT_ROWS = 100;
+    private static final int DEFAULT_SECONDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+
+        File f = File.createTempFile("readonly", ".dat");
+        f.deleteOnExit();
+        HeapFile table = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        Transaction load = new Transaction();
+        load.start();
+        for (int i = 0; i < rows; ++i) {
+            Database.getBufferPool().insertTuple(load.getId(), table.getId(), Utility.getHeapTuple(i, 2));
+        }
+        load.commit();
+
+        for (boolean readOnly : new boolean[] { false, true }) {
+            // warm up, then measure
+            run(table.getId(), readOnly, 1);
+            long queries = run(table.getId(), readOnly, seconds);
+            System.out.printf("%-10s %8.0f queries/sec (%.1f us/query)%n",
+                    readOnly ? "read-only" : "regular", queries / (double) seconds,
+                    seconds * 1e6 / queries);
+        }
+    }
+
+    private static long run(int tableId, boolean readOnly, int seconds) throws Exception {
+        long end = System.currentTimeMillis() + 1000L * seconds;
+        long queries = 0;
+        while (System.currentTimeMillis() < end) {
+            Transaction t = new Transaction(readOnly);
+            t.start();
+            SeqScan scan = new SeqScan(t.getId(), tableId);
+            scan.open();
+            while (scan.hasNext()) {
+                scan.next();
+            }
+            scan.close();
+            t.commit();
+            ++queries;
+        }
+        return queries;
+    }
+}
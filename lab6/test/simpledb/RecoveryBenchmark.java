@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.io.File;
+
+/**
+ * Recovery throughput of the log. The benchmark writes the log of a
+ * number of committed transactions that each insert a few tuples into one
+ * page of a heap file, without going through the buffer pool, so that no
+ * page is on disk with its changes. The transactions take turns on the
+ * pages. Then the database crashes, and
+ * recover() reads the log back, rebuilds the dirty page table and redoes
+ * every update. Reports the size of the log, the time recovery took, and
+ * the rate at which it got through the log in records and megabytes per
+ * second. Each round uses a new database; the first rounds warm up the JIT.
+ * <p>
+ * Run with: ant runbench -Dbench=RecoveryBenchmark [-Dargs="transactions tuplesPerTransaction rounds"]
+ */
+public class RecoveryBenchmark {
+
+    private static final int DEFAULT_TRANSACTIONS = 50000;
+    private static final int DEFAULT_TUPLES = 4;
+    private static final int DEFAULT_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_TRANSACTIONS;
+        int tuples = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TUPLES;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ROUNDS;
+
+        System.out.printf("transactions=%d tuples=%d%n", transactions, tuples);
+        for (int round = 0; round < rounds; ++round) {
+            run(transactions, tuples);
+        }
+    }
+
+    private static void run(int transactions, int tuples) throws Exception {
+        Database.reset();
+        File f = File.createTempFile("recovery", ".dat");
+        f.deleteOnExit();
+        HeapFile table = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        // enough pages that none of them fills up
+        int slots = new HeapPage(new HeapPageId(table.getId(), 0), HeapPage.createEmptyPageData()).getNumEmptySlots();
+        HeapPage[] pages = new HeapPage[transactions * tuples / slots + 1];
+        for (int p = 0; p < pages.length; ++p) {
+            pages[p] = new HeapPage(new HeapPageId(table.getId(), p), HeapPage.createEmptyPageData());
+            table.writePage(pages[p]);
+        }
+
+        LogFile log = Database.getLogFile();
+        for (int n = 0; n < transactions; ++n) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            HeapPage page = pages[n % pages.length];
+            byte[] before = page.getPageData();
+            for (int i = 0; i < tuples; ++i) {
+                page.insertTuple(Utility.getHeapTuple(new int[] { n, i }));
+            }
+            log.logWrite(tid, page, before, page.getPageData());
+            log.logCommit(tid);
+        }
+        long bytes = log.getLogSize();
+        int records = 3 * transactions;
+
+        // crash
+        Database.reset();
+        Utility.openHeapFile(2, f);
+        long begin = System.nanoTime();
+        Database.getLogFile().recover();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        System.out.printf("log=%7.2f MB %8d records %7.3f s %10.0f records/sec %7.2f MB/sec%n",
+                bytes / 1e6, records, elapsed, records / elapsed, bytes / 1e6 / elapsed);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+  private BufferPool bp;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 3; ++i) {
+      bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+    }
+    bp.transactionComplete(tid, true);
+  }
+
+  /**
+   * Scan the table as tid and return the first column of every tuple.
+   */
+  private List<Integer> scan(TransactionId tid) throws Exception {
+    List<Integer> values = new ArrayList<Integer>();
+    DbFileIterator it = empty.iterator(tid);
+    it.open();
+    while (it.hasNext()) {
+      values.add(((IntField) it.next().getField(0)).getValue());
+    }
+    it.close();
+    Collections.sort(values);
+    return values;
+  }
+
+  /**
+   * A snapshot reader neither blocks on nor sees an uncommitted write,
+   * and keeps its view of the table after the writer commits.
+   */
+  @Test public void readerDoesNotSeeLaterCommits() throws Exception {
+    TransactionId writer = new TransactionId();
+    bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(10, 2));
+
+    TransactionId reader = new TransactionId();
+    bp.beginSnapshot(reader);
+    assertEquals(Arrays.asList(0, 1, 2), scan(reader));
+    assertFalse(bp.holdsLock(reader, new HeapPageId(empty.getId(), 0)));
+
+    bp.flushPages(writer);
+    bp.transactionComplete(writer, true);
+    assertEquals(1, bp.getVersionStore().size());
+    assertEquals(Arrays.asList(0, 1, 2), scan(reader));
+
+    TransactionId later = new TransactionId();
+    bp.beginSnapshot(later);
+    assertEquals(Arrays.asList(0, 1, 2, 10), scan(later));
+
+    // the version is dropped once the reader that needs it is done
+    bp.transactionComplete(reader, true);
+    assertEquals(0, bp.getVersionStore().size());
+    bp.transactionComplete(later, true);
+  }
+
+  /**
+   * No versions are kept while nobody reads a snapshot.
+   */
+  @Test public void noVersionsWithoutSnapshots() throws Exception {
+    TransactionId writer = new TransactionId();
+    bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(10, 2));
+    bp.transactionComplete(writer, true);
+    assertEquals(0, bp.getVersionStore().size());
+  }
+
+  /**
+   * A snapshot can't be used to write.
+   */
+  @Test public void snapshotIsReadOnly() throws Exception {
+    TransactionId reader = new TransactionId();
+    bp.beginSnapshot(reader);
+    try {
+      bp.insertTuple(reader, empty.getId(), Utility.getHeapTuple(10, 2));
+      fail("expected the write to fail");
+    } catch (DbException e) {
+      // expected
+    }
+    bp.transactionComplete(reader, false);
+  }
+
+  /**
+   * A read-only Transaction reads a snapshot and writes no log records.
+   */
+  @Test public void readOnlyTransaction() throws Exception {
+    int records = Database.getLogFile().getTotalRecords();
+    Transaction t = new Transaction(true);
+    t.start();
+    assertTrue(bp.readsSnapshot(t.getId()));
+    assertEquals(Arrays.asList(0, 1, 2), scan(t.getId()));
+    t.commit();
+    assertFalse(bp.readsSnapshot(t.getId()));
+    assertEquals(records, Database.getLogFile().getTotalRecords());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotTest.class);
+  }
+}
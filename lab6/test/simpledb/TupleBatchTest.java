@@ -0,0 +1,138 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  private static TupleBatch batch(int width, int rows) {
+    TupleBatch b = new TupleBatch(Utility.getTupleDesc(width), TupleBatch.DEFAULT_SIZE);
+    for (int i = 0; i < rows; ++i) {
+      b.addTuple(Utility.getHeapTuple(i, width));
+    }
+    return b;
+  }
+
+  /**
+   * Tuples go in by row and come back out of the columns.
+   */
+  @Test public void addTuple() {
+    TupleBatch b = batch(2, 10);
+    assertEquals(10, b.size());
+    assertEquals(7, b.getInt(1, 7));
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(3, 2), b.getTuple(3)));
+
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    TupleBatch s = new TupleBatch(td, 4);
+    Tuple t = new Tuple(td);
+    t.setField(0, new IntField(1));
+    t.setField(1, new StringField("one", Type.STRING_LEN));
+    s.addTuple(t);
+    assertEquals("one", s.getString(1, 0));
+    assertTrue(TestUtil.compareTuples(t, s.getTuple(0)));
+  }
+
+  /**
+   * A predicate narrows the selection without moving the rows, and a
+   * projection shares the columns and the selection.
+   */
+  @Test public void selectAndProject() {
+    TupleBatch b = batch(3, 100);
+    new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(90)).filter(b);
+    assertEquals(10, b.size());
+    assertEquals(90, b.row(0));
+    new Predicate(1, Predicate.Op.NOT_EQUALS, new IntField(95)).filter(b);
+    assertEquals(9, b.size());
+    assertEquals(96, b.row(5));
+
+    TupleBatch p = b.project(Utility.getTupleDesc(1), new int[] { 2 });
+    assertEquals(9, p.size());
+    assertEquals(99, p.getInt(0, p.row(8)));
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(96, 1), p.getTuple(5)));
+
+    Tuple reused = new Tuple(Utility.getTupleDesc(1));
+    assertTrue(reused == p.readTuple(5, reused));
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(96, 1), reused));
+    p.readTuple(8, reused);
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(99, 1), reused));
+  }
+
+  /**
+   * Batch operators hand out the same tuples by batch and by tuple, and
+   * read children that only hand out tuples.
+   */
+  @Test public void batchesMatchTuples() throws Exception {
+    int[] data = new int[2 * 3000];
+    for (int i = 0; i < 3000; ++i) {
+      data[2 * i] = i % 7;
+      data[2 * i + 1] = i;
+    }
+    Predicate pred = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(3));
+    ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(1));
+    Project tuples = new Project(fields, new Type[] { Type.INT_TYPE },
+        new Filter(pred, TestUtil.createTupleList(2, data)));
+    Project batches = new Project(fields, new Type[] { Type.INT_TYPE },
+        new Filter(pred, TestUtil.createTupleList(2, data)));
+    tuples.open();
+    batches.open();
+    int n = 0;
+    TupleBatch b;
+    while ((b = batches.nextBatch()) != null) {
+      assertTrue(b.size() <= TupleBatch.DEFAULT_SIZE);
+      for (int i = 0; i < b.size(); ++i, ++n) {
+        assertTrue(TestUtil.compareTuples(tuples.next(), b.getTuple(i)));
+      }
+    }
+    assertTrue(TestUtil.checkExhausted(tuples));
+    assertEquals(428 * 3 + 3, n);
+    assertNull(batches.nextBatch());
+  }
+
+  /**
+   * HashEquiJoin probes a batch at a time, across MAP_SIZE loads of its
+   * left child, and starts over on rewind.
+   */
+  @Test public void hashJoinRewind() throws Exception {
+    int n = HashEquiJoin.MAP_SIZE + 500;
+    int[] left = new int[n];
+    int[] right = new int[2 * 1500];
+    for (int i = 0; i < n; ++i) {
+      left[i] = i % 1500;
+    }
+    for (int i = 0; i < 1500; ++i) {
+      right[2 * i] = i;
+      right[2 * i + 1] = -i;
+    }
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        TestUtil.createTupleList(1, left), TestUtil.createTupleList(2, right));
+    join.open();
+    for (int pass = 0; pass < 2; ++pass) {
+      int rows = 0;
+      while (join.hasNext()) {
+        Tuple t = join.next();
+        assertEquals(t.getField(0), t.getField(1));
+        assertEquals(-((IntField) t.getField(1)).getValue(), ((IntField) t.getField(2)).getValue());
+        ++rows;
+      }
+      assertEquals(n, rows);
+      join.rewind();
+    }
+    join.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}